@@ -0,0 +1,48 @@
+package io.qudot.qudotc.bench;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The program a benchmark compiles, generated once per trial for each shape and size
+ *
+ * @since 0.1.0
+ */
+@State(Scope.Benchmark)
+public class Corpus {
+    @Param({"GHZ", "QFT", "SHOR", "NESTED", "LABELS"})
+    public CorpusGenerator.Shape shape;
+    @Param({"100", "10000", "1000000"})
+    public int lines;
+
+    private String source;
+    private byte[] bytes;
+    private int lineCount;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        source = CorpusGenerator.generate(shape, lines);
+        bytes = source.getBytes(StandardCharsets.UTF_8);
+        lineCount = CorpusGenerator.countLines(source);
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return number of lines actually generated
+     */
+    public int getLineCount() {
+        return lineCount;
+    }
+}
@@ -0,0 +1,186 @@
+package io.qudot.qudotc.bench;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Generates .qudot programs of a given shape and about a given number of lines, from a few lines to
+ * millions, so each phase of the compiler can be timed against the size of its input. Programs are straight
+ * line versions of the README examples scaled up, the same shape and size always give the same program:
+ * <ul>
+ * <li>GHZ: hon on qubit 1 and a chain of cnots over n qubits</li>
+ * <li>QFT: the n qubit quantum Fourier transform, hon and semi_crot on every pair of qubits</li>
+ * <li>SHOR: the modular exponentiation of Shor's algorithm, a modpow and a ciqumul_mod per control qubit</li>
+ * <li>NESTED: a chain of gates each calling the next, declared before their callees are</li>
+ * <li>LABELS: one gate branching forward to labels that are all defined at its end</li>
+ * </ul>
+ * Run as a program it writes one file per shape:
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar io.qudot.qudotc.bench.CorpusGenerator lines [output dir]
+ * </pre>
+ *
+ * @since 0.1.0
+ */
+public final class CorpusGenerator {
+    public enum Shape {
+        GHZ, QFT, SHOR, NESTED, LABELS
+    }
+
+    // qubits of the modular multiplication register of SHOR
+    private static final int SHOR_WORK_QUBITS = 7;
+
+    private CorpusGenerator() {
+    }
+
+    /**
+     * @param shape the kind of program
+     * @param lines about the number of lines wanted, at least a handful are generated
+     * @return the program
+     */
+    public static String generate(Shape shape, int lines) {
+        StringBuilder out = new StringBuilder(lines * 24);
+        switch (shape) {
+            case GHZ:
+                ghz(out, Math.max(lines / 3, 2));
+                break;
+            case QFT:
+                qft(out, Math.max((int) Math.sqrt(2.0 * lines / 3), 2));
+                break;
+            case SHOR:
+                shor(out, Math.max(lines / 4, 1));
+                break;
+            case NESTED:
+                nested(out, Math.max(lines / 5, 1));
+                break;
+            default:
+                labels(out, Math.max(lines / 3, 1));
+                break;
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return number of lines of a program
+     */
+    public static int countLines(String program) {
+        int lines = 0;
+        for (int i = 0; i < program.length(); i++) {
+            if (program.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    private static void ghz(StringBuilder out, int qubits) {
+        header(out, qubits);
+        out.append(".gate main: args=0, regs=0, qubit_regs=3\n");
+        out.append("    qload q0, 1\n");
+        out.append("    hon q0\n");
+        for (int q = 1; q < qubits; q++) {
+            out.append("    qload q1, ").append(q).append('\n');
+            out.append("    qload q2, ").append(q + 1).append('\n');
+            out.append("    cnot q1, q2\n");
+        }
+        out.append("    paths\n");
+        out.append("    halt\n");
+    }
+
+    private static void qft(StringBuilder out, int qubits) {
+        header(out, qubits);
+        out.append(".gate main: args=0, regs=1, qubit_regs=2\n");
+        for (int q = 1; q <= qubits; q++) {
+            out.append("    qload q0, ").append(q).append('\n');
+            out.append("    hon q0\n");
+            for (int i = q + 1; i <= qubits; i++) {
+                out.append("    qload q1, ").append(i).append('\n');
+                out.append("    iload r1, ").append(i - q + 1).append('\n');
+                out.append("    semi_crot r1, q0, q1\n");
+            }
+        }
+        out.append("    measure\n");
+        out.append("    halt\n");
+    }
+
+    private static void shor(StringBuilder out, int controls) {
+        int work = controls + 1;
+        header(out, controls + SHOR_WORK_QUBITS);
+        out.append(".gate main: args=0, regs=9, qubit_regs=4\n");
+        out.append("    qload_seq q0, 1, ").append(controls).append('\n');
+        out.append("    qload q1, ").append(work).append('\n');
+        out.append("    qload q2, ").append(work + SHOR_WORK_QUBITS - 1).append('\n');
+        out.append("    hon q0\n");
+        out.append("    xon q2\n");
+        out.append("    iload r5, 77\n");
+        out.append("    iload r6, 69\n");
+        for (int c = controls; c >= 1; c--) {
+            out.append("    iload r9, ").append(controls - c).append('\n');
+            out.append("    modpow r8, r6, r9, r5\n");
+            out.append("    qload q3, ").append(c).append('\n');
+            out.append("    ciqumul_mod r8, r5, q1, q2, q3\n");
+        }
+        out.append("    qload_seq q0, ").append(work).append(", ").append(work + SHOR_WORK_QUBITS - 1).append('\n');
+        out.append("    mon q0\n");
+        out.append("    halt\n");
+    }
+
+    private static void nested(StringBuilder out, int depth) {
+        header(out, 1);
+        out.append(".gate main: args=0, regs=1, qubit_regs=0\n");
+        out.append("    call g1(), r0\n");
+        out.append("    halt\n");
+        for (int g = 1; g <= depth; g++) {
+            out.append(".gate g").append(g).append(": args=0, regs=1, qubit_regs=0\n");
+            out.append("    iload r1, ").append(g).append('\n');
+            if (g < depth) {
+                out.append("    call g").append(g + 1).append("(), r0\n");
+            }
+            out.append("    printr r1\n");
+            out.append("    ret\n");
+        }
+    }
+
+    private static void labels(StringBuilder out, int branches) {
+        header(out, 1);
+        out.append(".gate main: args=0, regs=1, qubit_regs=0\n");
+        out.append("    iload r1, ").append(branches).append('\n');
+        for (int i = 0; i < branches; i++) {
+            out.append("    decr r1\n");
+            out.append("    brgtz r1, fwd").append(i).append('\n');
+        }
+        for (int i = 0; i < branches; i++) {
+            out.append("fwd").append(i).append(":\n");
+        }
+        out.append("    halt\n");
+    }
+
+    private static void header(StringBuilder out, int qubits) {
+        out.append(".qudot qubits=").append(qubits).append(", ensemble=1\n\n");
+    }
+
+    /**
+     * Write a program of every shape
+     * @param args about the number of lines of each program and the output directory, . by default
+     * @throws IOException if a program cannot be written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: CorpusGenerator lines [output dir]");
+            System.exit(2);
+        }
+        int lines = Integer.parseInt(args[0]);
+        Path dir = Paths.get(args.length > 1 ? args[1] : ".");
+        Files.createDirectories(dir);
+        for (Shape shape : Shape.values()) {
+            Path file = dir.resolve(shape.name().toLowerCase() + "-" + lines + ".qudot");
+            try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                writer.write(generate(shape, lines));
+            }
+            System.out.println(file);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package io.qudot.qudotc.bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts the source lines a benchmark went through, JMH reports them as a lines rate next to the ops rate,
+ * so a phase that is linear in the size of its input shows the same lines/s at every size
+ *
+ * @since 0.1.0
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class LineCounter {
+    public long lines;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        lines = 0;
+    }
+}
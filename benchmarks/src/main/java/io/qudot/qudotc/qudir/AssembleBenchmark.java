@@ -0,0 +1,61 @@
+package io.qudot.qudotc.qudir;
+
+import io.qudot.qudotc.bench.Corpus;
+import io.qudot.qudotc.bench.LineCounter;
+import io.qudot.qudotc.utils.Bytecodes;
+import org.antlr.v4.runtime.CharStreams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The whole front end, from source bytes to assembled program, for each of the three assemblers: the parse
+ * tree path, the streaming path of -s and the scanner of -f
+ *
+ * @since 0.1.0
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class AssembleBenchmark {
+
+    @Benchmark
+    public QuDotAssembler tree(Corpus corpus, LineCounter counter) throws IOException {
+        QuDotAssembler assembler = new QuDotAssembler(
+                new QuDotAsmLexer(CharStreams.fromStream(new ByteArrayInputStream(corpus.getBytes()))),
+                Bytecodes.instructions);
+        return check(assembler, corpus, counter);
+    }
+
+    @Benchmark
+    public QuDotAssembler streaming(Corpus corpus, LineCounter counter) throws IOException {
+        QuDotAssembler assembler = new QuDotAssembler(() -> new ByteArrayInputStream(corpus.getBytes()),
+                Bytecodes.instructions);
+        return check(assembler, corpus, counter);
+    }
+
+    @Benchmark
+    public QuDotAssembler scanner(Corpus corpus, LineCounter counter) {
+        QuDotAssembler assembler = QuDotScanner.assemble(ByteBuffer.wrap(corpus.getBytes()), Bytecodes.instructions);
+        if (assembler == null) {
+            throw new IllegalStateException("the scanner does not handle " + corpus.shape);
+        }
+        return check(assembler, corpus, counter);
+    }
+
+    private static QuDotAssembler check(QuDotAssembler assembler, Corpus corpus, LineCounter counter) {
+        if (assembler.hasErrors()) {
+            throw new IllegalStateException(assembler.getErrors().toString());
+        }
+        counter.lines += corpus.getLineCount();
+        return assembler;
+    }
+}
@@ -0,0 +1,34 @@
+package io.qudot.qudotc.qudir;
+
+import io.qudot.qudotc.bench.Corpus;
+import io.qudot.qudotc.bench.LineCounter;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lexing: QuDotAsmLexer turning the source into the buffered tokens the parser reads
+ *
+ * @since 0.1.0
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LexerBenchmark {
+
+    @Benchmark
+    public int lex(Corpus corpus, LineCounter counter) {
+        QuDotAsmLexer lexer = new QuDotAsmLexer(CharStreams.fromString(corpus.getSource()));
+        lexer.removeErrorListeners();
+        CommonTokenStream tokens = new CommonTokenStream(lexer);
+        tokens.fill();
+        counter.lines += corpus.getLineCount();
+        return tokens.size();
+    }
+}
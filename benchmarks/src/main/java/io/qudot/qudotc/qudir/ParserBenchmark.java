@@ -0,0 +1,60 @@
+package io.qudot.qudotc.qudir;
+
+import io.qudot.qudotc.bench.Corpus;
+import io.qudot.qudotc.bench.LineCounter;
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ListTokenSource;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+
+/**
+ * Parsing: QuDotAsmParser building the parse tree from tokens lexed beforehand, with SLL prediction as the
+ * assembler parses
+ *
+ * @since 0.1.0
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ParserBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Tokens {
+        List<? extends Token> tokens;
+
+        @Setup(Level.Trial)
+        public void lex(Corpus corpus) {
+            CommonTokenStream stream = new CommonTokenStream(
+                    new QuDotAsmLexer(CharStreams.fromString(corpus.getSource())));
+            stream.fill();
+            tokens = stream.getTokens();
+        }
+    }
+
+    @Benchmark
+    public ParseTree parse(Corpus corpus, Tokens tokens, LineCounter counter) {
+        QuDotAsmParser parser = new QuDotAsmParser(new CommonTokenStream(new ListTokenSource(tokens.tokens)));
+        parser.removeErrorListeners();
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        parser.setErrorHandler(new BailErrorStrategy());
+        ParseTree tree = parser.program();
+        counter.lines += corpus.getLineCount();
+        return tree;
+    }
+}
@@ -0,0 +1,48 @@
+package io.qudot.qudotc.qudir;
+
+import io.qudot.qudotc.bench.Corpus;
+import io.qudot.qudotc.bench.LineCounter;
+import io.qudot.qudotc.utils.Bytecodes;
+import org.antlr.v4.runtime.CharStreams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization: getQuDotByteCodeFile writing an assembled program into the bytes of a plain .qudotc file
+ *
+ * @since 0.1.0
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SerializeBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Assembled {
+        // defaults of every option, a plain version 1 file
+        final QuDotCompiler compiler = new QuDotCompiler();
+        QuDotAssembler assembler;
+
+        @Setup(Level.Trial)
+        public void assemble(Corpus corpus) {
+            assembler = new QuDotAssembler(new QuDotAsmLexer(CharStreams.fromString(corpus.getSource())),
+                    Bytecodes.instructions);
+        }
+    }
+
+    @Benchmark
+    public byte[] serialize(Corpus corpus, Assembled assembled, LineCounter counter) {
+        byte[] bytes = assembled.compiler.getQuDotByteCodeFile(assembled.assembler);
+        counter.lines += corpus.getLineCount();
+        return bytes;
+    }
+}
@@ -0,0 +1,56 @@
+package io.qudot.qudotc.qudir;
+
+import io.qudot.qudotc.bench.Corpus;
+import io.qudot.qudotc.bench.LineCounter;
+import io.qudot.qudotc.utils.Bytecodes;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Code generation: QuDotAssembler visiting a parse tree built beforehand, emitting the bytecode and constant
+ * pool and backpatching forward label references as the labels are defined. The LABELS shape leaves every
+ * reference open until the end of its gate, so it mostly measures the backpatching.
+ *
+ * @since 0.1.0
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class VisitBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Tree {
+        ParseTree tree;
+
+        @Setup(Level.Trial)
+        public void parse(Corpus corpus) {
+            QuDotAsmParser parser = new QuDotAsmParser(new CommonTokenStream(
+                    new QuDotAsmLexer(CharStreams.fromString(corpus.getSource()))));
+            tree = parser.program();
+        }
+    }
+
+    @Benchmark
+    public QuDotAssembler visit(Corpus corpus, Tree tree, LineCounter counter) {
+        QuDotAssembler assembler = new QuDotAssembler(Bytecodes.instructions);
+        assembler.visit(tree.tree);
+        assembler.checkForUnresolvedReferences();
+        if (assembler.hasErrors()) {
+            throw new IllegalStateException(assembler.getErrors().toString());
+        }
+        counter.lines += corpus.getLineCount();
+        return assembler;
+    }
+}
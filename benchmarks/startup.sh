@@ -0,0 +1,75 @@
+#!/usr/bin/env bash
+#
+# Startup benchmark: time to first byte of the .qudotc file for each README example, compiled by a fresh
+# process the way a build runs qudotc once per job. The JVM mode runs target/quarkus-app/quarkus-run.jar,
+# the native mode target/*-runner when it has been built with ./mvnw package -Pnative.
+#
+#   benchmarks/startup.sh [runs] [qudotc options...]
+#
+# For every mode and example it prints the median and best time until the output file holds its first byte
+# and until the process exits, in milliseconds.
+
+set -euo pipefail
+
+cd "$(dirname "$0")/.."
+runs=${1:-20}
+shift || true
+corpus=src/main/resources/warm-up
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+
+now_us() {
+    local t=${EPOCHREALTIME/[.,]/}
+    echo "${t#0}"
+}
+
+# median and best of the numbers on stdin, in microseconds, printed in milliseconds
+summary() {
+    sort -n | awk '{ v[NR] = $1 } END { printf "%9.1f %9.1f", v[int((NR + 1) / 2)] / 1000, v[1] / 1000 }'
+}
+
+bench() {
+    local mode=$1
+    shift
+    local source name out start first pid ttfb total
+    for source in "$corpus"/*.qudot; do
+        name=$(basename "$source" .qudot)
+        : > "$work/ttfb"
+        : > "$work/total"
+        for ((i = 0; i < runs; i++)); do
+            rm -rf "$work/out"
+            mkdir "$work/out"
+            out="$work/out/$name.qudotc"
+            start=$(now_us)
+            "$@" "$source" -o "$work/out" "${options[@]}" > /dev/null &
+            pid=$!
+            until [[ -s $out ]]; do
+                if ! kill -0 "$pid" 2> /dev/null; then
+                    [[ -s $out ]] && break
+                    echo "$mode: no output for $name" >&2
+                    exit 1
+                fi
+            done
+            first=$(now_us)
+            wait "$pid"
+            total=$(now_us)
+            echo $((first - start)) >> "$work/ttfb"
+            echo $((total - start)) >> "$work/total"
+        done
+        printf "%-7s %-10s %s %s\n" "$mode" "$name" "$(summary < "$work/ttfb")" "$(summary < "$work/total")"
+    done
+}
+
+options=("$@")
+printf "%-7s %-10s %9s %9s %9s %9s\n" mode example "ttfb ms" best "exit ms" best
+if [[ -f target/quarkus-app/quarkus-run.jar ]]; then
+    bench jvm java -jar target/quarkus-app/quarkus-run.jar
+else
+    echo "jvm: target/quarkus-app/quarkus-run.jar not found, run ./mvnw package" >&2
+fi
+native=$(ls target/*-runner 2> /dev/null | head -1 || true)
+if [[ -n $native ]]; then
+    bench native "$native"
+else
+    echo "native: target/*-runner not found, run ./mvnw package -Pnative" >&2
+fi
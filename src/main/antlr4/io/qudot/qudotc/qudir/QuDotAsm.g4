@@ -12,16 +12,21 @@ gateDeclaration
     ;
 
 instr
-    :   ID NEWLINE                         // {gen($ID);}
-    |   ID a=operand NEWLINE                 // {gen($ID,$operand.start);}
-    |   ID a=operand ',' b=operand NEWLINE // {gen($ID,$a.start,$b.start);}
-    |   ID a=operand ',' b=operand ',' c=operand NEWLINE
-    |   ID a=operand ',' b=operand ',' c=operand ',' d=operand NEWLINE
-    |   ID a=operand ',' b=operand ',' c=operand ',' d=operand ',' f=operand NEWLINE
+    :   op=ID NEWLINE                         // {gen($ID);}
+    |   op=ID a=operand NEWLINE                 // {gen($ID,$operand.start);}
+    |   op=ID a=operand ',' b=operand NEWLINE // {gen($ID,$a.start,$b.start);}
+    |   op=ID a=operand ',' b=operand ',' c=operand NEWLINE
+    |   op=ID a=operand ',' b=operand ',' c=operand ',' d=operand NEWLINE
+    |   op=ID a=operand ',' b=operand ',' c=operand ',' d=operand ',' f=operand NEWLINE
     |   arrayInstr
+    |   maskInstr
     ;
 
-arrayInstr: 'qload_array' a=operand ',' b=operand ',' (INT (','INT)*) NEWLINE;
+// labels rather than child accessors so the assembler also works with parse trees off
+arrayInstr: op='qload_array' a=operand ',' b=operand ',' (elems+=INT (',' elems+=INT)*) NEWLINE;
+
+// a set of at least one qubit, assembled into whichever of qload_seq, qload_mask or qload_array is smallest
+maskInstr: op='qload_mask' a=operand ',' '{' elems+=INT (',' elems+=INT)* '}' NEWLINE;
 
 operand
     :   ID   // basic code label; E.g., "loop"
@@ -31,7 +36,7 @@ operand
     |   INT
     ;
 
-label:   ID ':';
+label:   name=ID ':';
 
 REG :   'r' INT ;
 
@@ -0,0 +1,62 @@
+package io.qudot.qudotc.opt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A straight line run of instructions of one gate, only the first one is a branch target and only the
+ * last one branches.
+ *
+ * @since 0.1.0
+ */
+public class BasicBlock {
+    private final int index;
+    final List<Instr> instrs = new ArrayList<>();
+    final List<BasicBlock> successors = new ArrayList<>(2);
+    final List<BasicBlock> predecessors = new ArrayList<>(2);
+    // entered from outside the gate's own code: a call, a fall through or a branch from another gate
+    boolean entry;
+    // control can leave the gate from the end of this block, other than by ret or halt
+    boolean exit;
+
+    BasicBlock(int index) {
+        this.index = index;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public List<Instr> getInstrs() {
+        return instrs;
+    }
+
+    public Instr getFirst() {
+        return instrs.get(0);
+    }
+
+    public Instr getLast() {
+        return instrs.get(instrs.size() - 1);
+    }
+
+    public List<BasicBlock> getSuccessors() {
+        return successors;
+    }
+
+    public List<BasicBlock> getPredecessors() {
+        return predecessors;
+    }
+
+    public boolean isEntry() {
+        return entry;
+    }
+
+    public boolean isExit() {
+        return exit;
+    }
+
+    @Override
+    public String toString() {
+        return "B" + index + instrs;
+    }
+}
@@ -0,0 +1,614 @@
+package io.qudot.qudotc.opt;
+
+import io.qudot.qudotc.qudir.ConstPoolEntry;
+import io.qudot.qudotc.qudir.IntArrayConstant;
+import io.qudot.qudotc.utils.Bytecodes;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optimizes the classical bookkeeping around the quantum operations. Runs until nothing changes:
+ * <ul>
+ *     <li>constant folding and copy propagation over the basic blocks of each gate, which also turns
+ *     iadd/isub of the constant 1 into incr/decr, qloadr of a constant into qload, a modpow with a
+ *     constant base and modulus into a tload from a table of the powers when RangeAnalysis proves the
+ *     exponent stays within the table, and decides branches on constant conditions</li>
+ *     <li>jump threading, branches to br are retargeted, br to ret or halt is replaced by it and
+ *     conditional branches over a br are inverted</li>
+ *     <li>removal of unreachable code and of stores to registers that are never read</li>
+ * </ul>
+ * Gates referring to more than MAX_REGISTERS registers are left alone.
+ *
+ * @since 0.1.0
+ */
+public class ClassicalOptimizer implements Pass {
+    static final int MAX_REGISTERS = 4096;
+    private static final int MAX_ITERATIONS = 16;
+    // longest chain of br followed when threading a jump
+    private static final int MAX_THREAD = 32;
+    // modpow tables hold a^(2^i) mod n for every i from 0 below this
+    static final int MODPOW_TABLE_SIZE = 32;
+
+    private static final int INT = 1;
+    private static final int BOOL = 2;
+    private static final int NAC = 3;
+
+    @Override
+    public String getName() {
+        return "classical";
+    }
+
+    @Override
+    public boolean run(Program program) {
+        boolean changed = false;
+        for (int i = 0; i < MAX_ITERATIONS; i++) {
+            boolean iteration = false;
+            boolean[] externalTargets = ControlFlowGraph.getExternalTargets(program);
+            for (Gate gate : program.getGates()) {
+                iteration |= propagate(program, gate, externalTargets);
+            }
+            program.compact();
+            iteration |= threadJumps(program);
+            program.compact();
+            externalTargets = ControlFlowGraph.getExternalTargets(program);
+            for (Gate gate : program.getGates()) {
+                ControlFlowGraph cfg = new ControlFlowGraph(gate, externalTargets);
+                iteration |= removeUnreachable(cfg);
+                iteration |= removeDeadStores(program, cfg);
+            }
+            program.compact();
+            if (!iteration) {
+                break;
+            }
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * What is known about each register, a constant of a kind or not a constant, and which register
+     * each one is a copy of
+     */
+    static final class State {
+        final int[] kind;
+        final int[] value;
+        final int[] copy;
+
+        State(int registers) {
+            kind = new int[registers];
+            value = new int[registers];
+            copy = new int[registers];
+            Arrays.fill(kind, NAC);
+            Arrays.fill(copy, -1);
+        }
+
+        State(State other) {
+            kind = other.kind.clone();
+            value = other.value.clone();
+            copy = other.copy.clone();
+        }
+
+        boolean join(State other) {
+            boolean changed = false;
+            for (int r = 0; r < kind.length; r++) {
+                if (kind[r] != NAC && (kind[r] != other.kind[r] || value[r] != other.value[r])) {
+                    kind[r] = NAC;
+                    changed = true;
+                }
+                if (copy[r] >= 0 && copy[r] != other.copy[r]) {
+                    copy[r] = -1;
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+
+        boolean isInt(int r) {
+            return kind[r] == INT;
+        }
+
+        int getValue(int r) {
+            return value[r];
+        }
+
+        void set(int r, int k, int v) {
+            // the VM owns r0
+            kind[r] = r == RegisterEffects.VM_REGISTER ? NAC : k;
+            value[r] = v;
+            copy[r] = -1;
+            for (int i = 0; i < copy.length; i++) {
+                if (copy[i] == r) {
+                    copy[i] = -1;
+                }
+            }
+        }
+    }
+
+    private boolean propagate(Program program, Gate gate, boolean[] externalTargets) {
+        int registers = RegisterEffects.getRegisterCount(program, gate);
+        if (gate.getCode().isEmpty() || registers < 0 || registers > MAX_REGISTERS) {
+            return false;
+        }
+        ControlFlowGraph cfg = new ControlFlowGraph(gate, externalTargets);
+        State[] in = analyze(program, cfg, registers);
+        Map<Instr, long[]> exponents = hasOpcode(gate, Bytecodes.MODPOW)
+                ? new RangeAnalysis(program, cfg, registers).getRanges(Bytecodes.MODPOW, 2) : Map.of();
+
+        BitSet defs = new BitSet();
+        boolean rewritten = false;
+        for (BasicBlock block : cfg.getBlocks()) {
+            if (in[block.getIndex()] == null) {
+                continue;
+            }
+            State state = new State(in[block.getIndex()]);
+            for (Instr instr : block.instrs) {
+                rewritten |= rewrite(program, instr, state, exponents);
+                if (!instr.removed) {
+                    transfer(program, instr, state, defs);
+                }
+            }
+        }
+        return rewritten;
+    }
+
+    private static boolean hasOpcode(Gate gate, int opcode) {
+        for (Instr instr : gate.getCode()) {
+            if (instr.opcode == opcode) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return what is known about the registers at the start of each basic block, null for blocks that are
+     * never reached
+     */
+    static State[] analyze(Program program, ControlFlowGraph cfg, int registers) {
+        List<BasicBlock> blocks = cfg.getBlocks();
+        State[] in = new State[blocks.size()];
+        for (BasicBlock block : blocks) {
+            if (block.entry) {
+                in[block.getIndex()] = new State(registers);
+            }
+        }
+        BitSet defs = new BitSet();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (BasicBlock block : blocks) {
+                if (in[block.getIndex()] == null) {
+                    continue;
+                }
+                State state = new State(in[block.getIndex()]);
+                for (Instr instr : block.instrs) {
+                    transfer(program, instr, state, defs);
+                }
+                // only follow the edge a branch on a known condition takes
+                Instr last = block.getLast();
+                int taken = last.isConditionalBranch() ? evaluateBranch(last, state) : -1;
+                for (BasicBlock successor : block.successors) {
+                    if (taken >= 0 && (successor == cfg.getBlock(last.target)) != (taken == 1)) {
+                        continue;
+                    }
+                    State successorIn = in[successor.getIndex()];
+                    if (successorIn == null) {
+                        in[successor.getIndex()] = new State(state);
+                        changed = true;
+                    } else {
+                        changed |= successorIn.join(state);
+                    }
+                }
+            }
+        }
+        return in;
+    }
+
+    /**
+     * Update state with the effect of instr, defs is scratch space
+     */
+    static void transfer(Program program, Instr instr, State state, BitSet defs) {
+        int[] op = instr.operands;
+        switch (instr.opcode) {
+            case Bytecodes.ILOAD:
+                state.set(op[0], INT, op[1]);
+                break;
+            case Bytecodes.MOVE:
+                int source = state.copy[op[1]] >= 0 ? state.copy[op[1]] : op[1];
+                if (source != op[0]) {
+                    state.set(op[0], state.kind[op[1]], state.value[op[1]]);
+                    if (source != RegisterEffects.VM_REGISTER && op[0] != RegisterEffects.VM_REGISTER) {
+                        state.copy[op[0]] = source;
+                    }
+                }
+                break;
+            case Bytecodes.IADD:
+            case Bytecodes.ISUB:
+            case Bytecodes.IMUL:
+            case Bytecodes.IDIV:
+            case Bytecodes.ILT:
+            case Bytecodes.IEQ:
+                if (state.isInt(op[1]) && state.isInt(op[2]) && (instr.opcode != Bytecodes.IDIV || state.value[op[2]] != 0)) {
+                    int a = state.value[op[1]];
+                    int b = state.value[op[2]];
+                    int kind = instr.opcode == Bytecodes.ILT || instr.opcode == Bytecodes.IEQ ? BOOL : INT;
+                    state.set(op[0], kind, fold(instr.opcode, a, b));
+                } else {
+                    state.set(op[0], NAC, 0);
+                }
+                break;
+            case Bytecodes.INCR:
+            case Bytecodes.DECR:
+                if (state.isInt(op[0])) {
+                    state.set(op[0], INT, state.value[op[0]] + (instr.opcode == Bytecodes.INCR ? 1 : -1));
+                } else {
+                    state.set(op[0], NAC, 0);
+                }
+                break;
+            case Bytecodes.MODPOW:
+            case Bytecodes.TLOAD: {
+                Integer value = getTableValue(program, instr, state);
+                state.set(op[0], value != null ? INT : NAC, value != null ? value : 0);
+                break;
+            }
+            default:
+                defs.clear();
+                RegisterEffects.defs(program, instr, defs);
+                for (int r = defs.nextSetBit(0); r >= 0; r = defs.nextSetBit(r + 1)) {
+                    state.set(r, NAC, 0);
+                }
+        }
+    }
+
+    private static int fold(int opcode, int a, int b) {
+        switch (opcode) {
+            case Bytecodes.IADD: return a + b;
+            case Bytecodes.ISUB: return a - b;
+            case Bytecodes.IMUL: return a * b;
+            case Bytecodes.IDIV: return a / b;
+            case Bytecodes.ILT: return a < b ? 1 : 0;
+            default: return a == b ? 1 : 0;
+        }
+    }
+
+    /**
+     * @return a^(2^i) mod n for i from 0 below MODPOW_TABLE_SIZE, the powers a modpow computes
+     */
+    static int[] getModPowTable(int a, int n) {
+        int[] table = new int[MODPOW_TABLE_SIZE];
+        long x = Math.floorMod(a, n);
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (int) x;
+            x = x * x % n;
+        }
+        return table;
+    }
+
+    /**
+     * @return the constant a modpow or tload loads or null if it is only known at run time
+     */
+    private static Integer getTableValue(Program program, Instr instr, State state) {
+        int[] op = instr.operands;
+        if (instr.opcode == Bytecodes.MODPOW) {
+            if (!state.isInt(op[1]) || !state.isInt(op[2]) || !state.isInt(op[3]) || state.value[op[3]] <= 0
+                    || state.value[op[2]] < 0 || state.value[op[2]] >= MODPOW_TABLE_SIZE) {
+                return null;
+            }
+            return getModPowTable(state.value[op[1]], state.value[op[3]])[state.value[op[2]]];
+        }
+        ConstPoolEntry entry = op[1] >= 0 && op[1] < program.getConstPool().size()
+                ? program.getConstPool().get(op[1]) : null;
+        if (!(entry instanceof IntArrayConstant) || !state.isInt(op[2])) {
+            return null;
+        }
+        IntArrayConstant table = (IntArrayConstant) entry;
+        int index = state.value[op[2]];
+        return index >= 0 && index < table.size() ? table.get(index) : null;
+    }
+
+    // rewrite one instruction using what is known before it runs, exponents bounds the exponents of modpow
+    private boolean rewrite(Program program, Instr instr, State state, Map<Instr, long[]> exponents) {
+        boolean changed = false;
+        int[] op = instr.operands;
+        for (int i = 0; i < op.length; i++) {
+            if (RegisterEffects.isUseOperand(program, instr.opcode, i) && state.copy[op[i]] >= 0) {
+                op[i] = state.copy[op[i]];
+                changed = true;
+            }
+        }
+
+        switch (instr.opcode) {
+            case Bytecodes.IADD:
+            case Bytecodes.ISUB:
+            case Bytecodes.IMUL:
+            case Bytecodes.IDIV:
+                if (state.isInt(op[1]) && state.isInt(op[2]) && (instr.opcode != Bytecodes.IDIV || state.value[op[2]] != 0)) {
+                    instr.replace(Bytecodes.ILOAD, null, op[0], fold(instr.opcode, state.value[op[1]], state.value[op[2]]));
+                    return true;
+                }
+                return simplifyArithmetic(instr, state) || changed;
+            case Bytecodes.MOVE:
+                if (op[0] == op[1]) {
+                    instr.remove();
+                    return true;
+                }
+                if (state.isInt(op[1])) {
+                    instr.replace(Bytecodes.ILOAD, null, op[0], state.value[op[1]]);
+                    return true;
+                }
+                return changed;
+            case Bytecodes.QLOADR:
+                if (state.isInt(op[1])) {
+                    instr.replace(Bytecodes.QLOAD, null, op[0], state.value[op[1]]);
+                    return true;
+                }
+                return changed;
+            case Bytecodes.MODPOW:
+            case Bytecodes.TLOAD: {
+                Integer value = getTableValue(program, instr, state);
+                if (value != null) {
+                    instr.replace(Bytecodes.ILOAD, null, op[0], value);
+                    return true;
+                }
+                // an exponent that may fall outside the table stays a modpow
+                long[] exponent = exponents.get(instr);
+                if (instr.opcode == Bytecodes.MODPOW && state.isInt(op[1]) && state.isInt(op[3])
+                        && state.value[op[3]] > 0 && !state.isInt(op[2]) && exponent != null
+                        && exponent[0] >= 0 && exponent[1] < MODPOW_TABLE_SIZE) {
+                    IntArrayConstant table = new IntArrayConstant(
+                            getModPowTable(state.value[op[1]], state.value[op[3]]));
+                    int poolIndex = program.getConstPool().indexOf(table);
+                    if (poolIndex < 0) {
+                        poolIndex = program.addConstant(table);
+                    }
+                    instr.replace(Bytecodes.TLOAD, null, op[0], poolIndex, op[2]);
+                    return true;
+                }
+                return changed;
+            }
+            default:
+                if (instr.isConditionalBranch()) {
+                    int taken = evaluateBranch(instr, state);
+                    if (taken == 1) {
+                        instr.replace(Bytecodes.BR, instr.target, 0);
+                        return true;
+                    } else if (taken == 0) {
+                        instr.remove();
+                        return true;
+                    }
+                }
+                return changed;
+        }
+    }
+
+    // x + 1 -> incr, x - 1 -> decr, x + 0, x - 0 and x * 1 -> move
+    private boolean simplifyArithmetic(Instr instr, State state) {
+        int[] op = instr.operands;
+        int rd = op[0];
+        int a = op[1];
+        int b = op[2];
+        boolean bIs = state.isInt(b);
+        boolean aIs = state.isInt(a);
+        switch (instr.opcode) {
+            case Bytecodes.IADD:
+                if (bIs && state.value[b] == 1 && a == rd || aIs && state.value[a] == 1 && b == rd) {
+                    instr.replace(Bytecodes.INCR, null, rd);
+                    return true;
+                }
+                if (bIs && state.value[b] == 0 || aIs && state.value[a] == 0) {
+                    return toMove(instr, rd, bIs && state.value[b] == 0 ? a : b);
+                }
+                return false;
+            case Bytecodes.ISUB:
+                if (bIs && state.value[b] == 1 && a == rd) {
+                    instr.replace(Bytecodes.DECR, null, rd);
+                    return true;
+                }
+                if (bIs && state.value[b] == 0) {
+                    return toMove(instr, rd, a);
+                }
+                return false;
+            case Bytecodes.IMUL:
+                if (bIs && state.value[b] == 1 || aIs && state.value[a] == 1) {
+                    return toMove(instr, rd, bIs && state.value[b] == 1 ? a : b);
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean toMove(Instr instr, int rd, int source) {
+        if (rd == source) {
+            instr.remove();
+        } else {
+            instr.replace(Bytecodes.MOVE, null, rd, source);
+        }
+        return true;
+    }
+
+    /**
+     * @return 1 if the branch is always taken, 0 if it never is and -1 if it is not known
+     */
+    private static int evaluateBranch(Instr instr, State state) {
+        int[] op = instr.operands;
+        int r = op[0];
+        switch (instr.opcode) {
+            case Bytecodes.BRT:
+            case Bytecodes.BRF:
+                if (state.kind[r] != BOOL) {
+                    return -1;
+                }
+                return (state.value[r] != 0) == (instr.opcode == Bytecodes.BRT) ? 1 : 0;
+            case Bytecodes.BREQ:
+            case Bytecodes.BRNEQ:
+                if (r == op[1]) {
+                    return instr.opcode == Bytecodes.BREQ ? 1 : 0;
+                }
+                if (!state.isInt(r) || !state.isInt(op[1])) {
+                    return -1;
+                }
+                return (state.value[r] == state.value[op[1]]) == (instr.opcode == Bytecodes.BREQ) ? 1 : 0;
+            default:
+                if (!state.isInt(r)) {
+                    return -1;
+                }
+                int v = state.value[r];
+                switch (instr.opcode) {
+                    case Bytecodes.BRGEZ: return v >= 0 ? 1 : 0;
+                    case Bytecodes.BRGTZ: return v > 0 ? 1 : 0;
+                    case Bytecodes.BRLEZ: return v <= 0 ? 1 : 0;
+                    case Bytecodes.BRLTZ: return v < 0 ? 1 : 0;
+                    default: return -1;
+                }
+        }
+    }
+
+    private boolean threadJumps(Program program) {
+        boolean changed = false;
+        int size = program.number();
+        for (int g = 0; g < program.getGates().size(); g++) {
+            for (Instr instr : program.getGates().get(g).getCode()) {
+                if (instr.target == null) {
+                    continue;
+                }
+                Instr target = instr.target;
+                for (int hops = 0; target.opcode == Bytecodes.BR && target != instr && hops < MAX_THREAD; hops++) {
+                    target = target.target;
+                }
+                if (target != instr.target && target != instr) {
+                    instr.target = target;
+                    changed = true;
+                }
+                // ret reads the arguments of its own gate so it is only copied within the gate
+                if (instr.opcode == Bytecodes.BR && (target.opcode == Bytecodes.HALT
+                        || target.opcode == Bytecodes.RET && target.gateIndex == g)) {
+                    instr.replace(target.opcode, null);
+                    changed = true;
+                }
+            }
+        }
+
+        boolean[] targets = new boolean[size + 1];
+        List<Instr> code = program.getCode();
+        for (Instr instr : code) {
+            if (instr.target != null) {
+                targets[instr.target.index] = true;
+            }
+        }
+        for (int i = 0; i < code.size(); i++) {
+            Instr instr = code.get(i);
+            if (instr.target == null || instr.removed) {
+                continue;
+            }
+            Instr next = i + 1 < code.size() ? code.get(i + 1) : program.getEnd();
+            if (instr.target == next && !RegisterEffects.isDefOperand(instr.opcode, 0)) {
+                // branching to the next instruction does nothing, unless the branch also updates a register
+                instr.remove();
+                changed = true;
+            } else if (instr.isConditionalBranch() && next.opcode == Bytecodes.BR && !targets[next.index]
+                    && next.gateIndex == instr.gateIndex && Instr.invertBranch(instr.opcode) >= 0) {
+                // brX c, L1; br L2; L1: -> brY c, L2; L1:
+                Instr afterNext = i + 2 < code.size() ? code.get(i + 2) : program.getEnd();
+                if (instr.target == afterNext) {
+                    instr.replace(Instr.invertBranch(instr.opcode), next.target, instr.operands);
+                    next.remove();
+                    changed = true;
+                    i++;
+                }
+            }
+        }
+        return changed;
+    }
+
+    private boolean removeUnreachable(ControlFlowGraph cfg) {
+        boolean changed = false;
+        boolean[] reachable = cfg.getReachable();
+        for (BasicBlock block : cfg.getBlocks()) {
+            if (!reachable[block.getIndex()]) {
+                for (Instr instr : block.instrs) {
+                    instr.remove();
+                }
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private boolean removeDeadStores(Program program, ControlFlowGraph cfg) {
+        Gate gate = cfg.getGate();
+        int registers = RegisterEffects.getRegisterCount(program, gate);
+        if (gate.getCode().isEmpty() || registers < 0 || registers > MAX_REGISTERS) {
+            return false;
+        }
+        List<BasicBlock> blocks = cfg.getBlocks();
+        BitSet[] liveIn = new BitSet[blocks.size()];
+        BitSet[] liveOut = new BitSet[blocks.size()];
+        for (int b = 0; b < blocks.size(); b++) {
+            liveIn[b] = new BitSet(registers);
+            liveOut[b] = new BitSet(registers);
+        }
+
+        BitSet defs = new BitSet();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int b = blocks.size() - 1; b >= 0; b--) {
+                BasicBlock block = blocks.get(b);
+                if (block.instrs.get(0).removed) {
+                    continue;
+                }
+                BitSet out = liveOut[b];
+                if (block.exit) {
+                    out.set(0, registers);
+                }
+                for (BasicBlock successor : block.successors) {
+                    out.or(liveIn[successor.getIndex()]);
+                }
+                BitSet live = (BitSet) out.clone();
+                for (int i = block.instrs.size() - 1; i >= 0; i--) {
+                    step(program, gate, block.instrs.get(i), live, defs);
+                }
+                if (!live.equals(liveIn[b])) {
+                    liveIn[b] = live;
+                    changed = true;
+                }
+            }
+        }
+
+        boolean removed = false;
+        for (int b = 0; b < blocks.size(); b++) {
+            BitSet live = (BitSet) liveOut[b].clone();
+            List<Instr> instrs = blocks.get(b).instrs;
+            for (int i = instrs.size() - 1; i >= 0; i--) {
+                Instr instr = instrs.get(i);
+                if (instr.removed) {
+                    continue;
+                }
+                if (RegisterEffects.isPure(instr.opcode)) {
+                    defs.clear();
+                    RegisterEffects.defs(program, instr, defs);
+                    if (!defs.intersects(live) && !defs.get(RegisterEffects.VM_REGISTER)) {
+                        instr.remove();
+                        removed = true;
+                        continue;
+                    }
+                }
+                step(program, gate, instr, live, defs);
+            }
+        }
+        return removed;
+    }
+
+    // live before instr from live after it
+    private void step(Program program, Gate gate, Instr instr, BitSet live, BitSet defs) {
+        defs.clear();
+        RegisterEffects.defs(program, instr, defs);
+        live.andNot(defs);
+        RegisterEffects.uses(program, gate, instr, live);
+        live.set(RegisterEffects.VM_REGISTER);
+    }
+}
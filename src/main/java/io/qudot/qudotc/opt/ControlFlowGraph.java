@@ -0,0 +1,148 @@
+package io.qudot.qudotc.opt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Basic blocks of one gate. Blocks start at the gate entry, at branch targets and after branches and
+ * terminators, and are kept in layout order. Edges that leave the gate, by running off its end or by
+ * branching into other code, mark the block as an exit; blocks that other code branches into are entries.
+ *
+ * @since 0.1.0
+ */
+public class ControlFlowGraph {
+    private final Gate gate;
+    private final List<BasicBlock> blocks = new ArrayList<>();
+    // block starting at each instruction of the gate, by Instr.index minus the index of the first one
+    private BasicBlock[] leaders = new BasicBlock[0];
+    private int first;
+    private int gateIndex;
+
+    /**
+     * @param gate the gate, without removed instructions and numbered by Program.number
+     * @param externalTargets by Instr.index, instructions branched to from other gates
+     */
+    public ControlFlowGraph(Gate gate, boolean[] externalTargets) {
+        this.gate = gate;
+        List<Instr> code = gate.getCode();
+        if (code.isEmpty()) {
+            return;
+        }
+        first = code.get(0).index;
+        gateIndex = code.get(0).gateIndex;
+
+        boolean[] starts = new boolean[code.size()];
+        starts[0] = true;
+        for (int i = 0; i < code.size(); i++) {
+            Instr instr = code.get(i);
+            if (instr.target != null && isInGate(instr.target)) {
+                starts[instr.target.index - first] = true;
+            }
+            if ((instr.target != null || instr.isTerminator()) && i + 1 < code.size()) {
+                starts[i + 1] = true;
+            }
+        }
+
+        leaders = new BasicBlock[code.size()];
+        BasicBlock block = null;
+        for (int i = 0; i < code.size(); i++) {
+            Instr instr = code.get(i);
+            if (starts[i]) {
+                block = new BasicBlock(blocks.size());
+                block.entry = externalTargets[instr.index];
+                blocks.add(block);
+                leaders[i] = block;
+            }
+            block.instrs.add(instr);
+        }
+        // a call enters at the top of the gate, code before the first gate is only reached by branches
+        blocks.get(0).entry |= gate.getSymbol() != null;
+
+        for (int b = 0; b < blocks.size(); b++) {
+            BasicBlock current = blocks.get(b);
+            Instr last = current.getLast();
+            if (last.target != null) {
+                BasicBlock target = getBlock(last.target);
+                if (target != null) {
+                    addEdge(current, target);
+                } else {
+                    current.exit = true;
+                }
+            }
+            if (!last.isTerminator()) {
+                if (b + 1 < blocks.size()) {
+                    addEdge(current, blocks.get(b + 1));
+                } else {
+                    current.exit = true;
+                }
+            }
+        }
+    }
+
+    private boolean isInGate(Instr instr) {
+        return instr.gateIndex == gateIndex && instr.index >= first && instr.index - first < gate.getCode().size();
+    }
+
+    private static void addEdge(BasicBlock from, BasicBlock to) {
+        if (!from.successors.contains(to)) {
+            from.successors.add(to);
+            to.predecessors.add(from);
+        }
+    }
+
+    public Gate getGate() {
+        return gate;
+    }
+
+    public List<BasicBlock> getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * @return the block starting with instr or null if instr does not start a block of this gate
+     */
+    public BasicBlock getBlock(Instr instr) {
+        return isInGate(instr) ? leaders[instr.index - first] : null;
+    }
+
+    /**
+     * @return for each block index, true if the block can be reached from an entry
+     */
+    public boolean[] getReachable() {
+        boolean[] reachable = new boolean[blocks.size()];
+        Deque<BasicBlock> work = new ArrayDeque<>();
+        for (BasicBlock block : blocks) {
+            if (block.entry) {
+                reachable[block.getIndex()] = true;
+                work.push(block);
+            }
+        }
+        while (!work.isEmpty()) {
+            for (BasicBlock successor : work.pop().successors) {
+                if (!reachable[successor.getIndex()]) {
+                    reachable[successor.getIndex()] = true;
+                    work.push(successor);
+                }
+            }
+        }
+        return reachable;
+    }
+
+    /**
+     * Numbers the program and finds the instructions branched to from outside the gate they are in
+     * @return by Instr.index, true for instructions that are targets of branches from other gates
+     */
+    public static boolean[] getExternalTargets(Program program) {
+        boolean[] targets = new boolean[program.number() + 1];
+        for (Gate gate : program.getGates()) {
+            for (Instr instr : gate.getCode()) {
+                if (instr.target != null && instr.target.gateIndex != instr.gateIndex) {
+                    targets[instr.target.index] = true;
+                }
+            }
+        }
+        return targets;
+    }
+}
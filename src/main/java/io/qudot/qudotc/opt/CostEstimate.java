@@ -0,0 +1,464 @@
+package io.qudot.qudotc.opt;
+
+import io.qudot.qudotc.utils.Bytecodes;
+import io.qudot.qudotc.utils.TextUtils;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The cost of running a compiled program on a state vector VM, computed by CostEstimator. Counts are per
+ * ensemble shot, every shot runs the whole program. Each qubit operation sweeps the 2^numQubits amplitudes
+ * of the state and each paths prints up to 2^numQubits states. Expected counts are the best guess,
+ * upper counts a bound every shot stays within, infinite when the program has no static bound.
+ *
+ * @since 0.1.0
+ */
+public class CostEstimate {
+    // bytes of one amplitude, a complex number of two doubles
+    public static final int AMPLITUDE_BYTES = 16;
+    private static final int MAX_LOOPS_PRINTED = 10;
+    private static final String ROW = "  %-20s %14s %14s %14s%n";
+
+    public enum Mode {
+        // the classical part of the program was run, every count is exact
+        EXACT,
+        // a branch depends on a value only known at run time, counts come from the code itself
+        STATIC,
+        // the program ran past the step budget without halting
+        RUNAWAY;
+
+        public String getName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * Instructions by what they cost the VM
+     */
+    public enum OpClass {
+        CLASSICAL, CONTROL, QUBIT_LOAD, GATE, CIRCUIT_GATE, ARITHMETIC, MEASURE, OUTPUT;
+
+        public String getName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+
+        public static OpClass of(int opcode) {
+            switch (opcode) {
+                case Bytecodes.BR:
+                case Bytecodes.BRT:
+                case Bytecodes.BRF:
+                case Bytecodes.BREQ:
+                case Bytecodes.BRNEQ:
+                case Bytecodes.BRGEZ:
+                case Bytecodes.BRGTZ:
+                case Bytecodes.BRLEZ:
+                case Bytecodes.BRLTZ:
+                case Bytecodes.INCR_BREQ:
+                case Bytecodes.IADD_BREQ:
+                case Bytecodes.CALL:
+                case Bytecodes.RET:
+                case Bytecodes.HALT:
+                    return CONTROL;
+                case Bytecodes.QLOAD:
+                case Bytecodes.QLOAD_ARRAY:
+                case Bytecodes.QLOAD_SEQUENCE:
+                case Bytecodes.QLOADR:
+                case Bytecodes.QLOAD_MASK:
+                    return QUBIT_LOAD;
+                case Bytecodes.SWAP_AB:
+                case Bytecodes.CNOT:
+                case Bytecodes.CROT:
+                case Bytecodes.TOFF:
+                case Bytecodes.XON:
+                case Bytecodes.YON:
+                case Bytecodes.ZON:
+                case Bytecodes.SON:
+                case Bytecodes.SDAGON:
+                case Bytecodes.TON:
+                case Bytecodes.TDAGON:
+                case Bytecodes.PHION:
+                case Bytecodes.PHIDAGON:
+                case Bytecodes.PHION_T:
+                case Bytecodes.HON:
+                case Bytecodes.SWAPON:
+                case Bytecodes.XONR:
+                case Bytecodes.YONR:
+                case Bytecodes.ZONR:
+                case Bytecodes.SONR:
+                case Bytecodes.TONR:
+                case Bytecodes.HONR:
+                case Bytecodes.SDAGONR:
+                case Bytecodes.TDAGONR:
+                case Bytecodes.CNOTR:
+                    return GATE;
+                case Bytecodes.X:
+                case Bytecodes.Y:
+                case Bytecodes.Z:
+                case Bytecodes.S:
+                case Bytecodes.SDAG:
+                case Bytecodes.T:
+                case Bytecodes.TDAG:
+                case Bytecodes.PHI:
+                case Bytecodes.PHIDAG:
+                case Bytecodes.PHI_T:
+                case Bytecodes.H:
+                case Bytecodes.SWAP:
+                    return CIRCUIT_GATE;
+                case Bytecodes.IQUADD:
+                case Bytecodes.IQUADD_MOD:
+                case Bytecodes.IQUMUL_MOD:
+                case Bytecodes.CIQUADD_MOD:
+                case Bytecodes.CIQUMUL_MOD:
+                case Bytecodes.QFT:
+                case Bytecodes.QFT_INV:
+                    return ARITHMETIC;
+                case Bytecodes.MEASURE:
+                case Bytecodes.MON:
+                case Bytecodes.SEMI_CNOT:
+                case Bytecodes.SEMI_CROT:
+                case Bytecodes.SEMI_CROT_T:
+                    return MEASURE;
+                case Bytecodes.PATHS:
+                case Bytecodes.PRINTR:
+                    return OUTPUT;
+                default:
+                    return CLASSICAL;
+            }
+        }
+    }
+
+    /**
+     * What one shot executes
+     */
+    public static final class Counts {
+        final double[] instructions = new double[OpClass.values().length];
+        double qubitOperations;
+        double paths;
+        double measurements;
+        double prints;
+        // frames on the call stack at its deepest, main is 1
+        double callDepth;
+
+        void add(Counts other, double times) {
+            for (int i = 0; i < instructions.length; i++) {
+                instructions[i] += other.instructions[i] * times;
+            }
+            qubitOperations += other.qubitOperations * times;
+            paths += other.paths * times;
+            measurements += other.measurements * times;
+            prints += other.prints * times;
+        }
+
+        void setUnbounded() {
+            Arrays.fill(instructions, Double.POSITIVE_INFINITY);
+            qubitOperations = Double.POSITIVE_INFINITY;
+            paths = Double.POSITIVE_INFINITY;
+            measurements = Double.POSITIVE_INFINITY;
+            prints = Double.POSITIVE_INFINITY;
+        }
+
+        public double getInstructions() {
+            double sum = 0;
+            for (double n : instructions) {
+                sum += n;
+            }
+            return sum;
+        }
+
+        public double getInstructions(OpClass opClass) {
+            return instructions[opClass.ordinal()];
+        }
+
+        public double getQubitOperations() {
+            return qubitOperations;
+        }
+
+        public double getPaths() {
+            return paths;
+        }
+
+        /**
+         * @return measure, mon and semi-quantum instructions, each prints or records one outcome
+         */
+        public double getMeasurements() {
+            return measurements;
+        }
+
+        public double getPrints() {
+            return prints;
+        }
+
+        public double getCallDepth() {
+            return callDepth;
+        }
+    }
+
+    /**
+     * A loop of the program, found by a branch back to its head
+     */
+    public static final class Loop {
+        private final String gate;
+        private final int offset;
+        private final long iterations;
+
+        Loop(String gate, int offset, long iterations) {
+            this.gate = gate;
+            this.offset = offset;
+            this.iterations = iterations;
+        }
+
+        public String getGate() {
+            return gate;
+        }
+
+        /**
+         * @return position of the loop head among the instructions of its gate
+         */
+        public int getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return times one shot branched back to the head, -1 if only known at run time
+         */
+        public long getIterations() {
+            return iterations;
+        }
+    }
+
+    private final int numQubits;
+    private final int ensembleSize;
+    private final Mode mode;
+    private final String reason;
+    private final Counts expected;
+    private final Counts upper;
+    private final List<Loop> loops;
+    private final List<String> warnings = new ArrayList<>();
+
+    CostEstimate(int numQubits, int ensembleSize, Mode mode, String reason, Counts expected, Counts upper,
+                 List<Loop> loops) {
+        this.numQubits = numQubits;
+        this.ensembleSize = ensembleSize;
+        this.mode = mode;
+        this.reason = reason;
+        this.expected = expected;
+        this.upper = upper;
+        this.loops = loops;
+    }
+
+    void addWarning(String warning) {
+        warnings.add(warning);
+    }
+
+    public int getNumQubits() {
+        return numQubits;
+    }
+
+    public int getEnsembleSize() {
+        return ensembleSize;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return why the estimate is not exact, null if it is
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    public Counts getExpected() {
+        return expected;
+    }
+
+    public Counts getUpper() {
+        return upper;
+    }
+
+    public List<Loop> getLoops() {
+        return Collections.unmodifiableList(loops);
+    }
+
+    /**
+     * @return why a scheduler should not run the program as it is: output, memory or run time out of reach
+     */
+    public List<String> getWarnings() {
+        return Collections.unmodifiableList(warnings);
+    }
+
+    /**
+     * @return amplitudes of the state vector, 2^numQubits, infinite for more than 1023 qubits
+     */
+    public double getAmplitudes() {
+        return Math.pow(2, numQubits);
+    }
+
+    /**
+     * @return log2 of a count times 2^numQubits, which stays finite when the product does not
+     */
+    public double getLog2Scaled(double count) {
+        return Math.log(count) / Math.log(2) + numQubits;
+    }
+
+    public double getStateBytes() {
+        return getAmplitudes() * AMPLITUDE_BYTES;
+    }
+
+    /**
+     * @return amplitudes read and written by one shot
+     */
+    public double getAmplitudeUpdates(Counts counts) {
+        return scale(counts.qubitOperations);
+    }
+
+    /**
+     * @return states printed by the paths of one shot
+     */
+    public double getPathsStates(Counts counts) {
+        return scale(counts.paths);
+    }
+
+    /**
+     * Print the estimate per shot and over the ensemble
+     * @param out the stream printed to
+     * @param source name of the compiled source
+     */
+    public void printText(PrintStream out, String source) {
+        out.printf("%s: %s estimate, %d qubits, ensemble %d, state vector %s%n", source, mode.getName(),
+                numQubits, ensembleSize, formatStateBytes());
+        // the reason of a runaway is its warning
+        if (mode == Mode.STATIC) {
+            out.printf("  %s%n", reason);
+        }
+        out.printf(ROW, "per shot", "expected", "upper", "ensemble");
+        printRow(out, "instructions", expected.getInstructions(), upper.getInstructions());
+        for (OpClass opClass : OpClass.values()) {
+            if (expected.getInstructions(opClass) > 0) {
+                printRow(out, "  " + opClass.getName(), expected.getInstructions(opClass),
+                        upper.getInstructions(opClass));
+            }
+        }
+        printRow(out, "qubit operations", expected.qubitOperations, upper.qubitOperations);
+        out.printf(ROW, "amplitude updates", formatScaled(expected.qubitOperations),
+                formatScaled(upper.qubitOperations), formatScaled(expected.qubitOperations * ensembleSize));
+        printRow(out, "paths", expected.paths, upper.paths);
+        out.printf(ROW, "paths states", formatScaled(expected.paths), formatScaled(upper.paths),
+                formatScaled(expected.paths * ensembleSize));
+        printRow(out, "measurements", expected.measurements, upper.measurements);
+        printRow(out, "prints", expected.prints, upper.prints);
+        out.printf(ROW, "call depth", format(expected.callDepth), format(upper.callDepth), "");
+        for (int i = 0; i < loops.size() && i < MAX_LOOPS_PRINTED; i++) {
+            Loop loop = loops.get(i);
+            out.printf("  loop %s+%d: %s%n", loop.gate, loop.offset, loop.iterations < 0
+                    ? "iterations only known at run time, " + CostEstimator.DEFAULT_TRIP_COUNT + " assumed"
+                    : loop.iterations + " iterations");
+        }
+        if (loops.size() > MAX_LOOPS_PRINTED) {
+            out.printf("  and %d more loops%n", loops.size() - MAX_LOOPS_PRINTED);
+        }
+        for (String warning : warnings) {
+            out.printf("  warning: %s%n", warning);
+        }
+    }
+
+    private void printRow(PrintStream out, String name, double expected, double upper) {
+        out.printf(ROW, name, format(expected), format(upper), format(expected * ensembleSize));
+    }
+
+    // a count times 2^numQubits, none of nothing even when 2^numQubits does not fit a double
+    private double scale(double count) {
+        return count == 0 ? 0 : count * getAmplitudes();
+    }
+
+    /**
+     * @return a count times 2^numQubits, as a power of two once it no longer fits a double
+     */
+    String formatScaled(double count) {
+        double value = scale(count);
+        if (Double.isInfinite(count) || !Double.isInfinite(value)) {
+            return format(value);
+        }
+        return String.format(Locale.ROOT, "2^%.1f", getLog2Scaled(count));
+    }
+
+    String formatStateBytes() {
+        return numQubits < 60 ? TextUtils.formatBytes(getStateBytes()) : "2^" + (numQubits + 4) + " B";
+    }
+
+    /**
+     * @return the estimate as a JSON object, null for unbounded counts and those past the range of a double
+     */
+    public String toJson(String source) {
+        StringBuilder json = new StringBuilder("{\"source\":");
+        TextUtils.appendJsonString(json, source);
+        json.append(",\"mode\":\"").append(mode.getName()).append("\",\"reason\":");
+        if (reason == null) {
+            json.append("null");
+        } else {
+            TextUtils.appendJsonString(json, reason);
+        }
+        json.append(",\"numQubits\":").append(numQubits)
+                .append(",\"ensembleSize\":").append(ensembleSize)
+                .append(",\"stateBytes\":").append(formatJson(getStateBytes()))
+                .append(",\"expected\":");
+        appendCounts(json, expected, 1);
+        json.append(",\"upper\":");
+        appendCounts(json, upper, 1);
+        json.append(",\"ensembleExpected\":");
+        appendCounts(json, expected, ensembleSize);
+        json.append(",\"ensembleUpper\":");
+        appendCounts(json, upper, ensembleSize);
+        json.append(",\"loops\":[");
+        for (int i = 0; i < loops.size(); i++) {
+            Loop loop = loops.get(i);
+            json.append(i > 0 ? "," : "").append("{\"gate\":");
+            TextUtils.appendJsonString(json, loop.gate);
+            json.append(",\"offset\":").append(loop.offset)
+                    .append(",\"iterations\":").append(loop.iterations < 0 ? "null" : String.valueOf(loop.iterations))
+                    .append('}');
+        }
+        json.append("],\"warnings\":[");
+        for (int i = 0; i < warnings.size(); i++) {
+            json.append(i > 0 ? "," : "");
+            TextUtils.appendJsonString(json, warnings.get(i));
+        }
+        return json.append("]}").toString();
+    }
+
+    private void appendCounts(StringBuilder json, Counts counts, double shots) {
+        json.append("{\"instructions\":").append(formatJson(counts.getInstructions() * shots))
+                .append(",\"byClass\":{");
+        for (OpClass opClass : OpClass.values()) {
+            json.append(opClass.ordinal() > 0 ? ",\"" : "\"").append(opClass.getName()).append("\":")
+                    .append(formatJson(counts.getInstructions(opClass) * shots));
+        }
+        json.append("},\"qubitOperations\":").append(formatJson(counts.qubitOperations * shots))
+                .append(",\"amplitudeUpdates\":").append(formatJson(getAmplitudeUpdates(counts) * shots))
+                .append(",\"paths\":").append(formatJson(counts.paths * shots))
+                .append(",\"pathsStates\":").append(formatJson(getPathsStates(counts) * shots))
+                .append(",\"measurements\":").append(formatJson(counts.measurements * shots))
+                .append(",\"prints\":").append(formatJson(counts.prints * shots))
+                .append(",\"callDepth\":").append(formatJson(counts.callDepth))
+                .append('}');
+    }
+
+    // whole numbers up to 2^53 are written exactly, larger ones in exponent form
+    static String format(double value) {
+        if (Double.isInfinite(value)) {
+            return "unbounded";
+        }
+        return value < 0x1p53 && value == Math.rint(value)
+                ? String.valueOf((long) value) : String.format(Locale.ROOT, "%.3e", value);
+    }
+
+    private static String formatJson(double value) {
+        return Double.isInfinite(value) || Double.isNaN(value) ? "null" : format(value);
+    }
+}
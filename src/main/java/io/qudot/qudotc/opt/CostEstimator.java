@@ -0,0 +1,519 @@
+package io.qudot.qudotc.opt;
+
+import io.qudot.qudotc.qudir.ConstPoolEntry;
+import io.qudot.qudotc.qudir.GateAsmSymbol;
+import io.qudot.qudotc.qudir.IntArrayConstant;
+import io.qudot.qudotc.utils.Bytecodes;
+import io.qudot.qudotc.utils.TextUtils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Estimates what a program costs a state vector VM before it is run, so a scheduler can pack jobs onto
+ * simulation nodes and reject runaway ones. Measurements never write classical registers, so every shot
+ * takes the same classical path: the estimator runs the classical instructions the way -u evaluates them,
+ * main starting with the number of qubits in r0, and counts every instruction executed, the qubits each
+ * quantum instruction acts on and the iterations of every loop. Those counts are exact.
+ * <p>
+ * When a branch depends on a value only known at run time the counts come from the code instead. Expected
+ * counts take every instruction of a gate once and loop bodies DEFAULT_TRIP_COUNT times per level of nesting,
+ * a register gate acting on one qubit. Upper counts take every instruction once and a register gate acting
+ * on every qubit, they are unbounded for gates with loops, recursive gates and branches between gates.
+ *
+ * @since 0.1.0
+ */
+public class CostEstimator {
+    public static final int DEFAULT_STEP_BUDGET = 10_000_000;
+    public static final int DEFAULT_TRIP_COUNT = 16;
+    public static final int MAX_CALL_DEPTH = 1024;
+    // beyond these the output or the memory of a job is out of reach of any node
+    public static final double MAX_OUTPUT_LINES = 0x1p32;
+    public static final double MAX_STATE_BYTES = 0x1p40;
+
+    private final int stepBudget;
+    private Program program;
+    private List<Instr> code;
+    private int numQubits;
+    // first instruction and layout position of each gate, by constant pool index
+    private final Map<Integer, Integer> entries = new HashMap<>();
+    private final Map<Integer, Integer> gateIndexes = new HashMap<>();
+    private String reason;
+
+    /**
+     * @param stepBudget instructions one shot may execute before it is taken for a runaway
+     */
+    public CostEstimator(int stepBudget) {
+        this.stepBudget = stepBudget;
+    }
+
+    /**
+     * @param program a program decoded from an assembler, compacted and renumbered by the estimate
+     * @return the estimate of one run of the program
+     */
+    public CostEstimate estimate(Program program) {
+        this.program = program;
+        program.compact();
+        program.number();
+        code = program.getCode();
+        numQubits = program.getNumQubits() != null ? program.getNumQubits() : 0;
+        int ensembleSize = program.getEnsembleSize() != null ? program.getEnsembleSize() : 1;
+        entries.clear();
+        gateIndexes.clear();
+        List<Gate> gates = program.getGates();
+        int next = code.size();
+        int main = 0;
+        for (int g = gates.size() - 1; g >= 0; g--) {
+            Gate gate = gates.get(g);
+            if (!gate.getCode().isEmpty()) {
+                next = gate.getCode().get(0).index;
+            }
+            if (gate.getSymbol() != null) {
+                entries.put(gate.getPoolIndex(), next);
+                gateIndexes.put(gate.getPoolIndex(), g);
+                if (gate.getSymbol() == program.getMainGate()) {
+                    main = g;
+                }
+            }
+        }
+
+        CostEstimate.Counts counts = new CostEstimate.Counts();
+        Map<Instr, long[]> backEdges = new LinkedHashMap<>();
+        reason = null;
+        CostEstimate.Mode mode = gates.isEmpty() ? CostEstimate.Mode.EXACT : execute(main, counts, backEdges);
+        CostEstimate estimate;
+        if (mode == CostEstimate.Mode.EXACT) {
+            List<CostEstimate.Loop> loops = new ArrayList<>();
+            for (Map.Entry<Instr, long[]> entry : backEdges.entrySet()) {
+                loops.add(getLoop(entry.getKey(), entry.getValue()[0]));
+            }
+            estimate = new CostEstimate(numQubits, ensembleSize, mode, null, counts, counts, loops);
+        } else if (mode == CostEstimate.Mode.RUNAWAY) {
+            CostEstimate.Counts upper = new CostEstimate.Counts();
+            upper.setUnbounded();
+            upper.callDepth = Double.POSITIVE_INFINITY;
+            estimate = new CostEstimate(numQubits, ensembleSize, mode, reason, counts, upper, new ArrayList<>());
+            estimate.addWarning(reason);
+        } else {
+            List<CostEstimate.Loop> loops = new ArrayList<>();
+            CostEstimate.Counts[] bounds = estimateGate(main, new HashMap<>(), new HashSet<>(), new HashSet<>(),
+                    loops);
+            estimate = new CostEstimate(numQubits, ensembleSize, mode, reason, bounds[0], bounds[1], loops);
+            if (Double.isInfinite(bounds[1].getInstructions())) {
+                estimate.addWarning("no static upper bound, loops or calls only end on values known at run time");
+            }
+        }
+        addWarnings(estimate);
+        return estimate;
+    }
+
+    private static void addWarnings(CostEstimate estimate) {
+        // compared as logarithms, 2^numQubits need not fit a double
+        double log2 = Math.log(2);
+        if (estimate.getLog2Scaled(CostEstimate.AMPLITUDE_BYTES) > Math.log(MAX_STATE_BYTES) / log2) {
+            estimate.addWarning("the state vector of 2^" + estimate.getNumQubits() + " amplitudes needs "
+                    + estimate.formatStateBytes() + ", more than " + TextUtils.formatBytes(MAX_STATE_BYTES));
+        }
+        double paths = estimate.getExpected().getPaths() * estimate.getEnsembleSize();
+        if (paths > 0 && estimate.getLog2Scaled(paths) > Math.log(MAX_OUTPUT_LINES) / log2) {
+            estimate.addWarning("paths would print " + estimate.formatScaled(paths)
+                    + " states over the ensemble, more than " + CostEstimate.format(MAX_OUTPUT_LINES));
+        }
+        double measurements = estimate.getExpected().getMeasurements() * estimate.getEnsembleSize();
+        if (measurements > MAX_OUTPUT_LINES) {
+            estimate.addWarning("measurements would record " + CostEstimate.format(measurements)
+                    + " outcomes over the ensemble, more than " + CostEstimate.format(MAX_OUTPUT_LINES));
+        }
+    }
+
+    private CostEstimate.Loop getLoop(Instr head, long iterations) {
+        Gate gate = program.getGates().get(head.gateIndex);
+        return new CostEstimate.Loop(gate.getName(), head.index - gate.getCode().get(0).index, iterations);
+    }
+
+    /**
+     * The registers of a gate being run, null where a value is only known at run time
+     */
+    private static final class Frame {
+        Object[] registers;
+        // qubits held by each qubit register, 0 before it is loaded
+        int[] qubits;
+        final int returnPc;
+        final int firstArg;
+        final Object[] args;
+
+        Frame(GateAsmSymbol symbol, int returnPc, int firstArg) {
+            registers = new Object[symbol == null ? 1 : symbol.getArgs() + symbol.getRegs() + 1];
+            qubits = new int[symbol == null ? 0 : symbol.getQubitRegs()];
+            args = new Object[symbol == null ? 0 : symbol.getArgs()];
+            this.returnPc = returnPc;
+            this.firstArg = firstArg;
+        }
+
+        Object get(int r) {
+            return r >= 0 && r < registers.length ? registers[r] : null;
+        }
+
+        void set(int r, Object value) {
+            if (r < 0) {
+                return;
+            }
+            if (r >= registers.length) {
+                registers = Arrays.copyOf(registers, r + 1);
+            }
+            // the fold of an unknown value
+            registers[r] = value instanceof Integer || value instanceof Boolean ? value : null;
+        }
+
+        int getQubits(int q) {
+            return q >= 0 && q < qubits.length && qubits[q] > 0 ? qubits[q] : 1;
+        }
+
+        void setQubits(int q, int n) {
+            if (q < 0) {
+                return;
+            }
+            if (q >= qubits.length) {
+                qubits = Arrays.copyOf(qubits, q + 1);
+            }
+            qubits[q] = n;
+        }
+    }
+
+    /**
+     * Run the classical part of one shot from a gate
+     * @return EXACT if the program ended, STATIC if a branch or call is only known at run time and
+     * RUNAWAY if it ran out of steps or call depth, with the reason
+     */
+    private CostEstimate.Mode execute(int gateIndex, CostEstimate.Counts counts, Map<Instr, long[]> backEdges) {
+        Gate main = program.getGates().get(gateIndex);
+        Frame frame = new Frame(main.getSymbol(), -1, 0);
+        if (program.getNumQubits() != null) {
+            frame.set(RegisterEffects.VM_REGISTER, numQubits);
+        }
+        Deque<Frame> stack = new ArrayDeque<>();
+        counts.callDepth = 1;
+        int pc = main.getSymbol() != null ? entries.get(main.getPoolIndex()) : 0;
+        for (long steps = 0; pc < code.size(); steps++) {
+            if (steps >= stepBudget) {
+                reason = "ran " + stepBudget + " instructions without halting, counts are those executed";
+                return CostEstimate.Mode.RUNAWAY;
+            }
+            Instr instr = code.get(pc++);
+            count(counts, instr, frame::getQubits, 1);
+            int[] op = instr.operands;
+            switch (instr.opcode) {
+                case Bytecodes.ILOAD:
+                    frame.set(op[0], op[1]);
+                    break;
+                case Bytecodes.MOVE:
+                    frame.set(op[0], frame.get(op[1]));
+                    break;
+                case Bytecodes.IADD:
+                case Bytecodes.ISUB:
+                case Bytecodes.IMUL:
+                case Bytecodes.IDIV:
+                case Bytecodes.ILT:
+                case Bytecodes.IEQ:
+                    frame.set(op[0], PartialEvaluator.fold(instr.opcode, frame.get(op[1]), frame.get(op[2])));
+                    break;
+                case Bytecodes.INCR:
+                case Bytecodes.DECR:
+                    frame.set(op[0], PartialEvaluator.fold(Bytecodes.IADD, frame.get(op[0]),
+                            instr.opcode == Bytecodes.INCR ? 1 : -1));
+                    break;
+                case Bytecodes.MODPOW:
+                case Bytecodes.TLOAD:
+                    frame.set(op[0], getTableValue(instr, frame));
+                    break;
+                case Bytecodes.QLOAD:
+                case Bytecodes.QLOADR:
+                case Bytecodes.XONR:
+                case Bytecodes.YONR:
+                case Bytecodes.ZONR:
+                case Bytecodes.SONR:
+                case Bytecodes.TONR:
+                case Bytecodes.HONR:
+                case Bytecodes.SDAGONR:
+                case Bytecodes.TDAGONR:
+                    frame.setQubits(op[0], 1);
+                    break;
+                case Bytecodes.CNOTR:
+                    frame.setQubits(op[0], 1);
+                    frame.setQubits(op[2], 1);
+                    break;
+                case Bytecodes.QLOAD_SEQUENCE:
+                    frame.setQubits(op[0], Math.abs(op[2] - op[1]) + 1);
+                    break;
+                case Bytecodes.QLOAD_ARRAY:
+                    frame.setQubits(op[0], op[1]);
+                    break;
+                case Bytecodes.QLOAD_MASK: {
+                    int n = 0;
+                    for (int i = 3; i < op.length; i++) {
+                        n += Integer.bitCount(op[i]);
+                    }
+                    frame.setQubits(op[0], n);
+                    break;
+                }
+                case Bytecodes.CALL: {
+                    GateAsmSymbol callee = program.getGateSymbol(op[0]);
+                    if (callee == null || !entries.containsKey(op[0])) {
+                        reason = "call to constant pool entry " + op[0] + ", which is not a gate";
+                        return CostEstimate.Mode.STATIC;
+                    }
+                    if (stack.size() + 1 >= MAX_CALL_DEPTH) {
+                        reason = "calls nest deeper than " + MAX_CALL_DEPTH + " gates";
+                        return CostEstimate.Mode.RUNAWAY;
+                    }
+                    Frame calleeFrame = new Frame(callee, pc, op[1]);
+                    for (int i = 0; i < calleeFrame.args.length; i++) {
+                        calleeFrame.args[i] = op[1] == RegisterEffects.VM_REGISTER ? null : frame.get(op[1] + i);
+                        calleeFrame.set(i + 1, calleeFrame.args[i]);
+                    }
+                    stack.push(frame);
+                    frame = calleeFrame;
+                    counts.callDepth = Math.max(counts.callDepth, stack.size() + 1);
+                    pc = entries.get(op[0]);
+                    break;
+                }
+                case Bytecodes.RET: {
+                    if (stack.isEmpty()) {
+                        return CostEstimate.Mode.EXACT;
+                    }
+                    Frame caller = stack.pop();
+                    caller.set(RegisterEffects.VM_REGISTER, frame.get(RegisterEffects.VM_REGISTER));
+                    // arguments the callee wrote may or may not be seen by the caller
+                    for (int i = 0; i < frame.args.length && frame.firstArg != RegisterEffects.VM_REGISTER; i++) {
+                        if (!Objects.equals(frame.get(i + 1), frame.args[i])) {
+                            caller.set(frame.firstArg + i, null);
+                        }
+                    }
+                    pc = frame.returnPc;
+                    frame = caller;
+                    break;
+                }
+                case Bytecodes.HALT:
+                    return CostEstimate.Mode.EXACT;
+                default:
+                    if (instr.target != null) {
+                        Boolean taken = evaluateBranch(instr, frame);
+                        if (taken == null) {
+                            reason = "the branch at " + getLocation(instr) + " depends on a value only known at run time";
+                            return CostEstimate.Mode.STATIC;
+                        }
+                        if (taken) {
+                            if (instr.target.index <= instr.index) {
+                                backEdges.computeIfAbsent(instr.target, k -> new long[1])[0]++;
+                            }
+                            pc = instr.target.index;
+                        }
+                    } else {
+                        for (int i = 0; i < op.length; i++) {
+                            if (RegisterEffects.isDefOperand(instr.opcode, i)) {
+                                frame.set(op[i], null);
+                            }
+                        }
+                    }
+                    break;
+            }
+        }
+        return CostEstimate.Mode.EXACT;
+    }
+
+    /**
+     * @return whether a branch is taken, null if that is only known at run time. Fused branches also
+     * update the register they increment.
+     */
+    private Boolean evaluateBranch(Instr instr, Frame frame) {
+        int[] op = instr.operands;
+        switch (instr.opcode) {
+            case Bytecodes.BR:
+                return true;
+            case Bytecodes.INCR_BREQ: {
+                Object value = PartialEvaluator.fold(Bytecodes.IADD, frame.get(op[0]), 1);
+                frame.set(op[0], value);
+                return PartialEvaluator.isTaken(Bytecodes.BREQ, value, frame.get(op[1]));
+            }
+            case Bytecodes.IADD_BREQ: {
+                Object value = PartialEvaluator.fold(Bytecodes.IADD, frame.get(op[0]), frame.get(op[1]));
+                frame.set(op[0], value);
+                return PartialEvaluator.isTaken(Bytecodes.BREQ, value, frame.get(op[2]));
+            }
+            default:
+                return PartialEvaluator.isTaken(instr.opcode, frame.get(op[0]),
+                        op.length > 2 ? frame.get(op[1]) : null);
+        }
+    }
+
+    // the value a modpow or tload loads, null if it is only known at run time
+    private Integer getTableValue(Instr instr, Frame frame) {
+        int[] op = instr.operands;
+        if (instr.opcode == Bytecodes.MODPOW) {
+            Object a = frame.get(op[1]);
+            Object i = frame.get(op[2]);
+            Object n = frame.get(op[3]);
+            if (!(a instanceof Integer) || !(i instanceof Integer) || !(n instanceof Integer) || (Integer) n <= 0
+                    || (Integer) i < 0 || (Integer) i >= ClassicalOptimizer.MODPOW_TABLE_SIZE) {
+                return null;
+            }
+            return ClassicalOptimizer.getModPowTable((Integer) a, (Integer) n)[(Integer) i];
+        }
+        ConstPoolEntry entry = op[1] >= 0 && op[1] < program.getConstPool().size()
+                ? program.getConstPool().get(op[1]) : null;
+        Object i = frame.get(op[2]);
+        if (!(entry instanceof IntArrayConstant) || !(i instanceof Integer)) {
+            return null;
+        }
+        IntArrayConstant table = (IntArrayConstant) entry;
+        int index = (Integer) i;
+        return index >= 0 && index < table.size() ? table.get(index) : null;
+    }
+
+    private String getLocation(Instr instr) {
+        Gate gate = program.getGates().get(instr.gateIndex);
+        return gate.getName() + "+" + (instr.index - gate.getCode().get(0).index);
+    }
+
+    /**
+     * Add an instruction to counts
+     * @param qubits the qubits held by a qubit register
+     * @param times how often the instruction runs
+     */
+    private void count(CostEstimate.Counts counts, Instr instr, IntUnaryOperator qubits, double times) {
+        CostEstimate.OpClass opClass = CostEstimate.OpClass.of(instr.opcode);
+        counts.instructions[opClass.ordinal()] += times;
+        counts.qubitOperations += getQubitOperations(instr, opClass, qubits) * times;
+        if (opClass == CostEstimate.OpClass.MEASURE) {
+            counts.measurements += times;
+        } else if (instr.opcode == Bytecodes.PATHS) {
+            counts.paths += times;
+        } else if (instr.opcode == Bytecodes.PRINTR) {
+            counts.prints += times;
+        }
+    }
+
+    /**
+     * @return the single qubit operations an instruction does, a gate on a register of n qubits does n and
+     * an instruction on the whole circuit one per qubit
+     */
+    private double getQubitOperations(Instr instr, CostEstimate.OpClass opClass, IntUnaryOperator qubits) {
+        switch (opClass) {
+            case CIRCUIT_GATE:
+            case ARITHMETIC:
+                return Math.max(numQubits, 1);
+            case GATE:
+            case MEASURE:
+                if (instr.opcode == Bytecodes.MEASURE) {
+                    return Math.max(numQubits, 1);
+                }
+                // superinstructions load a single qubit first
+                if (instr.opcode >= Bytecodes.XONR && instr.opcode <= Bytecodes.CNOTR) {
+                    return 1;
+                }
+                Bytecodes.Instruction instruction = program.getInstructions()[instr.opcode];
+                int max = 1;
+                for (int i = 0; i < instruction.getN(); i++) {
+                    if (instruction.getType()[i] == Bytecodes.QUREG) {
+                        max = Math.max(max, qubits.applyAsInt(instr.operands[i]));
+                    }
+                }
+                return max;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Counts of a gate from its code, with the gates it calls and falls through into
+     * @param active the gates being estimated, a call to one of them is recursive
+     * @param heads loop heads already added to loops
+     * @return the expected and upper counts
+     */
+    private CostEstimate.Counts[] estimateGate(int gateIndex, Map<Integer, CostEstimate.Counts[]> memo,
+                                               Set<Integer> active, Set<Instr> heads,
+                                               List<CostEstimate.Loop> loops) {
+        CostEstimate.Counts[] counts = memo.get(gateIndex);
+        if (counts != null) {
+            return counts;
+        }
+        if (active.contains(gateIndex) || active.size() >= MAX_CALL_DEPTH) {
+            CostEstimate.Counts upper = new CostEstimate.Counts();
+            upper.setUnbounded();
+            upper.callDepth = Double.POSITIVE_INFINITY;
+            return new CostEstimate.Counts[] {new CostEstimate.Counts(), upper};
+        }
+        active.add(gateIndex);
+        Gate gate = program.getGates().get(gateIndex);
+        List<Instr> gateCode = gate.getCode();
+        CostEstimate.Counts expected = new CostEstimate.Counts();
+        CostEstimate.Counts upper = new CostEstimate.Counts();
+        expected.callDepth = 1;
+        upper.callDepth = 1;
+        boolean bounded = true;
+
+        // loop bodies by the branches back to their heads, nesting depth changes at the head and after the branch
+        int first = gateCode.isEmpty() ? 0 : gateCode.get(0).index;
+        int[] nesting = new int[gateCode.size() + 1];
+        for (int i = 0; i < gateCode.size(); i++) {
+            Instr target = gateCode.get(i).target;
+            if (target == null || target == program.getEnd()) {
+                continue;
+            }
+            if (target.gateIndex != gateIndex) {
+                bounded = false;
+            } else if (target.index <= gateCode.get(i).index) {
+                nesting[target.index - first]++;
+                nesting[i + 1]--;
+                bounded = false;
+                if (heads.add(target)) {
+                    loops.add(getLoop(target, -1));
+                }
+            }
+        }
+        int depth = 0;
+        for (int i = 0; i < gateCode.size(); i++) {
+            Instr instr = gateCode.get(i);
+            depth += nesting[i];
+            double times = Math.pow(DEFAULT_TRIP_COUNT, depth);
+            count(expected, instr, q -> 1, times);
+            count(upper, instr, q -> Math.max(numQubits, 1), 1);
+            if (instr.opcode == Bytecodes.CALL) {
+                Integer callee = gateIndexes.get(instr.operands[0]);
+                if (callee == null) {
+                    bounded = false;
+                    continue;
+                }
+                CostEstimate.Counts[] calleeCounts = estimateGate(callee, memo, active, heads, loops);
+                expected.add(calleeCounts[0], times);
+                upper.add(calleeCounts[1], 1);
+                expected.callDepth = Math.max(expected.callDepth, 1 + calleeCounts[0].callDepth);
+                upper.callDepth = Math.max(upper.callDepth, 1 + calleeCounts[1].callDepth);
+            }
+        }
+        if (gate.fallsThrough() && gateIndex + 1 < program.getGates().size()) {
+            CostEstimate.Counts[] nextCounts = estimateGate(gateIndex + 1, memo, active, heads, loops);
+            expected.add(nextCounts[0], 1);
+            upper.add(nextCounts[1], 1);
+            expected.callDepth = Math.max(expected.callDepth, nextCounts[0].callDepth);
+            upper.callDepth = Math.max(upper.callDepth, nextCounts[1].callDepth);
+        }
+        if (!bounded) {
+            upper.setUnbounded();
+        }
+        active.remove(gateIndex);
+        counts = new CostEstimate.Counts[] {expected, upper};
+        memo.put(gateIndex, counts);
+        return counts;
+    }
+}
@@ -0,0 +1,69 @@
+package io.qudot.qudotc.opt;
+
+import io.qudot.qudotc.qudir.GateAsmSymbol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The code of one gate, from its .gate declaration up to the next one. Code that appears before the
+ * first .gate is kept in a gate without a symbol. A gate whose last instruction is not a terminator
+ * falls through into the gate laid out after it, exactly as the VM would execute it.
+ *
+ * @since 0.1.0
+ */
+public class Gate {
+    private final GateAsmSymbol symbol;
+    private int poolIndex;
+    private final List<Instr> code = new ArrayList<>();
+
+    public Gate(GateAsmSymbol symbol, int poolIndex) {
+        this.symbol = symbol;
+        this.poolIndex = poolIndex;
+    }
+
+    /**
+     * @return the constant pool entry of the gate or null for code before the first gate
+     */
+    public GateAsmSymbol getSymbol() {
+        return symbol;
+    }
+
+    /**
+     * @return the constant pool index of the gate or -1 for code before the first gate
+     */
+    public int getPoolIndex() {
+        return poolIndex;
+    }
+
+    void setPoolIndex(int poolIndex) {
+        this.poolIndex = poolIndex;
+    }
+
+    public String getName() {
+        return symbol == null ? "<prologue>" : symbol.getName();
+    }
+
+    public List<Instr> getCode() {
+        return code;
+    }
+
+    /**
+     * @return the number of the highest register the gate frame holds, r0 up to its arguments and locals
+     */
+    public int getFrameSize() {
+        return symbol == null ? 0 : symbol.getArgs() + symbol.getRegs();
+    }
+
+    /**
+     * @return true if execution can run off the end of the gate into the next one
+     */
+    public boolean fallsThrough() {
+        return code.isEmpty() || !code.get(code.size() - 1).isTerminator();
+    }
+
+    @Override
+    public String toString() {
+        return getName() + " (" + code.size() + " instructions)";
+    }
+}
@@ -0,0 +1,433 @@
+package io.qudot.qudotc.opt;
+
+import io.qudot.qudotc.qudir.GateAsmSymbol;
+import io.qudot.qudotc.utils.Bytecodes;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copies the bodies of small gates, and of larger gates with a single call site, into their callers so
+ * the VM does not set up a frame for every call. Registers and qubit registers of the callee are renamed
+ * into free registers past the ones the caller uses and the caller's regs and qubit_regs grow to hold
+ * them, arguments are read directly from the registers the call passes and every ret becomes a branch to
+ * the instruction after the call. Gates are inlined callees first, so helpers of helpers are flattened.
+ * <p>
+ * A call stays a call if the callee is recursive, larger than the thresholds, runs off its end, writes its
+ * arguments, reads a local register or qubit register before writing it, or returns r0 without writing
+ * it while the caller still reads r0 after the call.
+ *
+ * @since 0.1.0
+ */
+public class Inliner implements Pass {
+    public static final int DEFAULT_MAX_SIZE = 32;
+    public static final int DEFAULT_MAX_SINGLE_CALLER_SIZE = 1024;
+
+    private final int maxSize;
+    private final int maxSingleCallerSize;
+    private Program program;
+    private final BitSet qubitDefs = new BitSet();
+
+    /**
+     * @param maxSize largest gate, in instructions, that is inlined at every call site
+     * @param maxSingleCallerSize largest gate, in instructions, that is inlined into its only call site
+     */
+    public Inliner(int maxSize, int maxSingleCallerSize) {
+        this.maxSize = maxSize;
+        this.maxSingleCallerSize = maxSingleCallerSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getMaxSingleCallerSize() {
+        return maxSingleCallerSize;
+    }
+
+    @Override
+    public String getName() {
+        return "inline";
+    }
+
+    @Override
+    public boolean run(Program program) {
+        this.program = program;
+        program.compact();
+        Map<Integer, Gate> gates = new HashMap<>();
+        Map<Integer, Integer> calls = new HashMap<>();
+        for (Gate gate : program.getGates()) {
+            if (gate.getSymbol() != null) {
+                gates.put(gate.getPoolIndex(), gate);
+            }
+            for (Instr instr : gate.getCode()) {
+                if (instr.opcode == Bytecodes.CALL) {
+                    calls.merge(instr.operands[0], 1, Integer::sum);
+                }
+            }
+        }
+        List<Gate> order = new ArrayList<>();
+        BitSet recursive = new BitSet();
+        sortCalleesFirst(gates, order, recursive);
+
+        boolean changed = false;
+        boolean numbered = false;
+        Map<Integer, Summary> summaries = new HashMap<>();
+        for (Gate caller : order) {
+            if (!numbered) {
+                program.number();
+                numbered = true;
+            }
+            if (inlineCalls(caller, gates, calls, recursive, summaries)) {
+                numbered = false;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Order the gates so callees come before their callers, with Tarjan's algorithm. Gates in a cycle of
+     * calls are recursive.
+     */
+    private void sortCalleesFirst(Map<Integer, Gate> gates, List<Gate> order, BitSet recursive) {
+        List<Gate> nodes = new ArrayList<>();
+        Map<Integer, Integer> ids = new HashMap<>();
+        for (Gate gate : program.getGates()) {
+            if (gate.getSymbol() != null) {
+                ids.put(gate.getPoolIndex(), nodes.size());
+                nodes.add(gate);
+            }
+        }
+        int[][] edges = new int[nodes.size()][];
+        for (int v = 0; v < nodes.size(); v++) {
+            List<Integer> callees = new ArrayList<>();
+            for (Instr instr : nodes.get(v).getCode()) {
+                Integer callee = instr.opcode == Bytecodes.CALL ? ids.get(instr.operands[0]) : null;
+                if (callee != null) {
+                    callees.add(callee);
+                    if (callee == v) {
+                        recursive.set(v);
+                    }
+                }
+            }
+            edges[v] = callees.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        int[] index = new int[nodes.size()];
+        int[] low = new int[nodes.size()];
+        int[] next = new int[nodes.size()];
+        boolean[] onStack = new boolean[nodes.size()];
+        Arrays.fill(index, -1);
+        Deque<Integer> stack = new ArrayDeque<>();
+        Deque<Integer> path = new ArrayDeque<>();
+        int counter = 0;
+        for (int root = 0; root < nodes.size(); root++) {
+            if (index[root] >= 0) {
+                continue;
+            }
+            path.push(root);
+            index[root] = low[root] = counter++;
+            stack.push(root);
+            onStack[root] = true;
+            while (!path.isEmpty()) {
+                int v = path.peek();
+                if (next[v] < edges[v].length) {
+                    int w = edges[v][next[v]++];
+                    if (index[w] < 0) {
+                        index[w] = low[w] = counter++;
+                        stack.push(w);
+                        onStack[w] = true;
+                        path.push(w);
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+                    continue;
+                }
+                path.pop();
+                if (!path.isEmpty()) {
+                    low[path.peek()] = Math.min(low[path.peek()], low[v]);
+                }
+                if (low[v] == index[v]) {
+                    List<Integer> component = new ArrayList<>();
+                    int w;
+                    do {
+                        w = stack.pop();
+                        onStack[w] = false;
+                        component.add(w);
+                    } while (w != v);
+                    for (int member : component) {
+                        if (component.size() > 1) {
+                            recursive.set(member);
+                        }
+                        order.add(nodes.get(member));
+                    }
+                }
+            }
+        }
+        // recursive is indexed by pool index from here on
+        BitSet byPoolIndex = new BitSet();
+        for (int v = recursive.nextSetBit(0); v >= 0; v = recursive.nextSetBit(v + 1)) {
+            byPoolIndex.set(nodes.get(v).getPoolIndex());
+        }
+        recursive.clear();
+        recursive.or(byPoolIndex);
+    }
+
+    /**
+     * What a caller needs to know to inline a gate, null if the gate cannot be inlined
+     */
+    private static final class Summary {
+        int registers;
+        int qubitRegisters;
+        // r0 is returned on some path without being written, so the caller sees a value set by the VM
+        boolean returnsInitialR0;
+    }
+
+    private Summary summarize(Gate gate, BitSet recursive) {
+        GateAsmSymbol symbol = gate.getSymbol();
+        List<Instr> code = gate.getCode();
+        if (symbol == null || recursive.get(gate.getPoolIndex()) || code.isEmpty() || gate.fallsThrough()) {
+            return null;
+        }
+        Summary summary = new Summary();
+        summary.registers = RegisterEffects.getRegisterCount(program, gate);
+        summary.qubitRegisters = RegisterEffects.getQubitRegisterCount(program, gate);
+        if (summary.registers < 0 || summary.qubitRegisters < 0) {
+            return null;
+        }
+        int gateIndex = code.get(0).gateIndex;
+        BitSet defs = new BitSet();
+        for (Instr instr : code) {
+            if (instr.target != null && instr.target.gateIndex != gateIndex) {
+                return null;
+            }
+            RegisterEffects.defs(program, instr, defs);
+        }
+        if (defs.nextSetBit(1) >= 0 && defs.nextSetBit(1) <= symbol.getArgs()) {
+            return null;
+        }
+
+        ControlFlowGraph cfg = new ControlFlowGraph(gate, new boolean[program.getEnd().index + 1]);
+        BitSet live = getLiveIn(gate, cfg, summary.registers, false);
+        live.clear(1, symbol.getArgs() + 1);
+        if (!live.isEmpty()) {
+            return null;
+        }
+        summary.returnsInitialR0 = getLiveIn(gate, cfg, summary.registers, true).get(RegisterEffects.VM_REGISTER);
+        return summary;
+    }
+
+    private boolean inlineCalls(Gate caller, Map<Integer, Gate> gates, Map<Integer, Integer> calls,
+                                BitSet recursive, Map<Integer, Summary> summaries) {
+        GateAsmSymbol symbol = caller.getSymbol();
+        List<Instr> code = caller.getCode();
+        int registerBase = RegisterEffects.getRegisterCount(program, caller);
+        int qubitBase = RegisterEffects.getQubitRegisterCount(program, caller);
+        if (registerBase < 0 || qubitBase < 0) {
+            return false;
+        }
+        ControlFlowGraph cfg = null;
+        BitSet[] liveOut = null;
+        int registers = 0;
+        int qubitRegisters = 0;
+        boolean changed = false;
+
+        // from the last call backwards so positions of the calls still to inline do not move
+        for (int pos = code.size() - 2; pos >= 0; pos--) {
+            Instr call = code.get(pos);
+            Gate callee = call.opcode == Bytecodes.CALL ? gates.get(call.operands[0]) : null;
+            if (callee == null || callee == caller) {
+                continue;
+            }
+            int size = callee.getCode().size();
+            if (size > maxSize && (size > maxSingleCallerSize || calls.getOrDefault(call.operands[0], 0) != 1)) {
+                continue;
+            }
+            Summary summary = summaries.computeIfAbsent(callee.getPoolIndex(), k -> summarize(callee, recursive));
+            int args = callee.getSymbol().getArgs();
+            if (summary == null || (args > 0 && call.operands[1] == RegisterEffects.VM_REGISTER)) {
+                continue;
+            }
+            if (summary.returnsInitialR0) {
+                if (cfg == null) {
+                    cfg = new ControlFlowGraph(caller, ControlFlowGraph.getExternalTargets(program));
+                    liveOut = getLiveOut(caller, cfg, registerBase, true);
+                }
+                if (isLiveAfter(caller, cfg, liveOut, registerBase, call, RegisterEffects.VM_REGISTER)) {
+                    continue;
+                }
+            }
+
+            calls.merge(callee.getPoolIndex(), -1, Integer::sum);
+            inline(caller, pos, callee, registerBase, qubitBase);
+            for (Instr instr : callee.getCode()) {
+                if (instr.opcode == Bytecodes.CALL) {
+                    calls.merge(instr.operands[0], 1, Integer::sum);
+                }
+            }
+            registers = Math.max(registers, summary.registers - 1 - args);
+            qubitRegisters = Math.max(qubitRegisters, summary.qubitRegisters);
+            changed = true;
+        }
+
+        if (changed) {
+            symbol.setRegs(Math.max(symbol.getRegs(), registerBase + registers - 1 - symbol.getArgs()));
+            symbol.setQubitRegs(Math.max(symbol.getQubitRegs(), qubitBase + qubitRegisters));
+        }
+        return changed;
+    }
+
+    /**
+     * Replace the call at pos with a renamed copy of the callee, the call instruction becomes the first
+     * instruction of the copy so branches to the call enter it
+     */
+    private void inline(Gate caller, int pos, Gate callee, int registerBase, int qubitBase) {
+        List<Instr> code = caller.getCode();
+        Instr call = code.get(pos);
+        Instr continuation = code.get(pos + 1);
+        int firstArg = call.operands[1];
+        int args = callee.getSymbol().getArgs();
+        List<Instr> body = callee.getCode();
+        int first = body.get(0).index;
+
+        List<Instr> copies = new ArrayList<>(body.size());
+        for (Instr instr : body) {
+            Instr copy;
+            if (instr.opcode == Bytecodes.RET) {
+                copy = new Instr(Bytecodes.BR, continuation, 0);
+            } else {
+                copy = instr.copy();
+                Bytecodes.Instruction instruction = program.getInstructions()[copy.opcode];
+                for (int i = 0; i < Math.min(instruction.getN(), copy.operands.length); i++) {
+                    int operand = copy.operands[i];
+                    if (instruction.getType()[i] == Bytecodes.REG && operand != RegisterEffects.VM_REGISTER) {
+                        copy.operands[i] = operand <= args ? firstArg + operand - 1 : registerBase + operand - args - 1;
+                    } else if (instruction.getType()[i] == Bytecodes.QUREG) {
+                        copy.operands[i] = qubitBase + operand;
+                    }
+                }
+            }
+            copies.add(copy);
+        }
+        for (Instr copy : copies) {
+            if (copy.target != null && copy.target != continuation) {
+                copy.target = copies.get(copy.target.index - first);
+            }
+        }
+        // the last ret falls through to the instruction after the call
+        Instr last = copies.get(copies.size() - 1);
+        if (last.opcode == Bytecodes.BR && last.target == continuation) {
+            last.remove();
+        }
+
+        Instr head = copies.get(0);
+        call.replace(head.opcode, head.target, head.operands);
+        if (head.isRemoved()) {
+            call.remove();
+        }
+        for (Instr copy : copies) {
+            if (copy.target == head) {
+                copy.target = call;
+            }
+        }
+        code.addAll(pos + 1, copies.subList(1, copies.size()));
+    }
+
+    /**
+     * Liveness of registers, then qubit registers numbered from registers on, at the end of every block.
+     * Everything is live where control leaves the gate.
+     * @param retReadsR0 false to ignore that ret returns r0
+     */
+    private BitSet[] getLiveOut(Gate gate, ControlFlowGraph cfg, int registers, boolean retReadsR0) {
+        List<BasicBlock> blocks = cfg.getBlocks();
+        int all = registers + RegisterEffects.getQubitRegisterCount(program, gate);
+        BitSet[] liveIn = new BitSet[blocks.size()];
+        BitSet[] liveOut = new BitSet[blocks.size()];
+        for (int b = 0; b < blocks.size(); b++) {
+            liveIn[b] = new BitSet();
+            liveOut[b] = new BitSet();
+        }
+        BitSet scratch = new BitSet();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int b = blocks.size() - 1; b >= 0; b--) {
+                BasicBlock block = blocks.get(b);
+                BitSet out = liveOut[b];
+                if (block.exit) {
+                    out.set(0, all);
+                }
+                for (BasicBlock successor : block.successors) {
+                    out.or(liveIn[successor.getIndex()]);
+                }
+                BitSet live = (BitSet) out.clone();
+                for (int i = block.instrs.size() - 1; i >= 0; i--) {
+                    step(gate, block.instrs.get(i), registers, retReadsR0, live, scratch);
+                }
+                if (!live.equals(liveIn[b])) {
+                    liveIn[b] = live;
+                    changed = true;
+                }
+            }
+        }
+        return liveOut;
+    }
+
+    private BitSet getLiveIn(Gate gate, ControlFlowGraph cfg, int registers, boolean retReadsR0) {
+        BitSet[] liveOut = getLiveOut(gate, cfg, registers, retReadsR0);
+        BasicBlock entry = cfg.getBlocks().get(0);
+        BitSet live = (BitSet) liveOut[0].clone();
+        BitSet scratch = new BitSet();
+        for (int i = entry.instrs.size() - 1; i >= 0; i--) {
+            step(gate, entry.instrs.get(i), registers, retReadsR0, live, scratch);
+        }
+        return live;
+    }
+
+    private boolean isLiveAfter(Gate gate, ControlFlowGraph cfg, BitSet[] liveOut, int registers,
+                                Instr instr, int register) {
+        for (BasicBlock block : cfg.getBlocks()) {
+            int pos = block.instrs.indexOf(instr);
+            if (pos >= 0) {
+                BitSet live = (BitSet) liveOut[block.getIndex()].clone();
+                BitSet scratch = new BitSet();
+                for (int i = block.instrs.size() - 1; i > pos; i--) {
+                    step(gate, block.instrs.get(i), registers, true, live, scratch);
+                }
+                return live.get(register);
+            }
+        }
+        return true;
+    }
+
+    // live before instr from live after it
+    private void step(Gate gate, Instr instr, int registers, boolean retReadsR0, BitSet live, BitSet scratch) {
+        Bytecodes.Instruction instruction = program.getInstructions()[instr.opcode];
+        scratch.clear();
+        RegisterEffects.defs(program, instr, scratch);
+        live.andNot(scratch);
+        qubitDefs.clear();
+        RegisterEffects.qubitDefs(instr, qubitDefs);
+        for (int q = qubitDefs.nextSetBit(0); q >= 0; q = qubitDefs.nextSetBit(q + 1)) {
+            live.clear(registers + q);
+        }
+        scratch.clear();
+        RegisterEffects.uses(program, gate, instr, scratch);
+        if (instr.opcode == Bytecodes.RET && !retReadsR0) {
+            scratch.clear(RegisterEffects.VM_REGISTER);
+        }
+        live.or(scratch);
+        for (int i = 0; i < Math.min(instruction.getN(), instr.operands.length); i++) {
+            if (instruction.getType()[i] == Bytecodes.QUREG && !qubitDefs.get(instr.operands[i])) {
+                live.set(registers + instr.operands[i]);
+            }
+        }
+    }
+}
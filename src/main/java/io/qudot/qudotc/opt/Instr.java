@@ -0,0 +1,138 @@
+package io.qudot.qudotc.opt;
+
+import io.qudot.qudotc.utils.Bytecodes;
+
+import java.util.Arrays;
+
+/**
+ * A decoded instruction. Operands are kept as they are encoded except for branch targets, which are held
+ * as a reference to the target instruction so code can be moved and removed without tracking addresses.
+ * The operand slot of a branch target is filled in with the target address when encoding.
+ * The address is only meaningful right after decoding or encoding.
+ *
+ * @since 0.1.0
+ */
+public class Instr {
+    // opcode of the end of code sentinel, the target of a branch to the address just past the last instruction
+    public static final int END = -1;
+
+    int opcode;
+    int[] operands;
+    // branch target, null for instructions that do not branch
+    Instr target;
+    int address;
+    // set by passes, removed instructions forward their incoming branches to the next instruction kept
+    boolean removed;
+    Instr forward;
+    // position in layout order and index of the gate holding the instruction, set by Program.number
+    int index;
+    int gateIndex;
+    int epoch;
+
+    public Instr(int opcode, int... operands) {
+        this.opcode = opcode;
+        this.operands = operands;
+    }
+
+    public Instr(int opcode, Instr target, int... operands) {
+        this(opcode, operands);
+        this.target = target;
+    }
+
+    /**
+     * @return a copy of this instruction with the same target
+     */
+    public Instr copy() {
+        return new Instr(opcode, target, operands.clone());
+    }
+
+    public int getOpcode() {
+        return opcode;
+    }
+
+    public int[] getOperands() {
+        return operands;
+    }
+
+    public int getOperand(int i) {
+        return operands[i];
+    }
+
+    public Instr getTarget() {
+        return target;
+    }
+
+    public void setTarget(Instr target) {
+        this.target = target;
+    }
+
+    public int getAddress() {
+        return address;
+    }
+
+    public boolean isRemoved() {
+        return removed;
+    }
+
+    public void remove() {
+        removed = true;
+    }
+
+    /**
+     * Turn this instruction into another one in place, branches to it keep pointing at it
+     */
+    public void replace(int opcode, Instr target, int... operands) {
+        this.opcode = opcode;
+        this.target = target;
+        this.operands = operands;
+    }
+
+    /**
+     * @return encoded size in bytes, the opcode byte followed by a 4 byte int per operand
+     */
+    public int getSize() {
+        return opcode == END ? 0 : 1 + 4 * operands.length;
+    }
+
+    public boolean isBranch() {
+        return target != null;
+    }
+
+    public boolean isConditionalBranch() {
+        return target != null && opcode != Bytecodes.BR;
+    }
+
+    /**
+     * @return true if execution never continues with the next instruction
+     */
+    public boolean isTerminator() {
+        return opcode == Bytecodes.BR || opcode == Bytecodes.RET || opcode == Bytecodes.HALT || opcode == END;
+    }
+
+    /**
+     * @return the branch with the opposite condition or -1 if the condition cannot be inverted
+     */
+    public static int invertBranch(int opcode) {
+        switch (opcode) {
+            case Bytecodes.BRT: return Bytecodes.BRF;
+            case Bytecodes.BRF: return Bytecodes.BRT;
+            case Bytecodes.BREQ: return Bytecodes.BRNEQ;
+            case Bytecodes.BRNEQ: return Bytecodes.BREQ;
+            case Bytecodes.BRGEZ: return Bytecodes.BRLTZ;
+            case Bytecodes.BRLTZ: return Bytecodes.BRGEZ;
+            case Bytecodes.BRGTZ: return Bytecodes.BRLEZ;
+            case Bytecodes.BRLEZ: return Bytecodes.BRGTZ;
+            default: return -1;
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (opcode == END) {
+            return "<end>";
+        }
+        String name = Bytecodes.instructions[opcode].getName();
+        String target = this.target == null ? "" : " -> " + this.target.address;
+        return name + " " + Arrays.toString(operands) + target;
+    }
+}
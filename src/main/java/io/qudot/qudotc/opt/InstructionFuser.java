@@ -0,0 +1,142 @@
+package io.qudot.qudotc.opt;
+
+import io.qudot.qudotc.utils.Bytecodes;
+
+import java.util.List;
+
+/**
+ * Rewrites the instruction sequences the VM dispatches most into superinstructions: a qloadr followed by a
+ * single qubit gate on the loaded register, two qloadrs followed by a cnot on them and an incr or
+ * iadd rx, rx, rc followed by a breq on rx. Only instructions that follow each other in a basic block are
+ * fused, an instruction something branches to is never folded into the one before it.
+ * <p>
+ * The other passes do not look through superinstructions, so this pass runs once after them.
+ *
+ * @since 0.1.0
+ */
+public class InstructionFuser implements Pass {
+    private boolean[] targets;
+
+    @Override
+    public String getName() {
+        return "fuse";
+    }
+
+    @Override
+    public boolean run(Program program) {
+        program.compact();
+        targets = new boolean[program.number() + 1];
+        for (Gate gate : program.getGates()) {
+            for (Instr instr : gate.getCode()) {
+                if (instr.target != null) {
+                    targets[instr.target.index] = true;
+                }
+            }
+        }
+        boolean changed = false;
+        for (Gate gate : program.getGates()) {
+            List<Instr> code = gate.getCode();
+            for (int i = 0; i < code.size(); i++) {
+                if (!code.get(i).removed) {
+                    changed |= fuse(code, i);
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return the instruction n places after i if it is reached only by falling through, or null
+     */
+    private Instr next(List<Instr> code, int i, int n) {
+        for (int j = i + 1; j <= i + n; j++) {
+            if (j >= code.size() || targets[code.get(j).index]) {
+                return null;
+            }
+        }
+        return code.get(i + n);
+    }
+
+    private boolean fuse(List<Instr> code, int i) {
+        Instr a = code.get(i);
+        Instr b = next(code, i, 1);
+        if (b == null) {
+            return false;
+        }
+        int[] op = a.operands;
+        switch (a.opcode) {
+            case Bytecodes.QLOADR: {
+                Instr c = next(code, i, 2);
+                if (b.opcode == Bytecodes.QLOADR && c != null && c.opcode == Bytecodes.CNOT
+                        && b.operands[0] != op[0]) {
+                    int[] cnot = c.operands;
+                    if (cnot[0] == op[0] && cnot[1] == b.operands[0]) {
+                        a.replace(Bytecodes.CNOTR, null, op[0], op[1], b.operands[0], b.operands[1]);
+                    } else if (cnot[0] == b.operands[0] && cnot[1] == op[0]) {
+                        a.replace(Bytecodes.CNOTR, null, b.operands[0], b.operands[1], op[0], op[1]);
+                    } else {
+                        return false;
+                    }
+                    b.remove();
+                    c.remove();
+                    return true;
+                }
+                int fused = getFusedGate(b.opcode);
+                if (fused < 0 || b.operands[0] != op[0]) {
+                    return false;
+                }
+                a.replace(fused, null, op[0], op[1]);
+                b.remove();
+                return true;
+            }
+            case Bytecodes.INCR: {
+                int other = getOtherComparand(b, op[0]);
+                if (other < 0) {
+                    return false;
+                }
+                a.replace(Bytecodes.INCR_BREQ, b.target, op[0], other, 0);
+                b.remove();
+                return true;
+            }
+            case Bytecodes.IADD: {
+                int other = getOtherComparand(b, op[0]);
+                if (other < 0 || op[1] != op[0] && op[2] != op[0]) {
+                    return false;
+                }
+                int increment = op[1] == op[0] ? op[2] : op[1];
+                a.replace(Bytecodes.IADD_BREQ, b.target, op[0], increment, other, 0);
+                b.remove();
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return the register a breq compares r with or -1 if instr is not a breq on r
+     */
+    private static int getOtherComparand(Instr instr, int r) {
+        if (instr.opcode != Bytecodes.BREQ) {
+            return -1;
+        }
+        if (instr.operands[0] == r) {
+            return instr.operands[1];
+        }
+        return instr.operands[1] == r ? instr.operands[0] : -1;
+    }
+
+    private static int getFusedGate(int opcode) {
+        switch (opcode) {
+            case Bytecodes.XON: return Bytecodes.XONR;
+            case Bytecodes.YON: return Bytecodes.YONR;
+            case Bytecodes.ZON: return Bytecodes.ZONR;
+            case Bytecodes.SON: return Bytecodes.SONR;
+            case Bytecodes.TON: return Bytecodes.TONR;
+            case Bytecodes.HON: return Bytecodes.HONR;
+            case Bytecodes.SDAGON: return Bytecodes.SDAGONR;
+            case Bytecodes.TDAGON: return Bytecodes.TDAGONR;
+            default: return -1;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package io.qudot.qudotc.opt;
+
+import io.qudot.qudotc.qudir.ConstPoolType;
+import io.qudot.qudotc.utils.Bytecodes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Links the program as a whole: drops the gates main cannot reach and the constant pool entries nothing
+ * refers to, then lays the remaining gates out depth first from main, each gate followed by the gates it
+ * calls most often, so callers and callees share pages and cache lines. Gates reached from main through
+ * a call, by falling through or by a branch are kept, as is code before the first gate. Gates that fall
+ * through into the next one stay together and a gate that runs off the end of the code stays last.
+ * <p>
+ * The gates a program drops can no longer be looked up by name in the binary, so this pass only runs
+ * when asked for. Nothing is dropped if the main gate is not known. The qubit map is always kept.
+ *
+ * @since 0.1.0
+ */
+public class Linker implements Pass {
+    private Program program;
+
+    @Override
+    public String getName() {
+        return "link";
+    }
+
+    @Override
+    public boolean run(Program program) {
+        this.program = program;
+        List<Gate> gates = program.getGates();
+        Gate main = null;
+        for (Gate gate : gates) {
+            if (gate.getSymbol() != null && gate.getSymbol() == program.getMainGate()) {
+                main = gate;
+            }
+        }
+        if (main == null) {
+            return false;
+        }
+        program.compact();
+        program.number();
+
+        boolean[] reachable = getReachable(main);
+        List<List<Gate>> chains = getChains(reachable);
+        List<Gate> layout = layOut(chains, main);
+
+        boolean[] keep = new boolean[program.getConstPool().size()];
+        for (int i = 0; i < keep.length; i++) {
+            // no instruction refers to the qubit map, a VM finds it by type
+            keep[i] = program.getConstPool().get(i).getType() == ConstPoolType.QUBIT_MAP;
+        }
+        for (Gate gate : layout) {
+            if (gate.getPoolIndex() >= 0) {
+                keep[gate.getPoolIndex()] = true;
+            }
+            for (Instr instr : gate.getCode()) {
+                Bytecodes.Instruction instruction = program.getInstructions()[instr.opcode];
+                for (int i = 0; i < Math.min(instruction.getN(), instr.operands.length); i++) {
+                    int type = instruction.getType()[i];
+                    int operand = instr.operands[i];
+                    if ((type == Bytecodes.GATE || type == Bytecodes.POOL) && operand >= 0 && operand < keep.length) {
+                        keep[operand] = true;
+                    }
+                }
+            }
+        }
+
+        boolean changed = !layout.equals(gates);
+        for (boolean k : keep) {
+            changed |= !k;
+        }
+        if (!changed) {
+            return false;
+        }
+        gates.clear();
+        gates.addAll(layout);
+        program.retainConstants(keep);
+        return true;
+    }
+
+    /**
+     * @return by gate index, true for gates execution can reach from main or from code before the first gate
+     */
+    private boolean[] getReachable(Gate main) {
+        List<Gate> gates = program.getGates();
+        Map<Integer, Integer> byPoolIndex = new HashMap<>();
+        for (int g = 0; g < gates.size(); g++) {
+            byPoolIndex.put(gates.get(g).getPoolIndex(), g);
+        }
+        boolean[] reachable = new boolean[gates.size()];
+        int[] work = new int[gates.size()];
+        int n = 0;
+        for (int g = 0; g < gates.size(); g++) {
+            if (gates.get(g) == main || gates.get(g).getSymbol() == null) {
+                reachable[g] = true;
+                work[n++] = g;
+            }
+        }
+        while (n > 0) {
+            int g = work[--n];
+            Gate gate = gates.get(g);
+            List<Integer> successors = new ArrayList<>();
+            if (gate.fallsThrough() && g + 1 < gates.size()) {
+                successors.add(g + 1);
+            }
+            for (Instr instr : gate.getCode()) {
+                if (instr.opcode == Bytecodes.CALL && byPoolIndex.containsKey(instr.operands[0])) {
+                    successors.add(byPoolIndex.get(instr.operands[0]));
+                }
+                if (instr.target != null && instr.target.gateIndex >= 0) {
+                    successors.add(instr.target.gateIndex);
+                }
+            }
+            for (int successor : successors) {
+                if (!reachable[successor]) {
+                    reachable[successor] = true;
+                    work[n++] = successor;
+                }
+            }
+        }
+        return reachable;
+    }
+
+    /**
+     * @return the reachable gates in layout order, split into runs that fall through into each other
+     */
+    private List<List<Gate>> getChains(boolean[] reachable) {
+        List<List<Gate>> chains = new ArrayList<>();
+        List<Gate> chain = null;
+        for (int g = 0; g < reachable.length; g++) {
+            if (!reachable[g]) {
+                continue;
+            }
+            if (chain == null) {
+                chain = new ArrayList<>();
+                chains.add(chain);
+            }
+            Gate gate = program.getGates().get(g);
+            chain.add(gate);
+            if (!gate.fallsThrough()) {
+                chain = null;
+            }
+        }
+        return chains;
+    }
+
+    private List<Gate> layOut(List<List<Gate>> chains, Gate main) {
+        Map<Integer, List<Gate>> chainOf = new HashMap<>();
+        for (List<Gate> chain : chains) {
+            for (Gate gate : chain) {
+                chainOf.put(gate.getPoolIndex(), chain);
+            }
+        }
+        List<List<Gate>> order = new ArrayList<>();
+        // code before the first gate stays at address 0, a chain that runs off the end stays last
+        List<Gate> first = chains.get(0).get(0).getSymbol() == null ? chains.get(0) : null;
+        List<Gate> last = chains.get(chains.size() - 1);
+        last = last.get(last.size() - 1).fallsThrough() && last != first ? last : null;
+        if (first != null) {
+            order.add(first);
+        }
+        Set<List<Gate>> placed = Collections.newSetFromMap(new IdentityHashMap<>());
+        placed.addAll(order);
+        if (last != null) {
+            placed.add(last);
+        }
+
+        // depth first from main, then the chains only reached by branches in their old order
+        List<List<Gate>> pending = new ArrayList<>();
+        for (int c = chains.size() - 1; c >= 0; c--) {
+            pending.add(chains.get(c));
+        }
+        pending.add(chainOf.get(main.getPoolIndex()));
+        while (!pending.isEmpty()) {
+            List<Gate> chain = pending.remove(pending.size() - 1);
+            if (!placed.add(chain)) {
+                continue;
+            }
+            order.add(chain);
+            List<List<Gate>> callees = getCallees(chain, chainOf);
+            for (int c = callees.size() - 1; c >= 0; c--) {
+                pending.add(callees.get(c));
+            }
+        }
+        if (last != null) {
+            order.add(last);
+        }
+
+        List<Gate> layout = new ArrayList<>();
+        for (List<Gate> chain : order) {
+            layout.addAll(chain);
+        }
+        return layout;
+    }
+
+    /**
+     * @return the chains the gates of chain call, most call sites first, ties in order of first call
+     */
+    private static List<List<Gate>> getCallees(List<Gate> chain, Map<Integer, List<Gate>> chainOf) {
+        Map<List<Gate>, Integer> counts = new LinkedHashMap<>();
+        for (Gate gate : chain) {
+            for (Instr instr : gate.getCode()) {
+                List<Gate> callee = instr.opcode == Bytecodes.CALL ? chainOf.get(instr.operands[0]) : null;
+                if (callee != null && callee != chain) {
+                    counts.merge(callee, 1, Integer::sum);
+                }
+            }
+        }
+        List<List<Gate>> callees = new ArrayList<>(counts.keySet());
+        callees.sort(Comparator.comparingInt(c -> -counts.get(c)));
+        return callees;
+    }
+}
@@ -0,0 +1,478 @@
+package io.qudot.qudotc.opt;
+
+import io.qudot.qudotc.qudir.GateAsmSymbol;
+import io.qudot.qudotc.utils.Bytecodes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Evaluates the classical part of gates at compile time and replaces it with straight line code. The
+ * main gate starts with the number of qubits in r0 and every other gate is specialized for the arguments
+ * it is called with: loops and branches whose conditions are known are executed by the compiler, qloadr
+ * of a known register becomes qload and only quantum instructions, calls and what cannot be evaluated are
+ * emitted, preceded by an iload of every computed register they read. Main is replaced in place, other
+ * gates are specialized into copies named gate$n that are added to the constant pool.
+ * <p>
+ * A gate is only specialized if every branch it takes is decided at compile time and the straight line
+ * code, together with the gates it calls, executes fewer instructions than the original. The code one run emits is limited by a budget
+ * in bytes, once it is spent gates keep their loops. Gates that are no longer called are kept, so they can still
+ * be looked up by name, -l drops them.
+ *
+ * @since 0.1.0
+ */
+public class PartialEvaluator implements Pass {
+    public static final int DEFAULT_BUDGET = 65536;
+    private static final int MAX_DEPTH = 64;
+    // value of a register that is only known at run time
+    private static final Object UNKNOWN = new Object() {
+        @Override
+        public String toString() {
+            return "unknown";
+        }
+    };
+    private static final Specialization FAILED = new Specialization(-1, UNKNOWN, 0, 0);
+
+    private final int budget;
+    private final Map<Key, Specialization> specializations = new HashMap<>();
+    private final Map<Integer, Gate> gatesByPoolIndex = new HashMap<>();
+    private final Set<String> names = new HashSet<>();
+    private Program program;
+    private int remaining;
+    private int depth;
+
+    /**
+     * @param budget maximum number of bytes of code emitted by one run
+     */
+    public PartialEvaluator(int budget) {
+        this.budget = budget;
+    }
+
+    public int getBudget() {
+        return budget;
+    }
+
+    @Override
+    public String getName() {
+        return "unroll";
+    }
+
+    @Override
+    public boolean run(Program program) {
+        this.program = program;
+        remaining = budget;
+        specializations.clear();
+        gatesByPoolIndex.clear();
+        names.clear();
+        program.compact();
+        boolean[] externalTargets = ControlFlowGraph.getExternalTargets(program);
+        List<Gate> originals = new ArrayList<>(program.getGates());
+        Gate main = null;
+        for (Gate gate : originals) {
+            if (gate.getSymbol() != null) {
+                gatesByPoolIndex.put(gate.getPoolIndex(), gate);
+                names.add(gate.getName());
+                if (gate.getSymbol() == program.getMainGate()) {
+                    main = gate;
+                }
+            }
+        }
+
+        boolean changed = false;
+        boolean mainReplaced = false;
+        if (main != null && !isCalled(main) && !hasExternalTargets(main, externalTargets)
+                && !isFallenInto(originals, main)) {
+            Object[] args = new Object[main.getSymbol().getArgs()];
+            Arrays.fill(args, UNKNOWN);
+            Object r0 = program.getNumQubits() != null ? program.getNumQubits() : UNKNOWN;
+            Residual residual = evaluate(main, r0, args);
+            if (residual != null && residual.length < residual.steps) {
+                main.getCode().clear();
+                main.getCode().addAll(residual.code);
+                remaining -= residual.size;
+                mainReplaced = true;
+                changed = true;
+            }
+        }
+        // calls with constant arguments in the code that was kept
+        for (Gate gate : originals) {
+            if (gate != main || !mainReplaced) {
+                changed |= specializeCalls(gate, externalTargets);
+            }
+        }
+        return changed;
+    }
+
+    private boolean isCalled(Gate gate) {
+        for (Gate caller : program.getGates()) {
+            for (Instr instr : caller.getCode()) {
+                if (instr.opcode == Bytecodes.CALL && instr.operands[0] == gate.getPoolIndex()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isFallenInto(List<Gate> gates, Gate gate) {
+        for (int i = gates.indexOf(gate) - 1; i >= 0; i--) {
+            if (!gates.get(i).getCode().isEmpty()) {
+                return gates.get(i).fallsThrough();
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasExternalTargets(Gate gate, boolean[] externalTargets) {
+        for (Instr instr : gate.getCode()) {
+            if (externalTargets[instr.index]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Retarget calls whose arguments are loaded by iload in the same basic block to specialized gates
+     */
+    private boolean specializeCalls(Gate gate, boolean[] externalTargets) {
+        boolean changed = false;
+        BitSet defs = new BitSet();
+        for (BasicBlock block : new ControlFlowGraph(gate, externalTargets).getBlocks()) {
+            Map<Integer, Integer> constants = new HashMap<>();
+            for (Instr instr : block.getInstrs()) {
+                if (instr.opcode == Bytecodes.CALL) {
+                    GateAsmSymbol callee = program.getGateSymbol(instr.operands[0]);
+                    int first = instr.operands[1];
+                    Object[] args = getArgs(callee, first, r -> constants.containsKey(r) ? constants.get(r) : UNKNOWN);
+                    if (args != null && !Arrays.asList(args).contains(UNKNOWN)) {
+                        Specialization specialization = specialize(instr.operands[0], args);
+                        if (specialization.poolIndex >= 0) {
+                            instr.operands[0] = specialization.poolIndex;
+                            changed = true;
+                        }
+                    }
+                }
+                if (instr.opcode == Bytecodes.ILOAD) {
+                    constants.put(instr.operands[0], instr.operands[1]);
+                } else {
+                    defs.clear();
+                    RegisterEffects.defs(program, instr, defs);
+                    for (int r = defs.nextSetBit(0); r >= 0; r = defs.nextSetBit(r + 1)) {
+                        constants.remove(r);
+                    }
+                }
+            }
+        }
+        return changed;
+    }
+
+    private interface Registers {
+        Object get(int r);
+    }
+
+    /**
+     * @return the values of the arguments passed from register first on or null if the callee is not a gate
+     */
+    private static Object[] getArgs(GateAsmSymbol callee, int first, Registers registers) {
+        if (callee == null) {
+            return null;
+        }
+        Object[] args = new Object[callee.getArgs()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = first == RegisterEffects.VM_REGISTER ? UNKNOWN : registers.get(first + i);
+        }
+        return args;
+    }
+
+    /**
+     * Specialize a gate for its arguments, once per distinct set of arguments
+     * @return the specialized gate or FAILED if the gate cannot be or is not worth specializing
+     */
+    private Specialization specialize(int poolIndex, Object[] args) {
+        Key key = new Key(poolIndex, args);
+        Specialization specialization = specializations.get(key);
+        if (specialization != null) {
+            return specialization;
+        }
+        Gate gate = gatesByPoolIndex.get(poolIndex);
+        if (gate == null || depth >= MAX_DEPTH) {
+            return FAILED;
+        }
+        // a recursive call with the same arguments keeps calling the original gate
+        specializations.put(key, FAILED);
+        depth++;
+        Residual residual = evaluate(gate, UNKNOWN, args);
+        depth--;
+        if (residual == null || residual.length >= residual.steps) {
+            return FAILED;
+        }
+        remaining -= residual.size;
+
+        GateAsmSymbol symbol = gate.getSymbol();
+        String name = symbol.getName();
+        for (int n = 1; !names.add(name); n++) {
+            name = symbol.getName() + "$" + n;
+        }
+        GateAsmSymbol copy = new GateAsmSymbol(name, symbol.getArgs(), symbol.getRegs(), symbol.getQubitRegs(), 0);
+        Gate specialized = new Gate(copy, program.addConstant(copy));
+        specialized.getCode().addAll(residual.code);
+        List<Gate> gates = program.getGates();
+        // never lay code out where another gate falls through into it
+        if (gates.get(gates.size() - 1).fallsThrough()) {
+            gates.add(0, specialized);
+        } else {
+            gates.add(specialized);
+        }
+        specialization = new Specialization(specialized.getPoolIndex(), residual.result, residual.steps,
+                residual.length);
+        specializations.put(key, specialization);
+        return specialization;
+    }
+
+    /**
+     * Execute the classical instructions of a gate, emitting everything else
+     * @param gate a numbered gate of the program
+     * @param r0 value of r0 on entry
+     * @param args values of the arguments
+     * @return the straight line code or null if a branch depends on a value only known at run time,
+     * the gate runs off its end or the budget is exceeded
+     */
+    private Residual evaluate(Gate gate, Object r0, Object[] args) {
+        List<Instr> code = gate.getCode();
+        if (code.isEmpty()) {
+            return null;
+        }
+        int first = code.get(0).index;
+        int gateIndex = code.get(0).gateIndex;
+        Residual residual = new Residual();
+        residual.set(RegisterEffects.VM_REGISTER, r0, false);
+        for (int i = 0; i < args.length; i++) {
+            residual.set(i + 1, args[i], false);
+        }
+
+        BitSet registers = new BitSet();
+        int pc = 0;
+        // a loop that emits nothing still ends once it has run as many instructions as the budget has bytes
+        for (int executed = 0; pc < code.size() && executed < budget && residual.size <= remaining; executed++) {
+            Instr instr = code.get(pc++);
+            residual.steps++;
+            int[] op = instr.operands;
+            Object a = op.length > 0 ? residual.get(op[0]) : UNKNOWN;
+            Object b = op.length > 1 ? residual.get(op[1]) : UNKNOWN;
+            Object c = op.length > 2 ? residual.get(op[2]) : UNKNOWN;
+            Object value = UNKNOWN;
+            switch (instr.opcode) {
+                case Bytecodes.ILOAD:
+                    value = op[1];
+                    break;
+                case Bytecodes.MOVE:
+                    value = b;
+                    break;
+                case Bytecodes.IADD:
+                case Bytecodes.ISUB:
+                case Bytecodes.IMUL:
+                case Bytecodes.IDIV:
+                case Bytecodes.ILT:
+                case Bytecodes.IEQ:
+                    value = fold(instr.opcode, b, c);
+                    break;
+                case Bytecodes.INCR:
+                    value = a instanceof Integer ? (Integer) a + 1 : UNKNOWN;
+                    break;
+                case Bytecodes.DECR:
+                    value = a instanceof Integer ? (Integer) a - 1 : UNKNOWN;
+                    break;
+                case Bytecodes.QLOADR:
+                    if (b instanceof Integer) {
+                        residual.emit(new Instr(Bytecodes.QLOAD, op[0], (Integer) b));
+                        continue;
+                    }
+                    break;
+                case Bytecodes.CALL: {
+                    GateAsmSymbol callee = program.getGateSymbol(op[0]);
+                    Object[] callArgs = getArgs(callee, op[1], residual::get);
+                    Specialization specialization = callArgs == null ? FAILED : specialize(op[0], callArgs);
+                    Instr call = instr.copy();
+                    if (specialization.poolIndex >= 0) {
+                        call.operands[0] = specialization.poolIndex;
+                    }
+                    emitResidual(residual, gate, call, registers);
+                    residual.steps += specialization.steps;
+                    residual.length += specialization.length;
+                    // the specialized gate loaded its result into r0 before returning
+                    residual.set(RegisterEffects.VM_REGISTER, specialization.result, false);
+                    continue;
+                }
+                case Bytecodes.RET:
+                    emitResidual(residual, gate, instr.copy(), registers);
+                    residual.result = residual.get(RegisterEffects.VM_REGISTER);
+                    return residual.size <= remaining ? residual : null;
+                case Bytecodes.HALT:
+                    residual.emit(instr.copy());
+                    return residual.size <= remaining ? residual : null;
+                default:
+                    if (instr.target != null) {
+                        Boolean taken = isTaken(instr.opcode, a, b);
+                        if (taken == null || instr.target.gateIndex != gateIndex) {
+                            return null;
+                        }
+                        if (taken) {
+                            pc = instr.target.index - first;
+                        }
+                        continue;
+                    }
+                    break;
+            }
+            if (value != UNKNOWN) {
+                residual.set(op[0], value, true);
+            } else {
+                emitResidual(residual, gate, instr.copy(), registers);
+            }
+        }
+        return null;
+    }
+
+    static Object fold(int opcode, Object a, Object b) {
+        if (!(a instanceof Integer) || !(b instanceof Integer)) {
+            return UNKNOWN;
+        }
+        int x = (Integer) a;
+        int y = (Integer) b;
+        switch (opcode) {
+            case Bytecodes.IADD: return x + y;
+            case Bytecodes.ISUB: return x - y;
+            case Bytecodes.IMUL: return x * y;
+            case Bytecodes.IDIV: return y == 0 ? UNKNOWN : x / y;
+            case Bytecodes.ILT: return x < y;
+            case Bytecodes.IEQ: return x == y;
+            default: return UNKNOWN;
+        }
+    }
+
+    /**
+     * @return whether a branch is taken, null if that is only known at run time
+     */
+    static Boolean isTaken(int opcode, Object a, Object b) {
+        if (opcode == Bytecodes.BR) {
+            return true;
+        }
+        if (opcode == Bytecodes.BRT || opcode == Bytecodes.BRF) {
+            return a instanceof Boolean ? (Boolean) a == (opcode == Bytecodes.BRT) : null;
+        }
+        if (!(a instanceof Integer)) {
+            return null;
+        }
+        int x = (Integer) a;
+        switch (opcode) {
+            case Bytecodes.BRGEZ: return x >= 0;
+            case Bytecodes.BRGTZ: return x > 0;
+            case Bytecodes.BRLEZ: return x <= 0;
+            case Bytecodes.BRLTZ: return x < 0;
+            case Bytecodes.BREQ:
+            case Bytecodes.BRNEQ:
+                return b instanceof Integer ? x == (Integer) b == (opcode == Bytecodes.BREQ) : null;
+            default: return null;
+        }
+    }
+
+    // load every computed register the instruction reads, then emit it, what it writes is only known at run time
+    private void emitResidual(Residual residual, Gate gate, Instr instr, BitSet registers) {
+        registers.clear();
+        RegisterEffects.uses(program, gate, instr, registers);
+        for (int r = registers.nextSetBit(0); r >= 0; r = registers.nextSetBit(r + 1)) {
+            residual.load(r);
+        }
+        residual.emit(instr);
+        registers.clear();
+        RegisterEffects.defs(program, instr, registers);
+        for (int r = registers.nextSetBit(0); r >= 0; r = registers.nextSetBit(r + 1)) {
+            residual.set(r, UNKNOWN, false);
+        }
+    }
+
+    /**
+     * Straight line code of a gate with the register values at the point evaluation reached. A stale
+     * register holds a value computed by the compiler that the emitted code has not loaded into it yet.
+     */
+    private static final class Residual {
+        final List<Instr> code = new ArrayList<>();
+        final Map<Integer, Object> values = new HashMap<>();
+        final BitSet stale = new BitSet();
+        // instructions executed by the original code and by the straight line code, including calls
+        int steps;
+        int length;
+        int size;
+        Object result = UNKNOWN;
+
+        Object get(int r) {
+            return values.getOrDefault(r, UNKNOWN);
+        }
+
+        void set(int r, Object value, boolean computed) {
+            values.put(r, value);
+            stale.set(r, computed);
+        }
+
+        void emit(Instr instr) {
+            code.add(instr);
+            length++;
+            size += instr.getSize();
+        }
+
+        // booleans are loaded by comparing the register with itself
+        void load(int r) {
+            if (!stale.get(r)) {
+                return;
+            }
+            Object value = values.get(r);
+            if (value instanceof Boolean) {
+                emit(new Instr(Bytecodes.ILOAD, r, 0));
+                emit(new Instr((Boolean) value ? Bytecodes.IEQ : Bytecodes.ILT, r, r, r));
+            } else {
+                emit(new Instr(Bytecodes.ILOAD, r, (Integer) value));
+            }
+            stale.clear(r);
+        }
+    }
+
+    private static final class Specialization {
+        final int poolIndex;
+        final Object result;
+        final int steps;
+        final int length;
+
+        Specialization(int poolIndex, Object result, int steps, int length) {
+            this.poolIndex = poolIndex;
+            this.result = result;
+            this.steps = steps;
+            this.length = length;
+        }
+    }
+
+    private static final class Key {
+        final int poolIndex;
+        final Object[] args;
+
+        Key(int poolIndex, Object[] args) {
+            this.poolIndex = poolIndex;
+            this.args = args;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && poolIndex == ((Key) o).poolIndex && Arrays.equals(args, ((Key) o).args);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * poolIndex + Arrays.hashCode(args);
+        }
+    }
+}
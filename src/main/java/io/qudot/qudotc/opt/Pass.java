@@ -0,0 +1,20 @@
+package io.qudot.qudotc.opt;
+
+/**
+ * An optimizer pass over a decoded program. Passes mark instructions removed rather than taking them out
+ * of the gate code, Program.compact forwards branches to them.
+ *
+ * @since 0.1.0
+ */
+public interface Pass {
+    /**
+     * @return name of the pass as shown in diagnostics
+     */
+    String getName();
+
+    /**
+     * @param program the program to transform in place
+     * @return true if the program changed
+     */
+    boolean run(Program program);
+}
@@ -0,0 +1,80 @@
+package io.qudot.qudotc.opt;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Counts the sequences of two and three opcodes that follow each other in straight line code in a corpus of
+ * programs, the candidates for the next superinstructions. Counts are static, an instruction in a loop
+ * counts once. Programs may be added from several threads.
+ *
+ * @since 0.1.0
+ */
+public class PatternStats {
+    private static final int MAX_LENGTH = 3;
+
+    private final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+    private final LongAdder instructions = new LongAdder();
+    private final LongAdder programs = new LongAdder();
+
+    public void add(Program program) {
+        boolean[] targets = new boolean[program.number() + 1];
+        for (Gate gate : program.getGates()) {
+            for (Instr instr : gate.getCode()) {
+                if (instr.target != null) {
+                    targets[instr.target.index] = true;
+                }
+            }
+        }
+        for (Gate gate : program.getGates()) {
+            List<Instr> code = gate.getCode();
+            instructions.add(code.size());
+            for (int i = 0; i < code.size(); i++) {
+                StringBuilder pattern = new StringBuilder(getName(program, code.get(i)));
+                for (int j = i + 1; j < i + MAX_LENGTH && j < code.size() && !targets[code.get(j).index]
+                        && !code.get(j - 1).isTerminator(); j++) {
+                    pattern.append(' ').append(getName(program, code.get(j)));
+                    counts.computeIfAbsent(pattern.toString(), k -> new LongAdder()).increment();
+                }
+            }
+        }
+        programs.increment();
+    }
+
+    private static String getName(Program program, Instr instr) {
+        return program.getInstructions()[instr.opcode].getName();
+    }
+
+    public long getCount(String pattern) {
+        LongAdder count = counts.get(pattern);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * @return the most frequent patterns, most frequent first
+     */
+    public List<Map.Entry<String, Long>> getTop(int n) {
+        return counts.entrySet().stream()
+                .map(e -> Map.entry(e.getKey(), e.getValue().sum()))
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed()
+                        .thenComparing(Map.Entry.comparingByKey()))
+                .limit(n)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Print the n most frequent patterns with their share of all instructions
+     */
+    public void print(PrintStream out, int n) {
+        long total = Math.max(instructions.sum(), 1);
+        out.printf("opcode patterns in %d instructions of %d files:%n", instructions.sum(), programs.sum());
+        out.printf("%10s %7s  %s%n", "count", "share", "pattern");
+        for (Map.Entry<String, Long> entry : getTop(n)) {
+            out.printf("%10d %6.2f%%  %s%n", entry.getValue(), 100.0 * entry.getValue() / total, entry.getKey());
+        }
+    }
+}
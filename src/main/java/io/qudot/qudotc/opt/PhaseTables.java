@@ -0,0 +1,99 @@
+package io.qudot.qudotc.opt;
+
+import io.qudot.qudotc.qudir.DoublePairConstant;
+import io.qudot.qudotc.utils.Bytecodes;
+
+import java.util.BitSet;
+
+/**
+ * Rewrites phi, phidag, phion, phidagon and semi_crot whose order k is known at compile time into
+ * phi_t, phion_t and semi_crot_t, which read the phase factor exp(2 pi i / 2^k), or its conjugate for the
+ * dagger gates, from a DOUBLE_PAIR constant instead of computing it with cos and sin on every application.
+ * The values of k are found with the constant propagation of ClassicalOptimizer, gates whose k is only
+ * known at run time keep their opcode.
+ * <p>
+ * QuantumOptimizer fuses and cancels phase gates by their k, so this pass runs once after it.
+ *
+ * @since 0.1.0
+ */
+public class PhaseTables implements Pass {
+    // largest k tabulated, 2^k must fit in an int
+    private static final int MAX_K = 30;
+
+    private Program program;
+
+    @Override
+    public String getName() {
+        return "phases";
+    }
+
+    @Override
+    public boolean run(Program program) {
+        this.program = program;
+        boolean[] externalTargets = ControlFlowGraph.getExternalTargets(program);
+        BitSet defs = new BitSet();
+        boolean changed = false;
+        for (Gate gate : program.getGates()) {
+            int registers = RegisterEffects.getRegisterCount(program, gate);
+            if (gate.getCode().isEmpty() || registers < 0 || registers > ClassicalOptimizer.MAX_REGISTERS) {
+                continue;
+            }
+            ControlFlowGraph cfg = new ControlFlowGraph(gate, externalTargets);
+            ClassicalOptimizer.State[] in = ClassicalOptimizer.analyze(program, cfg, registers);
+            for (BasicBlock block : cfg.getBlocks()) {
+                if (in[block.getIndex()] == null) {
+                    continue;
+                }
+                ClassicalOptimizer.State state = new ClassicalOptimizer.State(in[block.getIndex()]);
+                for (Instr instr : block.instrs) {
+                    changed |= rewrite(instr, state);
+                    ClassicalOptimizer.transfer(program, instr, state, defs);
+                }
+            }
+        }
+        if (changed) {
+            // the loads of k are now dead
+            new ClassicalOptimizer().run(program);
+        }
+        return changed;
+    }
+
+    private boolean rewrite(Instr instr, ClassicalOptimizer.State state) {
+        int[] op = instr.operands;
+        switch (instr.opcode) {
+            case Bytecodes.PHI:
+            case Bytecodes.PHIDAG:
+            case Bytecodes.PHION:
+            case Bytecodes.PHIDAGON:
+            case Bytecodes.SEMI_CROT:
+                break;
+            default:
+                return false;
+        }
+        int k = state.isInt(op[0]) ? state.getValue(op[0]) : -1;
+        if (k < 0 || k > MAX_K) {
+            return false;
+        }
+        boolean dagger = instr.opcode == Bytecodes.PHIDAG || instr.opcode == Bytecodes.PHIDAGON;
+        double angle = (dagger ? -2 : 2) * Math.PI / (1 << k);
+        int factor = getConstant(new DoublePairConstant(Math.cos(angle), Math.sin(angle)));
+        switch (instr.opcode) {
+            case Bytecodes.PHI:
+            case Bytecodes.PHIDAG:
+                instr.replace(Bytecodes.PHI_T, null, factor);
+                break;
+            case Bytecodes.PHION:
+            case Bytecodes.PHIDAGON:
+                instr.replace(Bytecodes.PHION_T, null, factor, op[1]);
+                break;
+            default:
+                instr.replace(Bytecodes.SEMI_CROT_T, null, factor, op[1], op[2]);
+        }
+        return true;
+    }
+
+    private int getConstant(DoublePairConstant entry) {
+        int poolIndex = program.getConstPool().indexOf(entry);
+        return poolIndex >= 0 ? poolIndex : program.addConstant(entry);
+    }
+}
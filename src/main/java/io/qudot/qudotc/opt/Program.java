@@ -0,0 +1,407 @@
+package io.qudot.qudotc.opt;
+
+import io.qudot.qudotc.qudir.ConstPoolEntry;
+import io.qudot.qudotc.qudir.GateAsmSymbol;
+import io.qudot.qudotc.qudir.QuDotAssembler;
+import io.qudot.qudotc.utils.BytecodeUtils;
+import io.qudot.qudotc.utils.Bytecodes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Decoded form of the code generated by a QuDotAssembler that optimizer passes work on. The code is split
+ * into gates in address order and branch targets are instruction references, so passes can remove, add
+ * and move instructions freely. Encoding lays the gates out again, resolves every branch target to its
+ * new address and updates the gate addresses in the constant pool.
+ *
+ * @since 0.1.0
+ */
+public class Program {
+    private final Bytecodes.Instruction[] instructions;
+    private final List<ConstPoolEntry> constPool;
+    private final int decodedPoolSize;
+    // true once retainConstants renumbered the pool, it then replaces the assembler's pool when encoded
+    private boolean poolRenumbered;
+    private final List<Gate> gates = new ArrayList<>();
+    private GateAsmSymbol mainGate;
+    private Integer numQubits;
+    private Integer ensembleSize;
+    // target of branches to the address just past the last instruction
+    private final Instr end = new Instr(Instr.END);
+    private int epoch;
+
+    private Program(Bytecodes.Instruction[] instructions, List<ConstPoolEntry> constPool) {
+        this.instructions = instructions;
+        this.constPool = new ArrayList<>(constPool);
+        this.decodedPoolSize = constPool.size();
+    }
+
+    /**
+     * Decode the code generated by an assembler
+     * @param assembler an assembler without errors
+     * @param instructions the instruction set the code was generated with
+     * @return the decoded program
+     */
+    public static Program decode(QuDotAssembler assembler, Bytecodes.Instruction[] instructions) {
+        Program program = decode(assembler.getBytecode(), assembler.getCodeSize(), assembler.getConstPool(),
+                instructions);
+        program.mainGate = assembler.getMainGate();
+        program.numQubits = assembler.getNumQubits();
+        program.ensembleSize = assembler.getEnsembleSize();
+        return program;
+    }
+
+    /**
+     * Decode bytecode into gates, the gate symbols of the constant pool are shared with the program.
+     * The program does not know its main gate.
+     * @param code the bytecode
+     * @param codeSize number of bytes of code
+     * @param constPool the constant pool the code refers to
+     * @param instructions the instruction set the code was generated with
+     * @return the decoded program
+     */
+    public static Program decode(byte[] code, int codeSize, List<ConstPoolEntry> constPool,
+                                 Bytecodes.Instruction[] instructions) {
+        Program program = new Program(instructions, constPool);
+
+        // decode every instruction, remembering which one starts at each address
+        Instr[] byAddress = new Instr[codeSize + 1];
+        List<Instr> all = new ArrayList<>();
+        int ip = 0;
+        while (ip < codeSize) {
+            int opcode = code[ip] & 0xFF;
+            if (opcode >= instructions.length) {
+                throw new RuntimeException("invalid opcode " + opcode + " at address " + ip);
+            }
+            Bytecodes.Instruction instruction = instructions[opcode];
+            int address = ip++;
+            int n = instruction.getN();
+            if (instruction.isVariableLength()) {
+                // the operand before the array or qubit set is its size
+                checkOperands(ip, n - 1, codeSize, address);
+                int size = BytecodeUtils.getInt(code, ip + 4 * (n - 2));
+                if (size < 0) {
+                    throw new RuntimeException("invalid array size " + size + " at address " + address);
+                }
+                n = n - 1 + size;
+            }
+            checkOperands(ip, n, codeSize, address);
+            int[] operands = new int[n];
+            for (int i = 0; i < n; i++, ip += 4) {
+                operands[i] = BytecodeUtils.getInt(code, ip);
+            }
+            Instr instr = new Instr(opcode, operands);
+            instr.address = address;
+            byAddress[address] = instr;
+            all.add(instr);
+        }
+        byAddress[codeSize] = program.end;
+        program.end.address = codeSize;
+
+        for (Instr instr : all) {
+            int slot = program.getTargetSlot(instr.opcode);
+            if (slot >= 0) {
+                int address = instr.operands[slot];
+                if (address < 0 || address > codeSize || byAddress[address] == null) {
+                    throw new RuntimeException("branch to invalid address " + address + " at address " + instr.address);
+                }
+                instr.target = byAddress[address];
+            }
+        }
+
+        // split the code at gate addresses, gates declared at the same address are empty but the last
+        List<Gate> declared = new ArrayList<>();
+        for (int i = 0; i < constPool.size(); i++) {
+            if (constPool.get(i) instanceof GateAsmSymbol) {
+                GateAsmSymbol symbol = (GateAsmSymbol) constPool.get(i);
+                if (symbol.getAddress() < 0 || symbol.getAddress() > codeSize || byAddress[symbol.getAddress()] == null) {
+                    throw new RuntimeException("gate " + symbol.getName() + " has invalid address " + symbol.getAddress());
+                }
+                declared.add(new Gate(symbol, i));
+            }
+        }
+        declared.sort(Comparator.comparingInt((Gate g) -> g.getSymbol().getAddress()).thenComparingInt(Gate::getPoolIndex));
+
+        Gate current = null;
+        int next = 0;
+        for (Instr instr : all) {
+            while (next < declared.size() && declared.get(next).getSymbol().getAddress() <= instr.address) {
+                current = declared.get(next++);
+                program.gates.add(current);
+            }
+            if (current == null) {
+                current = new Gate(null, -1);
+                program.gates.add(current);
+            }
+            current.getCode().add(instr);
+        }
+        while (next < declared.size()) {
+            program.gates.add(declared.get(next++));
+        }
+        return program;
+    }
+
+    private static void checkOperands(int ip, int count, int codeSize, int address) {
+        if (count < 0 || ip + 4L * count > codeSize) {
+            throw new RuntimeException("truncated instruction at address " + address);
+        }
+    }
+
+    /**
+     * @return operand index of the branch target of opcode or -1 if it does not branch
+     */
+    public int getTargetSlot(int opcode) {
+        Bytecodes.Instruction instruction = instructions[opcode];
+        for (int i = 0; i < instruction.getN(); i++) {
+            if (instruction.getType()[i] == Bytecodes.ID) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public Bytecodes.Instruction[] getInstructions() {
+        return instructions;
+    }
+
+    /**
+     * @return the constant pool, the decoded entries followed by those added with addConstant
+     */
+    public List<ConstPoolEntry> getConstPool() {
+        return Collections.unmodifiableList(constPool);
+    }
+
+    /**
+     * Add an entry to the constant pool, it is added to the assembler when the program is encoded into it
+     * @param entry a new entry, not equal to any entry already in the pool
+     * @return the index of the entry
+     */
+    public int addConstant(ConstPoolEntry entry) {
+        if (constPool.contains(entry)) {
+            throw new RuntimeException("duplicate constant pool entry " + entry);
+        }
+        constPool.add(entry);
+        return constPool.size() - 1;
+    }
+
+    /**
+     * Drop constant pool entries, the entries after them move down and every operand that refers to the
+     * constant pool is renumbered to match
+     * @param keep by constant pool index, true for the entries to keep, which must include every entry an
+     * instruction or a gate of the program refers to
+     */
+    public void retainConstants(boolean[] keep) {
+        int[] map = new int[constPool.size()];
+        List<ConstPoolEntry> kept = new ArrayList<>();
+        for (int i = 0; i < map.length; i++) {
+            map[i] = keep[i] ? kept.size() : -1;
+            if (keep[i]) {
+                kept.add(constPool.get(i));
+            }
+        }
+        for (Gate gate : gates) {
+            if (gate.getPoolIndex() >= 0) {
+                gate.setPoolIndex(renumber(map, gate.getPoolIndex()));
+            }
+            for (Instr instr : gate.getCode()) {
+                Bytecodes.Instruction instruction = instructions[instr.opcode];
+                for (int i = 0; i < Math.min(instruction.getN(), instr.operands.length); i++) {
+                    if (instruction.getType()[i] == Bytecodes.GATE || instruction.getType()[i] == Bytecodes.POOL) {
+                        instr.operands[i] = renumber(map, instr.operands[i]);
+                    }
+                }
+            }
+        }
+        constPool.clear();
+        constPool.addAll(kept);
+        poolRenumbered = true;
+    }
+
+    private static int renumber(int[] map, int poolIndex) {
+        if (poolIndex < 0 || poolIndex >= map.length || map[poolIndex] < 0) {
+            throw new RuntimeException("reference to dropped constant pool entry " + poolIndex);
+        }
+        return map[poolIndex];
+    }
+
+    /**
+     * @return the main gate or null if the program was not decoded from an assembler
+     */
+    public GateAsmSymbol getMainGate() {
+        return mainGate;
+    }
+
+    /**
+     * @return the number of qubits declared by the program or null if it is not known
+     */
+    public Integer getNumQubits() {
+        return numQubits;
+    }
+
+    /**
+     * @return the number of ensemble shots declared by the program or null if it is not known
+     */
+    public Integer getEnsembleSize() {
+        return ensembleSize;
+    }
+
+    /**
+     * @return the gates in layout order
+     */
+    public List<Gate> getGates() {
+        return gates;
+    }
+
+    /**
+     * @return the end of code sentinel, branches to it leave the program
+     */
+    public Instr getEnd() {
+        return end;
+    }
+
+    /**
+     * @param poolIndex constant pool index of a gate
+     * @return the callee of a call instruction or null if the index is not a gate
+     */
+    public GateAsmSymbol getGateSymbol(int poolIndex) {
+        if (poolIndex < 0 || poolIndex >= constPool.size() || !(constPool.get(poolIndex) instanceof GateAsmSymbol)) {
+            return null;
+        }
+        return (GateAsmSymbol) constPool.get(poolIndex);
+    }
+
+    /**
+     * Drop removed instructions, branches to them are forwarded to the next instruction that is kept,
+     * which is where execution would have continued
+     * @return true if anything was removed
+     */
+    public boolean compact() {
+        Instr next = end;
+        boolean changed = false;
+        for (int g = gates.size() - 1; g >= 0; g--) {
+            List<Instr> code = gates.get(g).getCode();
+            for (int i = code.size() - 1; i >= 0; i--) {
+                Instr instr = code.get(i);
+                if (instr.removed) {
+                    instr.forward = next;
+                    changed = true;
+                } else {
+                    next = instr;
+                }
+            }
+        }
+        if (!changed) {
+            return false;
+        }
+
+        for (Gate gate : gates) {
+            gate.getCode().removeIf(instr -> instr.removed);
+            for (Instr instr : gate.getCode()) {
+                if (instr.target != null && instr.target.removed) {
+                    instr.target = instr.target.forward;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Number the instructions in layout order and record the gate holding each one, so analyses can
+     * index arrays by Instr.index and compare Instr.gateIndex. The end sentinel gets the last number
+     * and gate index -1. Numbers are only valid until the code changes.
+     * @return the number of instructions, the index of the end sentinel
+     */
+    public int number() {
+        epoch++;
+        int index = 0;
+        for (int g = 0; g < gates.size(); g++) {
+            for (Instr instr : gates.get(g).getCode()) {
+                instr.index = index++;
+                instr.gateIndex = g;
+                instr.epoch = epoch;
+            }
+        }
+        end.index = index;
+        end.gateIndex = -1;
+        end.epoch = epoch;
+        return index;
+    }
+
+    /**
+     * @return true if instr is in the program as of the last call to number
+     */
+    public boolean isNumbered(Instr instr) {
+        return instr.epoch == epoch && !instr.removed;
+    }
+
+    /**
+     * @return every instruction in layout order
+     */
+    public List<Instr> getCode() {
+        List<Instr> code = new ArrayList<>();
+        for (Gate gate : gates) {
+            code.addAll(gate.getCode());
+        }
+        return Collections.unmodifiableList(code);
+    }
+
+    /**
+     * Lay the gates out in order, resolving branch targets and gate addresses
+     * @return the bytecode, exactly sized
+     */
+    public byte[] encode() {
+        compact();
+
+        int ip = 0;
+        for (Gate gate : gates) {
+            if (gate.getSymbol() != null) {
+                gate.getSymbol().setAddress(ip);
+            }
+            for (Instr instr : gate.getCode()) {
+                instr.address = ip;
+                ip += instr.getSize();
+            }
+        }
+        end.address = ip;
+
+        byte[] code = new byte[ip];
+        number();
+        for (Gate gate : gates) {
+            for (Instr instr : gate.getCode()) {
+                ip = instr.address;
+                code[ip++] = (byte) (instr.opcode & 0xFF);
+                if (instr.target != null) {
+                    if (!isNumbered(instr.target)) {
+                        throw new RuntimeException("branch at " + instr.address + " to code that is not in the program");
+                    }
+                    instr.operands[getTargetSlot(instr.opcode)] = instr.target.address;
+                }
+                for (int operand : instr.operands) {
+                    ip = BytecodeUtils.writeInt(code, ip, operand);
+                }
+            }
+        }
+        return code;
+    }
+
+    /**
+     * Encode the program back into the assembler it was decoded from
+     * @param assembler the assembler whose code is replaced
+     */
+    public void encode(QuDotAssembler assembler) {
+        byte[] code = encode();
+        if (poolRenumbered) {
+            assembler.setConstPool(constPool);
+        } else {
+            for (int i = decodedPoolSize; i < constPool.size(); i++) {
+                if (assembler.addConstant(constPool.get(i)) != i) {
+                    throw new RuntimeException("constant pool of the assembler changed while optimizing");
+                }
+            }
+        }
+        assembler.setBytecode(code, code.length);
+    }
+}
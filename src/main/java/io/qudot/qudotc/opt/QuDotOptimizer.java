@@ -0,0 +1,88 @@
+package io.qudot.qudotc.opt;
+
+import io.qudot.qudotc.qudir.QuDotAssembler;
+import io.qudot.qudotc.utils.Bytecodes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs optimizer passes over the code of an assembled program. The code is decoded once, the passes
+ * transform the decoded program in order, again while one of them finds something to do, and the result is
+ * encoded back into the assembler, which then holds the new code and the new gate addresses in its
+ * constant pool.
+ *
+ * @since 0.1.0
+ */
+public class QuDotOptimizer {
+    private static final int MAX_ROUNDS = 4;
+
+    private final Bytecodes.Instruction[] instructions;
+    private final List<Pass> passes = new ArrayList<>();
+    private final List<Pass> finalPasses = new ArrayList<>();
+
+    public QuDotOptimizer(Bytecodes.Instruction[] instructions) {
+        this.instructions = instructions;
+    }
+
+    /**
+     * @return an optimizer running the default passes
+     */
+    public static QuDotOptimizer createDefault(Bytecodes.Instruction[] instructions) {
+        return new QuDotOptimizer(instructions).addDefaultPasses();
+    }
+
+    /**
+     * Add the passes run by -O
+     */
+    public QuDotOptimizer addDefaultPasses() {
+        return addPass(new ClassicalOptimizer()).addPass(new QuantumOptimizer()).addPass(new RegisterAllocator())
+                .addFinalPass(new PhaseTables());
+    }
+
+    public QuDotOptimizer addPass(Pass pass) {
+        passes.add(pass);
+        return this;
+    }
+
+    /**
+     * Add a pass run once after the others, for rewrites the other passes do not understand
+     */
+    public QuDotOptimizer addFinalPass(Pass pass) {
+        finalPasses.add(pass);
+        return this;
+    }
+
+    public List<Pass> getPasses() {
+        return passes;
+    }
+
+    public List<Pass> getFinalPasses() {
+        return finalPasses;
+    }
+
+    /**
+     * Optimize the code of an assembler in place
+     * @param assembler an assembler without errors
+     * @return true if the code changed
+     */
+    public boolean optimize(QuDotAssembler assembler) {
+        Program program = Program.decode(assembler, instructions);
+        boolean changed = false;
+        boolean again = true;
+        for (int round = 0; again && round < MAX_ROUNDS; round++) {
+            again = false;
+            for (Pass pass : passes) {
+                again |= pass.run(program);
+            }
+            changed |= again;
+        }
+        for (Pass pass : finalPasses) {
+            changed |= pass.run(program);
+        }
+        if (changed) {
+            program.encode(assembler);
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,397 @@
+package io.qudot.qudotc.opt;
+
+import io.qudot.qudotc.utils.BytecodeUtils;
+import io.qudot.qudotc.utils.Bytecodes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Cancels and fuses quantum gates within basic blocks. Every gate applied to a qubit register sweeps the
+ * whole state for every ensemble sample, so removing one pays off far more than any classical saving.
+ * <ul>
+ *     <li>xon, yon, hon, cnot, toff and swap_ab applied twice to the same qubits cancel</li>
+ *     <li>chains of zon, son, sdagon, ton, tdagon and phion/phidagon of the constants 1 to 3 on the same
+ *     qubits are fused into at most two gates, ton; ton becomes son and son; sdagon disappears</li>
+ *     <li>phion and phidagon with the same k on the same qubits cancel</li>
+ * </ul>
+ * A gate is paired with an earlier one only if it commutes with every gate in between: gates on disjoint
+ * qubits commute, and so do gates that only act as Z (phase gates, cnot and toff controls) or only as X
+ * (xon, cnot and toff targets) on every qubit they share. Qubit registers are tracked through qload,
+ * qload_seq, qload_array and qloadr; registers loaded from the same unknown register value hold the same
+ * qubits but are never assumed to be disjoint from anything. Any other quantum operation and every call
+ * end the search, which looks at most MAX_WINDOW gates back so long straight line code stays linear.
+ *
+ * @since 0.1.0
+ */
+public class QuantumOptimizer implements Pass {
+    private static final int SELF_INVERSE = 0;
+    private static final int PHASE = 1;
+    private static final int PHI = 2;
+    private static final int MAX_WINDOW = 64;
+
+    // phase gates in units of pi/4, R(1) = Z, R(2) = S and R(3) = T
+    private static final int[] PHASE_GATES = {-1, Bytecodes.TON, Bytecodes.SON, -1, Bytecodes.ZON, -1,
+            Bytecodes.SDAGON, Bytecodes.TDAGON};
+
+    @Override
+    public String getName() {
+        return "quantum";
+    }
+
+    @Override
+    public boolean run(Program program) {
+        boolean changed = false;
+        boolean[] externalTargets = ControlFlowGraph.getExternalTargets(program);
+        for (Gate gate : program.getGates()) {
+            ControlFlowGraph cfg = new ControlFlowGraph(gate, externalTargets);
+            for (BasicBlock block : cfg.getBlocks()) {
+                changed |= new BlockOptimizer(program).run(block);
+            }
+        }
+        program.compact();
+        return changed;
+    }
+
+    /**
+     * Qubits held by a qubit register, the indices when they are known, otherwise a value that is only
+     * equal to the qubits of registers loaded from the same value
+     */
+    private static final class Qubits {
+        final int[] indices;
+        final Object symbol;
+
+        Qubits(int[] indices, Object symbol) {
+            this.indices = indices;
+            this.symbol = symbol;
+        }
+
+        boolean isKnown() {
+            return indices != null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Qubits)) {
+                return false;
+            }
+            Qubits other = (Qubits) o;
+            return indices != null ? Arrays.equals(indices, other.indices) : symbol == other.symbol;
+        }
+
+        @Override
+        public int hashCode() {
+            return indices != null ? Arrays.hashCode(indices) : System.identityHashCode(symbol);
+        }
+    }
+
+    /**
+     * A gate still open for cancellation. Qubits are split by how the gate acts on them: only as Z,
+     * only as X or otherwise.
+     */
+    private static final class Op {
+        Instr instr;
+        int kind;
+        Qubits[] operands;
+        List<Qubits> z = new ArrayList<>();
+        List<Qubits> x = new ArrayList<>();
+        List<Qubits> other = new ArrayList<>();
+        // PHASE: accumulated phase and the instructions fused into it, PHI: the value of k
+        int phase;
+        List<Instr> members = new ArrayList<>();
+        Object k;
+    }
+
+    private static final class BlockOptimizer {
+        private final Program program;
+        private final Map<Integer, Qubits> qubitRegisters = new HashMap<>();
+        private final Map<Integer, Object> registers = new HashMap<>();
+        private final List<Op> open = new ArrayList<>();
+        private final BitSet defs = new BitSet();
+        private boolean changed;
+
+        BlockOptimizer(Program program) {
+            this.program = program;
+        }
+
+        boolean run(BasicBlock block) {
+            for (Instr instr : block.getInstrs()) {
+                int opcode = instr.opcode;
+                int[] op = instr.operands;
+                switch (opcode) {
+                    case Bytecodes.QLOAD:
+                        qubitRegisters.put(op[0], new Qubits(new int[] {op[1]}, null));
+                        break;
+                    case Bytecodes.QLOAD_SEQUENCE:
+                        qubitRegisters.put(op[0], sequence(op[1], op[2]));
+                        break;
+                    case Bytecodes.QLOAD_ARRAY:
+                        qubitRegisters.put(op[0], new Qubits(Arrays.copyOfRange(op, 2, op.length), null));
+                        break;
+                    case Bytecodes.QLOAD_MASK:
+                        qubitRegisters.put(op[0], new Qubits(BytecodeUtils.getQubitSet(op[1], op, 3, op[2]), null));
+                        break;
+                    case Bytecodes.QLOADR:
+                        Object value = getRegister(op[1]);
+                        qubitRegisters.put(op[0], value instanceof Integer
+                                ? new Qubits(new int[] {(Integer) value}, null)
+                                : new Qubits(null, value));
+                        break;
+                    case Bytecodes.XON:
+                    case Bytecodes.YON:
+                    case Bytecodes.ZON:
+                    case Bytecodes.SON:
+                    case Bytecodes.SDAGON:
+                    case Bytecodes.TON:
+                    case Bytecodes.TDAGON:
+                    case Bytecodes.HON:
+                    case Bytecodes.PHION:
+                    case Bytecodes.PHIDAGON:
+                    case Bytecodes.CNOT:
+                    case Bytecodes.TOFF:
+                    case Bytecodes.SWAP_AB:
+                        add(createOp(instr));
+                        break;
+                    default:
+                        if (isClassical(opcode)) {
+                            define(instr);
+                        } else {
+                            // measurements, whole circuit gates, intrinsics, calls, printing the state
+                            close();
+                            define(instr);
+                            defs.clear();
+                            RegisterEffects.qubitDefs(instr, defs);
+                            for (int q = defs.nextSetBit(0); q >= 0; q = defs.nextSetBit(q + 1)) {
+                                qubitRegisters.remove(q);
+                            }
+                        }
+                }
+            }
+            close();
+            return changed;
+        }
+
+        private static boolean isClassical(int opcode) {
+            switch (opcode) {
+                case Bytecodes.IADD:
+                case Bytecodes.ISUB:
+                case Bytecodes.IMUL:
+                case Bytecodes.IDIV:
+                case Bytecodes.ILT:
+                case Bytecodes.IEQ:
+                case Bytecodes.INCR:
+                case Bytecodes.DECR:
+                case Bytecodes.ILOAD:
+                case Bytecodes.MOVE:
+                case Bytecodes.NULL:
+                case Bytecodes.PRINTR:
+                case Bytecodes.MODPOW:
+                case Bytecodes.TLOAD:
+                    return true;
+                default:
+                    return Instr.invertBranch(opcode) >= 0 || opcode == Bytecodes.BR;
+            }
+        }
+
+        private static Qubits sequence(int from, int to) {
+            if (to < from || (long) to - from > 1 << 16) {
+                return new Qubits(null, new Object());
+            }
+            int[] indices = new int[to - from + 1];
+            for (int i = 0; i < indices.length; i++) {
+                indices[i] = from + i;
+            }
+            return new Qubits(indices, null);
+        }
+
+        // register value numbering, constants are Integers and anything else a fresh object
+        private Object getRegister(int r) {
+            return registers.computeIfAbsent(r, key -> new Object());
+        }
+
+        private Qubits getQubits(int q) {
+            return qubitRegisters.computeIfAbsent(q, key -> new Qubits(null, new Object()));
+        }
+
+        private void define(Instr instr) {
+            if (instr.opcode == Bytecodes.ILOAD) {
+                registers.put(instr.operands[0], instr.operands[1]);
+            } else if (instr.opcode == Bytecodes.MOVE) {
+                registers.put(instr.operands[0], getRegister(instr.operands[1]));
+            } else {
+                defs.clear();
+                RegisterEffects.defs(program, instr, defs);
+                for (int r = defs.nextSetBit(0); r >= 0; r = defs.nextSetBit(r + 1)) {
+                    registers.put(r, new Object());
+                }
+            }
+        }
+
+        private Op createOp(Instr instr) {
+            Op op = new Op();
+            op.instr = instr;
+            int[] operands = instr.operands;
+            switch (instr.opcode) {
+                case Bytecodes.PHION:
+                case Bytecodes.PHIDAGON:
+                    op.operands = new Qubits[] {getQubits(operands[1])};
+                    op.z.add(op.operands[0]);
+                    Object k = getRegister(operands[0]);
+                    if (k instanceof Integer && (Integer) k >= 1 && (Integer) k <= 3) {
+                        int phase = 8 >> (Integer) k;
+                        op.kind = PHASE;
+                        op.phase = instr.opcode == Bytecodes.PHION ? phase : 8 - phase;
+                        op.members.add(instr);
+                    } else {
+                        op.kind = PHI;
+                        op.k = k;
+                    }
+                    return op;
+                case Bytecodes.CNOT:
+                    op.kind = SELF_INVERSE;
+                    op.operands = new Qubits[] {getQubits(operands[0]), getQubits(operands[1])};
+                    op.z.add(op.operands[0]);
+                    op.x.add(op.operands[1]);
+                    return op;
+                case Bytecodes.TOFF:
+                    op.kind = SELF_INVERSE;
+                    op.operands = new Qubits[] {getQubits(operands[0]), getQubits(operands[1])};
+                    op.x.add(op.operands[0]);
+                    op.z.add(op.operands[1]);
+                    return op;
+                case Bytecodes.SWAP_AB:
+                    op.kind = SELF_INVERSE;
+                    op.operands = new Qubits[] {getQubits(operands[0]), getQubits(operands[1])};
+                    op.other.addAll(Arrays.asList(op.operands));
+                    return op;
+                default:
+                    op.operands = new Qubits[] {getQubits(operands[0])};
+                    int phase = getPhase(instr.opcode);
+                    if (phase > 0) {
+                        op.kind = PHASE;
+                        op.phase = phase;
+                        op.members.add(instr);
+                        op.z.add(op.operands[0]);
+                    } else {
+                        op.kind = SELF_INVERSE;
+                        (instr.opcode == Bytecodes.XON ? op.x : op.other).add(op.operands[0]);
+                    }
+                    return op;
+            }
+        }
+
+        private static int getPhase(int opcode) {
+            for (int phase = 1; phase < PHASE_GATES.length; phase++) {
+                if (PHASE_GATES[phase] == opcode) {
+                    return phase;
+                }
+            }
+            return 0;
+        }
+
+        private void add(Op gate) {
+            for (int i = open.size() - 1; i >= 0 && i >= open.size() - MAX_WINDOW; i--) {
+                Op earlier = open.get(i);
+                if (gate.kind == SELF_INVERSE && earlier.kind == SELF_INVERSE
+                        && gate.instr.opcode == earlier.instr.opcode && Arrays.equals(gate.operands, earlier.operands)
+                        || gate.kind == PHI && earlier.kind == PHI && gate.instr.opcode != earlier.instr.opcode
+                        && gate.operands[0].equals(earlier.operands[0]) && Objects.equals(gate.k, earlier.k)) {
+                    earlier.instr.remove();
+                    gate.instr.remove();
+                    open.remove(i);
+                    changed = true;
+                    return;
+                }
+                if (gate.kind == PHASE && earlier.kind == PHASE && gate.operands[0].equals(earlier.operands[0])) {
+                    earlier.phase = (earlier.phase + gate.phase) & 7;
+                    earlier.members.add(gate.instr);
+                    return;
+                }
+                if (!commute(earlier, gate)) {
+                    break;
+                }
+            }
+            open.add(gate);
+        }
+
+        private static boolean commute(Op a, Op b) {
+            if (a.x.isEmpty() && a.other.isEmpty() && b.x.isEmpty() && b.other.isEmpty()) {
+                return true;
+            }
+            if (a.z.isEmpty() && a.other.isEmpty() && b.z.isEmpty() && b.other.isEmpty()) {
+                return true;
+            }
+            return disjoint(a.z, b.x) && disjoint(a.x, b.z) && disjoint(a.other, b.z) && disjoint(a.other, b.x)
+                    && disjoint(a.other, b.other) && disjoint(a.z, b.other) && disjoint(a.x, b.other);
+        }
+
+        private static boolean disjoint(List<Qubits> a, List<Qubits> b) {
+            for (Qubits p : a) {
+                for (Qubits q : b) {
+                    if (!p.isKnown() || !q.isKnown() || intersect(p.indices, q.indices)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private static boolean intersect(int[] a, int[] b) {
+            if ((long) a.length * b.length <= 64) {
+                for (int i : a) {
+                    for (int j : b) {
+                        if (i == j) {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            }
+            Set<Integer> indices = new HashSet<>();
+            for (int i : a) {
+                indices.add(i);
+            }
+            for (int j : b) {
+                if (indices.contains(j)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // write out the fused phase gates reusing the instructions that were fused
+        private void close() {
+            for (Op op : open) {
+                if (op.kind != PHASE || op.members.size() < 2) {
+                    continue;
+                }
+                int[] gates;
+                switch (op.phase) {
+                    case 0: gates = new int[0]; break;
+                    case 3: gates = new int[] {Bytecodes.SON, Bytecodes.TON}; break;
+                    case 5: gates = new int[] {Bytecodes.ZON, Bytecodes.TON}; break;
+                    default: gates = new int[] {PHASE_GATES[op.phase]};
+                }
+                for (int i = 0; i < op.members.size(); i++) {
+                    Instr member = op.members.get(i);
+                    if (i < gates.length) {
+                        // the qubit register is the last operand of every phase gate
+                        int qubitRegister = member.operands[member.operands.length - 1];
+                        member.replace(gates[i], null, qubitRegister);
+                    } else {
+                        member.remove();
+                    }
+                }
+                changed = true;
+            }
+            open.clear();
+        }
+    }
+}
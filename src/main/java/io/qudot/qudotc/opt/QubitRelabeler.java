@@ -0,0 +1,237 @@
+package io.qudot.qudotc.opt;
+
+import io.qudot.qudotc.qudir.ConstPoolEntry;
+import io.qudot.qudotc.qudir.ConstPoolType;
+import io.qudot.qudotc.qudir.QubitMapConstant;
+import io.qudot.qudotc.utils.BytecodeUtils;
+import io.qudot.qudotc.utils.Bytecodes;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Renumbers qubits 1 to numQubits so the qubits that interact most take the lowest numbers. A state vector
+ * simulator pairs amplitudes 2^q apart to apply a gate to qubit q, so two qubit gates between low qubits
+ * touch amplitudes that share cache lines. Interactions are counted over the cnot, crot, semi_cnot,
+ * semi_crot, swap_ab and toff instructions of the program, weighting each pair of qubits by the number of
+ * instructions that couple them. The qubits are then placed greedily: the busiest first, then each time
+ * the qubit most coupled to those already placed.
+ * <p>
+ * Every qload, qload_seq, qload_array and qload_mask is rewritten with the new numbers, a qload_seq whose
+ * qubits are no longer consecutive becomes a qload_array or qload_mask. The source label of each qubit
+ * is added to the constant pool as a QUBIT_MAP entry so measurements and paths can be reported with the
+ * labels of the source. Qubit 0 keeps its number.
+ * <p>
+ * The pass does nothing unless every qubit is loaded from a constant, so it is best run after -O has
+ * folded qloadr, and it does nothing for programs using swap, qft, qft_inv or the quantum arithmetic
+ * instructions, which depend on the order of the qubits in the state.
+ *
+ * @since 0.1.0
+ */
+public class QubitRelabeler implements Pass {
+    // largest program renumbered, the interaction counts take numQubits^2 ints
+    private static final int MAX_QUBITS = 1024;
+
+    private int numQubits;
+    // interactions between each pair of qubits
+    private int[][] weights;
+
+    @Override
+    public String getName() {
+        return "relabel";
+    }
+
+    @Override
+    public boolean run(Program program) {
+        if (program.getNumQubits() == null || program.getNumQubits() < 2 || program.getNumQubits() > MAX_QUBITS) {
+            return false;
+        }
+        for (ConstPoolEntry entry : program.getConstPool()) {
+            if (entry.getType() == ConstPoolType.QUBIT_MAP) {
+                return false;
+            }
+        }
+        numQubits = program.getNumQubits();
+        weights = new int[numQubits + 1][numQubits + 1];
+        for (Gate gate : program.getGates()) {
+            if (!countInteractions(gate)) {
+                return false;
+            }
+        }
+
+        int[] labels = getLabels();
+        if (labels == null) {
+            return false;
+        }
+        int[] qubits = new int[labels.length];
+        for (int q = 0; q < labels.length; q++) {
+            qubits[labels[q]] = q;
+        }
+        for (Gate gate : program.getGates()) {
+            for (Instr instr : gate.getCode()) {
+                relabel(instr, qubits);
+            }
+        }
+        program.addConstant(new QubitMapConstant(labels));
+        return true;
+    }
+
+    /**
+     * Add the interactions of a gate to weights, following the qubits each qubit register was last loaded
+     * with in layout order
+     * @return false if the gate uses a qubit not loaded from a constant or depends on the order of qubits
+     */
+    private boolean countInteractions(Gate gate) {
+        Map<Integer, int[]> loaded = new HashMap<>();
+        for (Instr instr : gate.getCode()) {
+            int[] op = instr.operands;
+            switch (instr.opcode) {
+                case Bytecodes.QLOADR:
+                case Bytecodes.XONR:
+                case Bytecodes.YONR:
+                case Bytecodes.ZONR:
+                case Bytecodes.SONR:
+                case Bytecodes.TONR:
+                case Bytecodes.HONR:
+                case Bytecodes.SDAGONR:
+                case Bytecodes.TDAGONR:
+                case Bytecodes.CNOTR:
+                case Bytecodes.SWAP:
+                case Bytecodes.QFT:
+                case Bytecodes.QFT_INV:
+                case Bytecodes.IQUADD:
+                case Bytecodes.IQUADD_MOD:
+                case Bytecodes.IQUMUL_MOD:
+                case Bytecodes.CIQUADD_MOD:
+                case Bytecodes.CIQUMUL_MOD:
+                    return false;
+                case Bytecodes.QLOAD:
+                case Bytecodes.QLOAD_SEQUENCE:
+                case Bytecodes.QLOAD_ARRAY:
+                case Bytecodes.QLOAD_MASK: {
+                    if (instr.opcode == Bytecodes.QLOAD_SEQUENCE && (op[1] < 0 || op[2] > numQubits)) {
+                        return false;
+                    }
+                    int[] qubits = getQubits(instr);
+                    for (int qubit : qubits) {
+                        if (qubit < 0 || qubit > numQubits) {
+                            return false;
+                        }
+                    }
+                    loaded.put(op[0], qubits);
+                    break;
+                }
+                case Bytecodes.CNOT:
+                case Bytecodes.CROT:
+                case Bytecodes.SEMI_CNOT:
+                case Bytecodes.SWAP_AB:
+                case Bytecodes.TOFF:
+                    addInteractions(loaded.get(op[0]), loaded.get(op[1]));
+                    break;
+                case Bytecodes.SEMI_CROT:
+                case Bytecodes.SEMI_CROT_T:
+                    addInteractions(loaded.get(op[1]), loaded.get(op[2]));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return true;
+    }
+
+    private void addInteractions(int[] a, int[] b) {
+        if (a == null || b == null) {
+            return;
+        }
+        for (int p : a) {
+            for (int q : b) {
+                if (p != q) {
+                    weights[p][q]++;
+                    weights[q][p]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Place the qubits, the busiest first and then each time the one most coupled to the qubits placed,
+     * ties going to the busiest and then the lowest label
+     * @return the source label of each qubit or null if the labels would not change
+     */
+    private int[] getLabels() {
+        long[] total = new long[numQubits + 1];
+        for (int p = 1; p <= numQubits; p++) {
+            for (int q = 1; q <= numQubits; q++) {
+                total[p] += weights[p][q];
+            }
+        }
+        long[] affinity = new long[numQubits + 1];
+        boolean[] placed = new boolean[numQubits + 1];
+        int[] labels = new int[numQubits + 1];
+        boolean changed = false;
+        for (int q = 1; q <= numQubits; q++) {
+            int best = -1;
+            for (int p = 1; p <= numQubits; p++) {
+                if (!placed[p] && (best < 0 || affinity[p] > affinity[best]
+                        || affinity[p] == affinity[best] && total[p] > total[best])) {
+                    best = p;
+                }
+            }
+            placed[best] = true;
+            labels[q] = best;
+            changed |= best != q;
+            for (int p = 1; p <= numQubits; p++) {
+                affinity[p] += weights[best][p];
+            }
+        }
+        return changed ? labels : null;
+    }
+
+    private static void relabel(Instr instr, int[] qubits) {
+        int[] op = instr.operands;
+        switch (instr.opcode) {
+            case Bytecodes.QLOAD:
+                op[1] = qubits[op[1]];
+                break;
+            case Bytecodes.QLOAD_SEQUENCE:
+            case Bytecodes.QLOAD_ARRAY:
+            case Bytecodes.QLOAD_MASK: {
+                int[] loaded = getQubits(instr);
+                if (loaded.length == 0) {
+                    break;
+                }
+                for (int i = 0; i < loaded.length; i++) {
+                    loaded[i] = qubits[loaded[i]];
+                }
+                int[] load = BytecodeUtils.getQubitLoad(op[0], loaded, instr.opcode == Bytecodes.QLOAD_MASK);
+                instr.replace(load[0], null, Arrays.copyOfRange(load, 1, load.length));
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @return the qubits a qload, qload_seq, qload_array or qload_mask loads, in load order
+     */
+    private static int[] getQubits(Instr instr) {
+        int[] op = instr.operands;
+        switch (instr.opcode) {
+            case Bytecodes.QLOAD:
+                return new int[] {op[1]};
+            case Bytecodes.QLOAD_SEQUENCE: {
+                int[] qubits = new int[Math.max(op[2] - op[1] + 1, 0)];
+                for (int i = 0; i < qubits.length; i++) {
+                    qubits[i] = op[1] + i;
+                }
+                return qubits;
+            }
+            case Bytecodes.QLOAD_ARRAY:
+                return Arrays.copyOfRange(op, 2, op.length);
+            default:
+                return BytecodeUtils.getQubitSet(op[1], op, 3, op[2]);
+        }
+    }
+}
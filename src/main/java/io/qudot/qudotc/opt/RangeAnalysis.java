@@ -0,0 +1,499 @@
+package io.qudot.qudotc.opt;
+
+import io.qudot.qudotc.utils.Bytecodes;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounds on the values of the registers of one gate, an interval for each register at the start of each
+ * basic block. A branch on a register narrows its interval on the edge it takes, and intervals growing
+ * around a loop are widened to every int. Counted loops keep their bounds: a loop only entered at its head,
+ * with no loop inside, whose exit test every iteration passes compares a counter that only decr or only
+ * incr change and that changes on every iteration, runs a bounded number of times. So does every register
+ * only incr or only decr change in it.
+ *
+ * @since 0.1.0
+ */
+final class RangeAnalysis {
+    private static final long MIN = Integer.MIN_VALUE;
+    private static final long MAX = Integer.MAX_VALUE;
+
+    private final Program program;
+    private final ControlFlowGraph cfg;
+    private final int registers;
+    private final BitSet defs = new BitSet();
+    // bounds at the start of each block, null for blocks never reached
+    private Ranges[] in;
+    // by block index, the bounds a counted loop keeps at its head, null for other blocks
+    private Ranges[] invariants;
+
+    /**
+     * An interval for each register, every int when nothing is known
+     */
+    static final class Ranges {
+        final long[] lo;
+        final long[] hi;
+
+        Ranges(int registers) {
+            lo = new long[registers];
+            hi = new long[registers];
+            Arrays.fill(lo, MIN);
+            Arrays.fill(hi, MAX);
+        }
+
+        Ranges(Ranges other) {
+            lo = other.lo.clone();
+            hi = other.hi.clone();
+        }
+
+        void set(int r, long l, long h) {
+            // the VM owns r0, an interval beyond an int may have wrapped
+            if (r == RegisterEffects.VM_REGISTER || l < MIN || h > MAX) {
+                lo[r] = MIN;
+                hi[r] = MAX;
+            } else {
+                lo[r] = l;
+                hi[r] = h;
+            }
+        }
+
+        /**
+         * @return false if r cannot be within [l, h]
+         */
+        boolean narrow(int r, long l, long h) {
+            if (r == RegisterEffects.VM_REGISTER) {
+                return true;
+            }
+            lo[r] = Math.max(lo[r], l);
+            hi[r] = Math.min(hi[r], h);
+            return lo[r] <= hi[r];
+        }
+
+        /**
+         * Join other into these bounds, bounds that grow on a back edge are widened
+         * @param invariant bounds that always hold here or null
+         * @return true if the bounds changed
+         */
+        boolean join(Ranges other, boolean widen, Ranges invariant) {
+            boolean changed = false;
+            for (int r = 0; r < lo.length; r++) {
+                long l = lo[r];
+                long h = hi[r];
+                if (other.lo[r] < l) {
+                    l = widen ? MIN : other.lo[r];
+                }
+                if (other.hi[r] > h) {
+                    h = widen ? MAX : other.hi[r];
+                }
+                if (invariant != null) {
+                    l = Math.max(l, invariant.lo[r]);
+                    h = Math.min(h, invariant.hi[r]);
+                }
+                if (l != lo[r] || h != hi[r]) {
+                    lo[r] = l;
+                    hi[r] = h;
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+    }
+
+    /**
+     * @param cfg the basic blocks of a gate
+     * @param registers registers the gate refers to
+     */
+    RangeAnalysis(Program program, ControlFlowGraph cfg, int registers) {
+        this.program = program;
+        this.cfg = cfg;
+        this.registers = registers;
+        invariants = new Ranges[cfg.getBlocks().size()];
+        solve();
+        if (findCountedLoops()) {
+            solve();
+        }
+    }
+
+    /**
+     * @return for each reachable instruction with the opcode, the interval of the register it has as
+     * operand before it runs
+     */
+    Map<Instr, long[]> getRanges(int opcode, int operand) {
+        Map<Instr, long[]> ranges = new HashMap<>();
+        for (BasicBlock block : cfg.getBlocks()) {
+            if (in[block.getIndex()] == null) {
+                continue;
+            }
+            Ranges state = new Ranges(in[block.getIndex()]);
+            for (Instr instr : block.instrs) {
+                if (instr.opcode == opcode) {
+                    int r = instr.operands[operand];
+                    ranges.put(instr, new long[]{state.lo[r], state.hi[r]});
+                }
+                transfer(instr, state);
+            }
+        }
+        return ranges;
+    }
+
+    private void solve() {
+        List<BasicBlock> blocks = cfg.getBlocks();
+        in = new Ranges[blocks.size()];
+        for (BasicBlock block : blocks) {
+            if (block.entry) {
+                in[block.getIndex()] = new Ranges(registers);
+            }
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (BasicBlock block : blocks) {
+                if (in[block.getIndex()] == null) {
+                    continue;
+                }
+                Ranges out = getOut(block);
+                for (BasicBlock successor : block.successors) {
+                    Ranges edge = getEdge(block, out, successor);
+                    if (edge == null) {
+                        continue;
+                    }
+                    int s = successor.getIndex();
+                    if (in[s] == null) {
+                        // joining the edge with itself keeps it within what a counted loop keeps
+                        in[s] = new Ranges(edge);
+                        in[s].join(edge, false, invariants[s]);
+                        changed = true;
+                    } else {
+                        changed |= in[s].join(edge, s <= block.getIndex(), invariants[s]);
+                    }
+                }
+            }
+        }
+    }
+
+    private Ranges getOut(BasicBlock block) {
+        Ranges state = new Ranges(in[block.getIndex()]);
+        for (Instr instr : block.instrs) {
+            transfer(instr, state);
+        }
+        return state;
+    }
+
+    /**
+     * @return the bounds on the edge from block to successor, null if the branch never takes it
+     */
+    private Ranges getEdge(BasicBlock block, Ranges out, BasicBlock successor) {
+        Instr last = block.getLast();
+        if (!last.isConditionalBranch()) {
+            return out;
+        }
+        BasicBlock target = cfg.getBlock(last.target);
+        int next = block.getIndex() + 1;
+        boolean fallsInto = next < cfg.getBlocks().size() && cfg.getBlocks().get(next) == successor;
+        if (target == successor && fallsInto) {
+            return out;
+        }
+        Ranges edge = new Ranges(out);
+        return narrow(block, edge, target == successor) ? edge : null;
+    }
+
+    private void transfer(Instr instr, Ranges state) {
+        int[] op = instr.operands;
+        switch (instr.opcode) {
+            case Bytecodes.ILOAD:
+                state.set(op[0], op[1], op[1]);
+                break;
+            case Bytecodes.MOVE:
+                state.set(op[0], state.lo[op[1]], state.hi[op[1]]);
+                break;
+            case Bytecodes.IADD:
+                state.set(op[0], state.lo[op[1]] + state.lo[op[2]], state.hi[op[1]] + state.hi[op[2]]);
+                break;
+            case Bytecodes.ISUB:
+                state.set(op[0], state.lo[op[1]] - state.hi[op[2]], state.hi[op[1]] - state.lo[op[2]]);
+                break;
+            case Bytecodes.INCR:
+                state.set(op[0], state.lo[op[0]] + 1, state.hi[op[0]] + 1);
+                break;
+            case Bytecodes.DECR:
+                state.set(op[0], state.lo[op[0]] - 1, state.hi[op[0]] - 1);
+                break;
+            case Bytecodes.ILT:
+            case Bytecodes.IEQ:
+                state.set(op[0], 0, 1);
+                break;
+            case Bytecodes.MODPOW:
+                if (state.lo[op[3]] > 0) {
+                    state.set(op[0], 0, state.hi[op[3]] - 1);
+                } else {
+                    state.set(op[0], MIN, MAX);
+                }
+                break;
+            default:
+                defs.clear();
+                RegisterEffects.defs(program, instr, defs);
+                for (int r = defs.nextSetBit(0); r >= 0; r = defs.nextSetBit(r + 1)) {
+                    state.set(r, MIN, MAX);
+                }
+        }
+    }
+
+    /**
+     * Narrow state at the end of block to the edge where its branch is taken or not
+     * @return false if the branch never goes that way
+     */
+    private boolean narrow(BasicBlock block, Ranges state, boolean taken) {
+        Instr instr = block.getLast();
+        int[] op = instr.operands;
+        int r = op[0];
+        switch (instr.opcode) {
+            case Bytecodes.BRLEZ:
+                return taken ? state.narrow(r, MIN, 0) : state.narrow(r, 1, MAX);
+            case Bytecodes.BRLTZ:
+                return taken ? state.narrow(r, MIN, -1) : state.narrow(r, 0, MAX);
+            case Bytecodes.BRGEZ:
+                return taken ? state.narrow(r, 0, MAX) : state.narrow(r, MIN, -1);
+            case Bytecodes.BRGTZ:
+                return taken ? state.narrow(r, 1, MAX) : state.narrow(r, MIN, 0);
+            case Bytecodes.BREQ:
+            case Bytecodes.BRNEQ:
+                if (taken != (instr.opcode == Bytecodes.BREQ)) {
+                    return true;
+                }
+                return state.narrow(r, state.lo[op[1]], state.hi[op[1]])
+                        && state.narrow(op[1], state.lo[r], state.hi[r]);
+            case Bytecodes.BRT:
+            case Bytecodes.BRF: {
+                // a condition computed by ilt a, n in the same block
+                Instr ilt = getDef(block, r);
+                if (ilt == null || ilt.opcode != Bytecodes.ILT) {
+                    return true;
+                }
+                int a = ilt.operands[1];
+                int n = ilt.operands[2];
+                if (a == r || n == r || isDefinedAfter(block, ilt, a) || isDefinedAfter(block, ilt, n)) {
+                    return true;
+                }
+                if (taken == (instr.opcode == Bytecodes.BRT)) {
+                    return state.narrow(a, MIN, state.hi[n] - 1) && state.narrow(n, state.lo[a] + 1, MAX);
+                }
+                return state.narrow(a, state.lo[n], MAX) && state.narrow(n, MIN, state.hi[a]);
+            }
+            default:
+                return true;
+        }
+    }
+
+    // the last instruction of block writing r or null
+    private Instr getDef(BasicBlock block, int r) {
+        for (int i = block.instrs.size() - 1; i >= 0; i--) {
+            Instr instr = block.instrs.get(i);
+            defs.clear();
+            RegisterEffects.defs(program, instr, defs);
+            if (defs.get(r)) {
+                return instr;
+            }
+        }
+        return null;
+    }
+
+    private boolean isDefinedAfter(BasicBlock block, Instr instr, int r) {
+        for (int i = block.instrs.indexOf(instr) + 1; i < block.instrs.size(); i++) {
+            defs.clear();
+            RegisterEffects.defs(program, block.instrs.get(i), defs);
+            if (defs.get(r)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the bounds counted loops keep at their heads, from the bounds found without them
+     * @return true if there is a counted loop
+     */
+    private boolean findCountedLoops() {
+        boolean found = false;
+        for (BasicBlock head : cfg.getBlocks()) {
+            if (in[head.getIndex()] == null || head.entry) {
+                continue;
+            }
+            List<BasicBlock> latches = new ArrayList<>();
+            for (BasicBlock predecessor : head.predecessors) {
+                if (predecessor.getIndex() >= head.getIndex() && in[predecessor.getIndex()] != null) {
+                    latches.add(predecessor);
+                }
+            }
+            if (!latches.isEmpty()) {
+                invariants[head.getIndex()] = getLoopInvariant(head, latches);
+                found |= invariants[head.getIndex()] != null;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the bounds the loop keeps at its head or null if it is not a counted loop
+     */
+    private Ranges getLoopInvariant(BasicBlock head, List<BasicBlock> latches) {
+        List<BasicBlock> blocks = cfg.getBlocks();
+        // the loop is the head and the blocks reaching a latch without passing it, by position in the loop
+        Map<BasicBlock, Integer> body = new HashMap<>();
+        body.put(head, 0);
+        Deque<BasicBlock> work = new ArrayDeque<>();
+        for (BasicBlock latch : latches) {
+            if (body.putIfAbsent(latch, 0) == null) {
+                work.push(latch);
+            }
+        }
+        while (!work.isEmpty()) {
+            for (BasicBlock predecessor : work.pop().predecessors) {
+                if (body.putIfAbsent(predecessor, 0) == null) {
+                    work.push(predecessor);
+                }
+            }
+        }
+        List<BasicBlock> loop = new ArrayList<>(body.keySet());
+        loop.sort((a, b) -> Integer.compare(a.getIndex(), b.getIndex()));
+        if (loop.get(0) != head) {
+            return null;
+        }
+        // entered at the head only and, apart from the branches back to the head, in layout order so each
+        // block runs at most once per iteration
+        for (int i = 0; i < loop.size(); i++) {
+            BasicBlock block = loop.get(i);
+            body.put(block, i);
+            if (block != head && (block.entry || block.predecessors.stream().anyMatch(p -> !body.containsKey(p)))) {
+                return null;
+            }
+            for (BasicBlock successor : block.successors) {
+                if (body.containsKey(successor) && successor != head && successor.getIndex() <= block.getIndex()) {
+                    return null;
+                }
+            }
+        }
+
+        // registers only incr or only decr change, by how much in one iteration at most
+        int[] steps = new int[registers];
+        boolean[] varying = new boolean[registers];
+        // the blocks every iteration runs, by position in the loop, and the counters they change
+        BitSet[] dominators = new BitSet[loop.size()];
+        for (int i = 0; i < loop.size(); i++) {
+            BasicBlock block = loop.get(i);
+            BitSet dominator = null;
+            if (block != head) {
+                for (BasicBlock predecessor : block.predecessors) {
+                    if (dominator == null) {
+                        dominator = (BitSet) dominators[body.get(predecessor)].clone();
+                    } else {
+                        dominator.and(dominators[body.get(predecessor)]);
+                    }
+                }
+            }
+            dominators[i] = dominator == null ? new BitSet() : dominator;
+            dominators[i].set(i);
+            for (Instr instr : block.instrs) {
+                defs.clear();
+                RegisterEffects.defs(program, instr, defs);
+                for (int r = defs.nextSetBit(0); r >= 0; r = defs.nextSetBit(r + 1)) {
+                    if (instr.opcode == Bytecodes.INCR && steps[r] >= 0) {
+                        steps[r]++;
+                    } else if (instr.opcode == Bytecodes.DECR && steps[r] <= 0) {
+                        steps[r]--;
+                    } else {
+                        varying[r] = true;
+                    }
+                }
+            }
+        }
+        BitSet always = null;
+        for (BasicBlock latch : latches) {
+            if (always == null) {
+                always = (BitSet) dominators[body.get(latch)].clone();
+            } else {
+                always.and(dominators[body.get(latch)]);
+            }
+        }
+        BitSet counters = new BitSet();
+        for (int i = always.nextSetBit(0); i >= 0; i = always.nextSetBit(i + 1)) {
+            for (Instr instr : loop.get(i).instrs) {
+                if (instr.opcode == Bytecodes.INCR || instr.opcode == Bytecodes.DECR) {
+                    counters.set(instr.operands[0]);
+                }
+            }
+        }
+
+        // the bounds entering the loop
+        Ranges initial = null;
+        for (BasicBlock predecessor : head.predecessors) {
+            if (body.containsKey(predecessor) || in[predecessor.getIndex()] == null) {
+                continue;
+            }
+            Ranges edge = getEdge(predecessor, getOut(predecessor), head);
+            if (edge == null) {
+                continue;
+            }
+            if (initial == null) {
+                initial = new Ranges(edge);
+            } else {
+                initial.join(edge, false, null);
+            }
+        }
+        if (initial == null) {
+            return null;
+        }
+
+        // iterations, the times the loop branches back to its head, bounded by an exit test on a counter
+        long iterations = Long.MAX_VALUE;
+        for (int i = always.nextSetBit(0); i >= 0; i = always.nextSetBit(i + 1)) {
+            BasicBlock block = loop.get(i);
+            Instr last = block.getLast();
+            if (!last.isConditionalBranch() || in[block.getIndex()] == null) {
+                continue;
+            }
+            BasicBlock target = cfg.getBlock(last.target);
+            int next = block.getIndex() + 1;
+            boolean targetStays = target != null && body.containsKey(target);
+            boolean nextStays = next < blocks.size() && body.containsKey(blocks.get(next))
+                    && block.successors.contains(blocks.get(next));
+            if (targetStays == nextStays) {
+                continue;
+            }
+            Ranges stay = new Ranges(getOut(block));
+            if (!narrow(block, stay, targetStays)) {
+                iterations = 0;
+                continue;
+            }
+            for (int c = counters.nextSetBit(0); c >= 0; c = counters.nextSetBit(c + 1)) {
+                if (varying[c] || steps[c] == 0) {
+                    continue;
+                }
+                // between two tests the counter changes by at most its step, it must not wrap around
+                long bound = steps[c] < 0 ? initial.hi[c] - stay.lo[c] + 1 : stay.hi[c] - initial.lo[c] + 1;
+                boolean wraps = steps[c] < 0 ? stay.lo[c] + steps[c] < MIN : stay.hi[c] + steps[c] > MAX;
+                if (!wraps) {
+                    iterations = Math.min(iterations, Math.max(0, bound));
+                }
+            }
+        }
+        if (iterations == Long.MAX_VALUE) {
+            return null;
+        }
+        Ranges invariant = new Ranges(registers);
+        for (int r = 0; r < registers; r++) {
+            if (varying[r]) {
+                continue;
+            }
+            long change = steps[r] * iterations;
+            invariant.set(r, initial.lo[r] + Math.min(change, 0), initial.hi[r] + Math.max(change, 0));
+        }
+        return invariant;
+    }
+}
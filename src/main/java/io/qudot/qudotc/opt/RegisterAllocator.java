@@ -0,0 +1,290 @@
+package io.qudot.qudotc.opt;
+
+import io.qudot.qudotc.qudir.GateAsmSymbol;
+import io.qudot.qudotc.utils.Bytecodes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Renumbers the registers and qubit registers of each gate into a dense range, sharing a number between
+ * registers that are never live at the same time, and shrinks the regs and qubit_regs of the gate to match,
+ * so the VM allocates smaller frames on every call. r0 and the arguments keep their numbers, the registers
+ * a call passes stay consecutive and a register read before it is written gets a number of its own.
+ * <p>
+ * Gates that share code with other gates, by falling through or branching between them, keep their
+ * registers. A gate is only renumbered when its frame gets smaller.
+ *
+ * @since 0.1.0
+ */
+public class RegisterAllocator implements Pass {
+    private static final int MAX_REGISTERS = 1 << 12;
+
+    private Program program;
+    private final BitSet defs = new BitSet();
+    private final BitSet qubitDefs = new BitSet();
+    private final BitSet uses = new BitSet();
+
+    @Override
+    public String getName() {
+        return "registers";
+    }
+
+    @Override
+    public boolean run(Program program) {
+        this.program = program;
+        program.compact();
+        boolean[] externalTargets = ControlFlowGraph.getExternalTargets(program);
+        boolean changed = false;
+        boolean fallsThrough = false;
+        for (Gate gate : program.getGates()) {
+            boolean fallenInto = fallsThrough;
+            if (!gate.getCode().isEmpty()) {
+                fallsThrough = gate.fallsThrough();
+                if (!fallenInto && isSelfContained(gate, externalTargets)) {
+                    changed |= allocate(gate, externalTargets);
+                }
+            }
+        }
+        return changed;
+    }
+
+    private static boolean isSelfContained(Gate gate, boolean[] externalTargets) {
+        if (gate.getSymbol() == null || gate.fallsThrough()) {
+            return false;
+        }
+        for (Instr instr : gate.getCode()) {
+            if (externalTargets[instr.index] || instr.target != null && instr.target.gateIndex != instr.gateIndex) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean allocate(Gate gate, boolean[] externalTargets) {
+        GateAsmSymbol symbol = gate.getSymbol();
+        int registers = RegisterEffects.getRegisterCount(program, gate);
+        int qubitRegisters = RegisterEffects.getQubitRegisterCount(program, gate);
+        if (registers < 0 || qubitRegisters < 0 || registers > MAX_REGISTERS || qubitRegisters > MAX_REGISTERS) {
+            return false;
+        }
+        BitSet[] interference = getInterference(gate, new ControlFlowGraph(gate, externalTargets), registers,
+                qubitRegisters);
+
+        int args = symbol.getArgs();
+        int[] registerMap = new int[registers];
+        int[] qubitMap = new int[qubitRegisters];
+        Arrays.fill(registerMap, -1);
+        Arrays.fill(qubitMap, -1);
+        int[] clusters = getCallClusters(gate, registers);
+        List<BitSet> owners = new ArrayList<>();
+        for (int r = 0; r <= args; r++) {
+            assign(registerMap, owners, r, r);
+        }
+        // a cluster holding an argument keeps its numbers too
+        for (int r = 0; r < registers; r++) {
+            if (clusters[r] >= 0 && clusters[r] <= args) {
+                assign(registerMap, owners, r, r);
+            }
+        }
+        List<BitSet> qubitOwners = new ArrayList<>();
+        for (Instr instr : gate.getCode()) {
+            Bytecodes.Instruction instruction = program.getInstructions()[instr.opcode];
+            for (int i = 0; i < Math.min(instruction.getN(), instr.operands.length); i++) {
+                int operand = instr.operands[i];
+                if (instruction.getType()[i] == Bytecodes.REG && registerMap[operand] < 0) {
+                    int first = clusters[operand] >= 0 ? clusters[operand] : operand;
+                    int last = first;
+                    while (last + 1 < registers && clusters[last + 1] == first) {
+                        last++;
+                    }
+                    color(registerMap, owners, interference, 0, first, last, args + 1);
+                } else if (instruction.getType()[i] == Bytecodes.QUREG && qubitMap[operand] < 0) {
+                    color(qubitMap, qubitOwners, interference, registers, operand, operand, 0);
+                }
+            }
+        }
+
+        int newRegisters = Math.max(owners.size(), args + 1);
+        int newQubitRegisters = qubitOwners.size();
+        boolean renumber = newRegisters <= registers && newQubitRegisters <= qubitRegisters
+                && (newRegisters < registers || newQubitRegisters < qubitRegisters);
+        if (!renumber) {
+            return false;
+        }
+        for (Instr instr : gate.getCode()) {
+            Bytecodes.Instruction instruction = program.getInstructions()[instr.opcode];
+            for (int i = 0; i < Math.min(instruction.getN(), instr.operands.length); i++) {
+                if (instruction.getType()[i] == Bytecodes.REG) {
+                    instr.operands[i] = registerMap[instr.operands[i]];
+                } else if (instruction.getType()[i] == Bytecodes.QUREG) {
+                    instr.operands[i] = qubitMap[instr.operands[i]];
+                }
+            }
+        }
+        symbol.setRegs(newRegisters - 1 - args);
+        symbol.setQubitRegs(newQubitRegisters);
+        return true;
+    }
+
+    /**
+     * The registers passed by calls with more than one argument must stay consecutive, overlapping
+     * ranges are merged into clusters that are numbered together
+     * @return by register, the first register of its cluster or -1
+     */
+    private int[] getCallClusters(Gate gate, int registers) {
+        int[] end = new int[registers];
+        Arrays.fill(end, -1);
+        for (Instr instr : gate.getCode()) {
+            int args = instr.opcode == Bytecodes.CALL ? RegisterEffects.getArgs(program, instr) : 0;
+            int first = args > 1 ? instr.operands[1] : RegisterEffects.VM_REGISTER;
+            if (first != RegisterEffects.VM_REGISTER) {
+                end[first] = Math.max(end[first], first + args - 1);
+            }
+        }
+        int[] clusters = new int[registers];
+        Arrays.fill(clusters, -1);
+        int first = -1;
+        int last = -1;
+        for (int r = 0; r < registers; r++) {
+            if (r > last) {
+                first = end[r] >= 0 ? r : -1;
+            }
+            last = Math.max(last, end[r]);
+            clusters[r] = r <= last ? first : -1;
+        }
+        return clusters;
+    }
+
+    private static void assign(int[] map, List<BitSet> owners, int from, int to) {
+        while (owners.size() <= to) {
+            owners.add(new BitSet());
+        }
+        owners.get(to).set(from);
+        map[from] = to;
+    }
+
+    /**
+     * Give the registers first..last the lowest consecutive numbers from min on that no register they
+     * interfere with already has
+     * @param offset where the registers being colored start in the interference graph
+     */
+    private static void color(int[] map, List<BitSet> owners, BitSet[] interference, int offset, int first, int last,
+                              int min) {
+        int base = min;
+        for (int j = 0; first + j <= last; j++) {
+            int to = base + j;
+            if (to < owners.size() && owners.get(to).intersects(interference[offset + first + j])) {
+                base++;
+                j = -1;
+            }
+        }
+        for (int j = 0; first + j <= last; j++) {
+            assign(map, owners, first + j, base + j);
+        }
+    }
+
+    /**
+     * Build the interference graph of the registers, followed by the qubit registers, of a gate. Registers
+     * interfere if one is written while the other is live. A register that is read before it is written,
+     * other than r0 and the arguments, interferes with every other register.
+     * <p>
+     * Owners store registers by their own numbers, so interference rows are indexed the same way for both
+     * kinds, qubit register q is row registers + q but owns bit q.
+     */
+    private BitSet[] getInterference(Gate gate, ControlFlowGraph cfg, int registers, int qubitRegisters) {
+        List<BasicBlock> blocks = cfg.getBlocks();
+        BitSet[] liveIn = new BitSet[blocks.size()];
+        BitSet[] liveOut = new BitSet[blocks.size()];
+        for (int b = 0; b < blocks.size(); b++) {
+            liveIn[b] = new BitSet();
+            liveOut[b] = new BitSet();
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int b = blocks.size() - 1; b >= 0; b--) {
+                BasicBlock block = blocks.get(b);
+                for (BasicBlock successor : block.successors) {
+                    liveOut[b].or(liveIn[successor.getIndex()]);
+                }
+                BitSet live = (BitSet) liveOut[b].clone();
+                for (int i = block.instrs.size() - 1; i >= 0; i--) {
+                    step(gate, block.instrs.get(i), registers, live, null);
+                }
+                if (!live.equals(liveIn[b])) {
+                    liveIn[b] = live;
+                    changed = true;
+                }
+            }
+        }
+
+        BitSet[] interference = new BitSet[registers + qubitRegisters];
+        for (int r = 0; r < interference.length; r++) {
+            interference[r] = new BitSet();
+        }
+        for (int b = 0; b < blocks.size(); b++) {
+            BitSet live = (BitSet) liveOut[b].clone();
+            List<Instr> instrs = blocks.get(b).instrs;
+            for (int i = instrs.size() - 1; i >= 0; i--) {
+                step(gate, instrs.get(i), registers, live, interference);
+            }
+        }
+
+        BitSet uninitialized = (BitSet) liveIn[0].clone();
+        uninitialized.clear(0, gate.getSymbol().getArgs() + 1);
+        for (int r = uninitialized.nextSetBit(0); r >= 0; r = uninitialized.nextSetBit(r + 1)) {
+            int from = r < registers ? 0 : registers;
+            int to = r < registers ? registers : registers + qubitRegisters;
+            for (int s = from; s < to; s++) {
+                if (s != r) {
+                    addEdge(interference, registers, r, s);
+                }
+            }
+        }
+        return interference;
+    }
+
+    private static void addEdge(BitSet[] interference, int registers, int a, int b) {
+        interference[a].set(b < registers ? b : b - registers);
+        interference[b].set(a < registers ? a : a - registers);
+    }
+
+    // live before instr from live after it, registers written interfere with those live after
+    private void step(Gate gate, Instr instr, int registers, BitSet live, BitSet[] interference) {
+        defs.clear();
+        RegisterEffects.defs(program, instr, defs);
+        qubitDefs.clear();
+        RegisterEffects.qubitDefs(instr, qubitDefs);
+        for (int q = qubitDefs.nextSetBit(0); q >= 0; q = qubitDefs.nextSetBit(q + 1)) {
+            defs.set(registers + q);
+        }
+        if (interference != null) {
+            for (int d = defs.nextSetBit(0); d >= 0; d = defs.nextSetBit(d + 1)) {
+                boolean register = d < registers;
+                for (int l = live.nextSetBit(0); l >= 0; l = live.nextSetBit(l + 1)) {
+                    if (l != d && (l < registers) == register) {
+                        addEdge(interference, registers, d, l);
+                    }
+                }
+                for (int e = defs.nextSetBit(d + 1); e >= 0; e = defs.nextSetBit(e + 1)) {
+                    if ((e < registers) == register) {
+                        addEdge(interference, registers, d, e);
+                    }
+                }
+            }
+        }
+        live.andNot(defs);
+        uses.clear();
+        RegisterEffects.uses(program, gate, instr, uses);
+        live.or(uses);
+        Bytecodes.Instruction instruction = program.getInstructions()[instr.opcode];
+        for (int i = 0; i < Math.min(instruction.getN(), instr.operands.length); i++) {
+            if (instruction.getType()[i] == Bytecodes.QUREG && !qubitDefs.get(instr.operands[i])) {
+                live.set(registers + instr.operands[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package io.qudot.qudotc.opt;
+
+import io.qudot.qudotc.qudir.GateAsmSymbol;
+import io.qudot.qudotc.utils.Bytecodes;
+
+import java.util.BitSet;
+
+/**
+ * Which classical registers an instruction reads and writes. r0 belongs to the VM, it holds values the
+ * VM sets up and the result of a call, so passes must never assume anything about its contents.
+ * A call reads its argument registers and is assumed to overwrite r0 and the argument registers.
+ * A ret reads r0 and the arguments of the gate it returns from. Qubit registers are written by the qload
+ * instructions and by the superinstructions that start with a qloadr.
+ *
+ * @since 0.1.0
+ */
+public final class RegisterEffects {
+    public static final int VM_REGISTER = 0;
+
+    private RegisterEffects() {
+    }
+
+    /**
+     * @return true if the instruction only computes the registers it writes, so it can be removed
+     * when none of them are read afterwards
+     */
+    public static boolean isPure(int opcode) {
+        switch (opcode) {
+            case Bytecodes.ILOAD:
+            case Bytecodes.MOVE:
+            case Bytecodes.NULL:
+            case Bytecodes.IADD:
+            case Bytecodes.ISUB:
+            case Bytecodes.IMUL:
+            case Bytecodes.ILT:
+            case Bytecodes.IEQ:
+            case Bytecodes.INCR:
+            case Bytecodes.DECR:
+            case Bytecodes.MODPOW:
+            case Bytecodes.TLOAD:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return true if operand i is a register the instruction writes
+     */
+    public static boolean isDefOperand(int opcode, int i) {
+        switch (opcode) {
+            case Bytecodes.ILOAD:
+            case Bytecodes.MOVE:
+            case Bytecodes.NULL:
+            case Bytecodes.IADD:
+            case Bytecodes.ISUB:
+            case Bytecodes.IMUL:
+            case Bytecodes.IDIV:
+            case Bytecodes.ILT:
+            case Bytecodes.IEQ:
+            case Bytecodes.INCR:
+            case Bytecodes.DECR:
+            case Bytecodes.MODPOW:
+            case Bytecodes.TLOAD:
+            case Bytecodes.INCR_BREQ:
+            case Bytecodes.IADD_BREQ:
+                return i == 0;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return true if operand i is a register the instruction reads and does not write
+     */
+    public static boolean isUseOperand(Program program, int opcode, int i) {
+        Bytecodes.Instruction instruction = program.getInstructions()[opcode];
+        if (opcode == Bytecodes.CALL || i >= instruction.getN() || instruction.getType()[i] != Bytecodes.REG) {
+            return false;
+        }
+        return !isDefOperand(opcode, i);
+    }
+
+    public static void uses(Program program, Gate gate, Instr instr, BitSet out) {
+        int opcode = instr.opcode;
+        if (opcode == Instr.END) {
+            return;
+        }
+        if (opcode == Bytecodes.CALL) {
+            int first = instr.operands[1];
+            if (first != VM_REGISTER) {
+                out.set(first, first + getArgs(program, instr));
+            }
+            return;
+        }
+        if (opcode == Bytecodes.RET) {
+            out.set(VM_REGISTER);
+            if (gate.getSymbol() != null) {
+                out.set(1, gate.getSymbol().getArgs() + 1);
+            }
+            return;
+        }
+        int[] types = program.getInstructions()[opcode].getType();
+        int n = Math.min(program.getInstructions()[opcode].getN(), instr.operands.length);
+        for (int i = 0; i < n; i++) {
+            if (types[i] == Bytecodes.REG && (!isDefOperand(opcode, i)
+                    || isUpdate(opcode))) {
+                out.set(instr.operands[i]);
+            }
+        }
+    }
+
+    // instructions that read the register they write
+    private static boolean isUpdate(int opcode) {
+        return opcode == Bytecodes.INCR || opcode == Bytecodes.DECR || opcode == Bytecodes.INCR_BREQ
+                || opcode == Bytecodes.IADD_BREQ;
+    }
+
+    public static void defs(Program program, Instr instr, BitSet out) {
+        int opcode = instr.opcode;
+        if (opcode == Bytecodes.CALL) {
+            out.set(VM_REGISTER);
+            int first = instr.operands[1];
+            if (first != VM_REGISTER) {
+                out.set(first, first + getArgs(program, instr));
+            }
+        } else if (opcode != Instr.END && isDefOperand(opcode, 0)) {
+            out.set(instr.operands[0]);
+        }
+    }
+
+    /**
+     * Qubit registers the instruction loads before using them
+     */
+    public static void qubitDefs(Instr instr, BitSet out) {
+        switch (instr.opcode) {
+            case Bytecodes.CNOTR:
+                out.set(instr.operands[2]);
+                out.set(instr.operands[0]);
+                break;
+            case Bytecodes.QLOAD:
+            case Bytecodes.QLOADR:
+            case Bytecodes.QLOAD_SEQUENCE:
+            case Bytecodes.QLOAD_ARRAY:
+            case Bytecodes.QLOAD_MASK:
+            case Bytecodes.XONR:
+            case Bytecodes.YONR:
+            case Bytecodes.ZONR:
+            case Bytecodes.SONR:
+            case Bytecodes.TONR:
+            case Bytecodes.HONR:
+            case Bytecodes.SDAGONR:
+            case Bytecodes.TDAGONR:
+                out.set(instr.operands[0]);
+                break;
+            default:
+        }
+    }
+
+    /**
+     * @return the number of argument registers a call passes
+     */
+    public static int getArgs(Program program, Instr call) {
+        GateAsmSymbol callee = program.getGateSymbol(call.operands[0]);
+        return callee == null ? 0 : callee.getArgs();
+    }
+
+    /**
+     * @return one more than the highest register the gate refers to or -1 if it refers to a negative
+     * register, which no pass can reason about
+     */
+    public static int getRegisterCount(Program program, Gate gate) {
+        int count = gate.getFrameSize() + 1;
+        for (Instr instr : gate.getCode()) {
+            Bytecodes.Instruction instruction = program.getInstructions()[instr.opcode];
+            for (int i = 0; i < Math.min(instruction.getN(), instr.operands.length); i++) {
+                if (instruction.getType()[i] == Bytecodes.REG) {
+                    int register = instr.operands[i];
+                    if (register < 0) {
+                        return -1;
+                    }
+                    int last = instr.opcode == Bytecodes.CALL && register != VM_REGISTER
+                            ? register + getArgs(program, instr) - 1
+                            : register;
+                    count = Math.max(count, last + 1);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return one more than the highest qubit register the gate declares or refers to or -1 if it refers
+     * to a negative qubit register
+     */
+    public static int getQubitRegisterCount(Program program, Gate gate) {
+        int count = gate.getSymbol() == null ? 0 : gate.getSymbol().getQubitRegs();
+        for (Instr instr : gate.getCode()) {
+            Bytecodes.Instruction instruction = program.getInstructions()[instr.opcode];
+            for (int i = 0; i < Math.min(instruction.getN(), instr.operands.length); i++) {
+                if (instruction.getType()[i] == Bytecodes.QUREG) {
+                    if (instr.operands[i] < 0) {
+                        return -1;
+                    }
+                    count = Math.max(count, instr.operands[i] + 1);
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,219 @@
+package io.qudot.qudotc.qudir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A content addressed cache of compiled files. An entry is keyed by the SHA-256 of the source bytes, the
+ * compiler and the options that change the output, so an unchanged source compiled with the same compiler
+ * and options is linked, or copied, from the cache instead of being assembled again. Entries are stored as
+ * dir/ab/abcdef....qudotc and their modification time is the time they were last used, evict drops the
+ * least recently used entries until the cache fits its size. Safe for use from parallel compiles.
+ *
+ * @since 0.1.0
+ */
+public class CompileCache {
+    private static final String ENTRY_EXT = ".qudotc";
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // version=${project.version} and timestamp=${maven.build.timestamp}, filtered by Maven
+    private static final String BUILD_PROPERTIES = "/qudotc-build.properties";
+    private static volatile byte[] compilerDigest;
+
+    private final Path dir;
+    private final long maxBytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    /**
+     * @param dir the cache directory, created when the first entry is stored
+     * @param maxBytes size evict shrinks the cache to
+     */
+    public CompileCache(Path dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Hash a source with the compiler and the options, the source is read in chunks
+     * @param source the .qudot file
+     * @param options every option that changes the compiled file, in a fixed order
+     * @return the key of the compiled file
+     * @throws IOException if the source cannot be read
+     */
+    public String getKey(Path source, String options) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(getCompilerDigest());
+        digest.update(options.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(source)) {
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Put the cached file for key at out, as a hard link when the file system allows it
+     * @param key the key of the compiled file
+     * @param out the output file, replaced if it exists
+     * @return true on a hit, false if the cache has no entry for key
+     * @throws IOException if the entry cannot be linked or copied
+     */
+    public boolean restore(String key, Path out) throws IOException {
+        Path entry = getEntry(key);
+        if (!Files.isRegularFile(entry)) {
+            misses.incrementAndGet();
+            return false;
+        }
+        Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        Files.deleteIfExists(out);
+        try {
+            Files.createLink(out, entry);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(entry, out, StandardCopyOption.REPLACE_EXISTING);
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Add a compiled file to the cache, an entry that is already there is kept
+     * @param key the key of the compiled file
+     * @param compiled the compiled file, copied into the cache
+     * @throws IOException if the entry cannot be written
+     */
+    public void store(String key, Path compiled) throws IOException {
+        Path entry = getEntry(key);
+        if (Files.exists(entry)) {
+            return;
+        }
+        Files.createDirectories(entry.getParent());
+        // copied under a temporary name and moved in place so readers never see half an entry
+        Path temp = Files.createTempFile(entry.getParent(), key, ".tmp");
+        try {
+            Files.copy(compiled, temp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            // stored by a parallel compile of the same source
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Delete the least recently used entries until the cache holds at most maxBytes
+     * @throws IOException if the cache directory cannot be read
+     */
+    public void evict() throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        List<Path> entries;
+        try (Stream<Path> files = Files.walk(dir, 2)) {
+            entries = files.filter(p -> p.getFileName().toString().endsWith(ENTRY_EXT))
+                    .filter(Files::isRegularFile)
+                    .collect(Collectors.toList());
+        }
+        List<long[]> stats = new ArrayList<>();
+        long total = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            long size = Files.size(entries.get(i));
+            stats.add(new long[] {Files.getLastModifiedTime(entries.get(i)).toMillis(), size, i});
+            total += size;
+        }
+        stats.sort(Comparator.comparingLong(s -> s[0]));
+        for (long[] stat : stats) {
+            if (total <= maxBytes) {
+                break;
+            }
+            if (Files.deleteIfExists(entries.get((int) stat[2]))) {
+                total -= stat[1];
+                evicted.incrementAndGet();
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    private Path getEntry(String key) {
+        return dir.resolve(key.substring(0, 2)).resolve(key + ENTRY_EXT);
+    }
+
+    // the build of the compiler, from the properties Maven filters at package time, with the bytes of the jar
+    // holding it, or the names, sizes and modification times of its classes when it runs from a directory as in
+    // dev mode. A native image has the properties built in.
+    private static byte[] getCompilerDigest() throws IOException {
+        if (compilerDigest == null) {
+            MessageDigest digest = newDigest();
+            digest.update(("qudotc " + QuDotCompiler.VERSION).getBytes(StandardCharsets.UTF_8));
+            try (InputStream in = CompileCache.class.getResourceAsStream(BUILD_PROPERTIES)) {
+                if (in == null) {
+                    throw new IOException("the compiler build is unknown, " + BUILD_PROPERTIES + " is missing");
+                }
+                digest.update(in.readAllBytes());
+            }
+            CodeSource codeSource = QuDotCompiler.class.getProtectionDomain().getCodeSource();
+            Path code = null;
+            try {
+                code = codeSource == null ? null : Paths.get(codeSource.getLocation().toURI());
+            } catch (URISyntaxException | IllegalArgumentException | FileSystemNotFoundException e) {
+                // not a file, keyed by the build only
+            }
+            if (code != null && Files.isRegularFile(code)) {
+                digest.update(Files.readAllBytes(code));
+            } else if (code != null && Files.isDirectory(code)) {
+                try (Stream<Path> classes = Files.walk(code)) {
+                    for (Path file : classes.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+                        digest.update((code.relativize(file) + " " + Files.size(file) + " "
+                                + Files.getLastModifiedTime(file).toMillis() + "\n").getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+            }
+            compilerDigest = digest.digest();
+        }
+        return compilerDigest;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is not available");
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package io.qudot.qudotc.qudir;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event spanning the whole compile of a source with the counts of CompileStats
+ *
+ * @since 0.1.0
+ */
+@Name("io.qudot.qudotc.Compile")
+@Label("Compile")
+@Category("qudotc")
+@Description("Compiling a .qudot source")
+@StackTrace(false)
+class CompileEvent extends Event {
+    @Label("Source")
+    String source;
+
+    @Label("Success")
+    boolean success;
+
+    @Label("Bytes Read")
+    @DataAmount
+    long bytesRead;
+
+    @Label("Bytes Written")
+    @DataAmount
+    long bytesWritten;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocated;
+
+    @Label("Instructions")
+    int instructions;
+
+    @Label("Gates")
+    int gates;
+
+    @Label("Labels")
+    int labels;
+
+    @Label("Forward References")
+    int forwardReferences;
+
+    @Label("Constant Pool Entries")
+    int constPoolEntries;
+}
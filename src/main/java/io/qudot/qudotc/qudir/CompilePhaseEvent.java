@@ -0,0 +1,31 @@
+package io.qudot.qudotc.qudir;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event spanning one phase of the compile of a source, see CompileStats
+ *
+ * @since 0.1.0
+ */
+@Name("io.qudot.qudotc.CompilePhase")
+@Label("Compile Phase")
+@Category("qudotc")
+@Description("One phase of compiling a .qudot source")
+@StackTrace(false)
+class CompilePhaseEvent extends Event {
+    @Label("Source")
+    String source;
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocated;
+}
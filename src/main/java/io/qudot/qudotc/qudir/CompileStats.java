@@ -0,0 +1,282 @@
+package io.qudot.qudotc.qudir;
+
+import io.qudot.qudotc.utils.TextUtils;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Where the compile of one source spends its time and memory. The compile is cut into consecutive phases,
+ * each lap adds the wall time and the bytes the compiling thread allocated since the previous lap to a
+ * phase. The assembler with a parse tree records lex, parse, visit and resolve separately, the streaming
+ * assembler and the scanner lex, parse and generate code in one pass, recorded as parse. Backpatching of
+ * forward label references happens as labels are defined, within visit or parse.
+ * <p>
+ * Each phase is also emitted as a CompilePhaseEvent and the whole compile as a CompileEvent with the counts,
+ * so compiles can be profiled with JFR, including those of qudotc serve.
+ *
+ * @since 0.1.0
+ */
+public class CompileStats {
+    public enum Phase {
+        // reading the source into memory
+        READ,
+        // hashing the source and restoring or storing the compiled file with --cache-dir
+        CACHE,
+        LEX,
+        PARSE,
+        // generating code from the parse tree
+        VISIT,
+        // checking the labels of the last gate are all defined
+        RESOLVE,
+        // the passes and --pattern-stats
+        OPTIMIZE,
+        // the cost estimate of --estimate
+        ESTIMATE,
+        // re-encoding as version 2 bytecode
+        COMPACT,
+        WRITE;
+
+        public String getName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final Phase[] PHASES = Phase.values();
+
+    private final String source;
+    private final long[] nanos = new long[PHASES.length];
+    private final long[] allocated = new long[PHASES.length];
+    private final CompileEvent compileEvent = new CompileEvent();
+    private CompilePhaseEvent phaseEvent;
+    private long lastNanos;
+    private long lastAllocated;
+    private boolean success;
+    private long bytesRead;
+    private long bytesWritten;
+    private int instructions;
+    private int gates;
+    private int labels;
+    private int forwardReferences;
+    private int constPoolEntries;
+
+    /**
+     * Start timing the compile of a source on the current thread
+     * @param source name of the source
+     */
+    public CompileStats(String source) {
+        this(source, true);
+    }
+
+    // a total is not timed itself
+    private CompileStats(String source, boolean timed) {
+        this.source = source;
+        if (timed) {
+            compileEvent.begin();
+            lastNanos = System.nanoTime();
+            lastAllocated = getAllocatedBytes();
+            beginPhaseEvent();
+        }
+    }
+
+    /**
+     * Add the time and memory since the previous lap to a phase
+     * @param phase the phase that just ended
+     */
+    public void lap(Phase phase) {
+        long now = System.nanoTime();
+        long allocatedNow = getAllocatedBytes();
+        nanos[phase.ordinal()] += now - lastNanos;
+        allocated[phase.ordinal()] += allocatedNow - lastAllocated;
+        phaseEvent.end();
+        if (phaseEvent.shouldCommit()) {
+            phaseEvent.source = source;
+            phaseEvent.phase = phase.getName();
+            phaseEvent.allocated = allocatedNow - lastAllocated;
+            phaseEvent.commit();
+        }
+        lastNanos = now;
+        lastAllocated = allocatedNow;
+        beginPhaseEvent();
+    }
+
+    /**
+     * Record the counts of an assembled program, before any optimization
+     */
+    void count(QuDotAssembler assembler) {
+        instructions = assembler.getInstructionCount();
+        gates = assembler.getGateCount();
+        labels = assembler.getLabelCount();
+        forwardReferences = assembler.getForwardReferenceCount();
+        constPoolEntries = assembler.getConstPool().size();
+    }
+
+    /**
+     * End the compile and emit its CompileEvent
+     * @param success true if the source compiled without errors
+     * @param bytesRead size of the source
+     * @param bytesWritten size of the compiled file
+     */
+    void finish(boolean success, long bytesRead, long bytesWritten) {
+        this.success = success;
+        this.bytesRead = bytesRead;
+        this.bytesWritten = bytesWritten;
+        compileEvent.end();
+        if (compileEvent.shouldCommit()) {
+            compileEvent.source = source;
+            compileEvent.success = success;
+            compileEvent.bytesRead = bytesRead;
+            compileEvent.bytesWritten = bytesWritten;
+            compileEvent.allocated = getAllocated();
+            compileEvent.instructions = instructions;
+            compileEvent.gates = gates;
+            compileEvent.labels = labels;
+            compileEvent.forwardReferences = forwardReferences;
+            compileEvent.constPoolEntries = constPoolEntries;
+            compileEvent.commit();
+        }
+    }
+
+    /**
+     * Add up the stats of many compiles, the times of compiles run in parallel add up to more than the
+     * elapsed time
+     * @param name name of the total
+     * @param stats the stats to add
+     * @return the sums
+     */
+    public static CompileStats sum(String name, List<CompileStats> stats) {
+        CompileStats total = new CompileStats(name, false);
+        total.success = true;
+        for (CompileStats s : stats) {
+            for (int i = 0; i < PHASES.length; i++) {
+                total.nanos[i] += s.nanos[i];
+                total.allocated[i] += s.allocated[i];
+            }
+            total.success &= s.success;
+            total.bytesRead += s.bytesRead;
+            total.bytesWritten += s.bytesWritten;
+            total.instructions += s.instructions;
+            total.gates += s.gates;
+            total.labels += s.labels;
+            total.forwardReferences += s.forwardReferences;
+            total.constPoolEntries += s.constPoolEntries;
+        }
+        return total;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public long getNanos(Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    /**
+     * @return bytes allocated during the phase, 0 if the JVM does not count allocations per thread
+     */
+    public long getAllocated(Phase phase) {
+        return allocated[phase.ordinal()];
+    }
+
+    public long getNanos() {
+        long sum = 0;
+        for (long n : nanos) {
+            sum += n;
+        }
+        return sum;
+    }
+
+    public long getAllocated() {
+        long sum = 0;
+        for (long a : allocated) {
+            sum += a;
+        }
+        return sum;
+    }
+
+    public int getInstructions() {
+        return instructions;
+    }
+
+    public int getGates() {
+        return gates;
+    }
+
+    public int getLabels() {
+        return labels;
+    }
+
+    public int getForwardReferences() {
+        return forwardReferences;
+    }
+
+    public int getConstPoolEntries() {
+        return constPoolEntries;
+    }
+
+    /**
+     * Print the phases that took any time and the counts
+     * @param out the stream printed to
+     */
+    public void printText(PrintStream out) {
+        out.printf("%s: %s, %d bytes read, %d bytes written in %.3f ms, %s allocated%n", source,
+                success ? "compiled" : "failed", bytesRead, bytesWritten, getNanos() / 1e6,
+                TextUtils.formatBytes(getAllocated()));
+        for (Phase phase : PHASES) {
+            if (nanos[phase.ordinal()] > 0) {
+                out.printf("  %-9s %10.3f ms %10s%n", phase.getName(), nanos[phase.ordinal()] / 1e6,
+                        TextUtils.formatBytes(allocated[phase.ordinal()]));
+            }
+        }
+        out.printf("  %d instructions, %d gates, %d labels, %d forward references, %d constant pool entries%n",
+                instructions, gates, labels, forwardReferences, constPoolEntries);
+    }
+
+    /**
+     * @return the stats as a JSON object, times in nanoseconds and memory in bytes
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\"source\":");
+        TextUtils.appendJsonString(json, source);
+        json.append(",\"success\":").append(success)
+                .append(",\"bytesRead\":").append(bytesRead)
+                .append(",\"bytesWritten\":").append(bytesWritten)
+                .append(",\"nanos\":").append(getNanos())
+                .append(",\"allocated\":").append(getAllocated())
+                .append(",\"phases\":{");
+        for (Phase phase : PHASES) {
+            if (phase.ordinal() > 0) {
+                json.append(',');
+            }
+            json.append('"').append(phase.getName()).append("\":{\"nanos\":").append(nanos[phase.ordinal()])
+                    .append(",\"allocated\":").append(allocated[phase.ordinal()]).append('}');
+        }
+        json.append("},\"instructions\":").append(instructions)
+                .append(",\"gates\":").append(gates)
+                .append(",\"labels\":").append(labels)
+                .append(",\"forwardReferences\":").append(forwardReferences)
+                .append(",\"constPoolEntries\":").append(constPoolEntries)
+                .append('}');
+        return json.toString();
+    }
+
+    private void beginPhaseEvent() {
+        phaseEvent = new CompilePhaseEvent();
+        phaseEvent.begin();
+    }
+
+    // bytes allocated by the current thread so far, 0 where the JVM does not count them
+    private static long getAllocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            long bytes = ((com.sun.management.ThreadMXBean) THREADS)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+            return Math.max(bytes, 0);
+        }
+        return 0;
+    }
+}
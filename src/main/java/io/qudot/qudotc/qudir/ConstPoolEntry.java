@@ -0,0 +1,28 @@
+package io.qudot.qudotc.qudir;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An entry of the constant pool. Entries are serialized as a constPoolInfo: the type byte, the size of
+ * the info and the info bytes. Two entries are the same pool entry when they are equal, so equals and
+ * hashCode must only consider the identity of the constant, e.g. the name of a gate.
+ *
+ * @since 0.1.0
+ */
+public interface ConstPoolEntry {
+    /**
+     * @return one of the ConstPoolType constants
+     */
+    byte getType();
+
+    /**
+     * @return size in bytes of the info written by writeTo
+     */
+    int getByteSize();
+
+    /**
+     * Write the info bytes at the buffer's position
+     * @param buffer big endian buffer with at least getByteSize bytes remaining
+     */
+    void writeTo(ByteBuffer buffer);
+}
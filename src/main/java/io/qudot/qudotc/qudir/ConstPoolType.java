@@ -5,4 +5,7 @@ package io.qudot.qudotc.qudir;
  */
 public class ConstPoolType {
     public static final byte GATE = 1;
-}
\ No newline at end of file
+    public static final byte INT_ARRAY = 2;
+    public static final byte DOUBLE_PAIR = 3;
+    public static final byte QUBIT_MAP = 4;
+}
@@ -0,0 +1,73 @@
+package io.qudot.qudotc.qudir;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Insertion ordered constant pool. Entries keep the index they were first added at and a hash index
+ * makes finding an entry constant time, so programs with thousands of gates assemble in linear time.
+ *
+ * @since 0.1.0
+ */
+public class ConstantPool {
+    private final List<ConstPoolEntry> entries = new ArrayList<>();
+    private final Map<ConstPoolEntry, Integer> indices = new HashMap<>();
+
+    /**
+     * @param entry entry to look for
+     * @return index of the entry or -1 if it is not in the pool
+     */
+    public int indexOf(ConstPoolEntry entry) {
+        Integer index = indices.get(entry);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Add an entry if an equal one is not already in the pool
+     * @param entry entry to add
+     * @return index of the entry
+     */
+    public int add(ConstPoolEntry entry) {
+        Integer index = indices.get(entry);
+        if (index != null) {
+            return index;
+        }
+        entries.add(entry);
+        indices.put(entry, entries.size() - 1);
+        return entries.size() - 1;
+    }
+
+    /**
+     * Replace the entry at index, e.g. a forward referenced gate once its declaration is seen
+     * @param index index to replace
+     * @param entry the new entry, equal to the one it replaces
+     */
+    public void set(int index, ConstPoolEntry entry) {
+        indices.remove(entries.get(index));
+        entries.set(index, entry);
+        indices.put(entry, index);
+    }
+
+    public ConstPoolEntry get(int index) {
+        return entries.get(index);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public void clear() {
+        entries.clear();
+        indices.clear();
+    }
+
+    /**
+     * @return read-only view of the entries in index order
+     */
+    public List<ConstPoolEntry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+}
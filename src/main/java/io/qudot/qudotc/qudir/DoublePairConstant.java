@@ -0,0 +1,73 @@
+package io.qudot.qudotc.qudir;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pair of doubles computed at compile time, e.g. the real and imaginary part of the phase factor
+ * exp(2 pi i / 2^k) of an R(k) gate, which the VM would otherwise compute with cos and sin on every
+ * application. Two pairs with the same bits are the same pool entry.
+ *
+ * @since 0.1.0
+ */
+public class DoublePairConstant implements ConstPoolEntry {
+    private final double first;
+    private final double second;
+
+    public DoublePairConstant(double first, double second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Double.hashCode(first) + Double.hashCode(second);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof DoublePairConstant && Double.compare(first, ((DoublePairConstant) o).first) == 0
+                && Double.compare(second, ((DoublePairConstant) o).second) == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "DoublePair(" + first + ", " + second + ")";
+    }
+
+    @Override
+    public byte getType() {
+        return ConstPoolType.DOUBLE_PAIR;
+    }
+
+    /**
+     * The serialization is the two IEEE 754 doubles, 8 bytes each
+     */
+    @Override
+    public int getByteSize() {
+        return 16;
+    }
+
+    @Override
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putDouble(first);
+        buffer.putDouble(second);
+    }
+
+    /**
+     * Deserialize a DoublePairConstant directly from a buffer
+     * @param buffer big endian buffer holding a serialized DoublePairConstant
+     * @param offset absolute position of the serialization in buffer
+     * @return DoublePairConstant
+     */
+    public static DoublePairConstant fromBuffer(ByteBuffer buffer, int offset) {
+        return new DoublePairConstant(buffer.getDouble(offset), buffer.getDouble(offset + 8));
+    }
+
+    public double getFirst() {
+        return first;
+    }
+
+    public double getSecond() {
+        return second;
+    }
+}
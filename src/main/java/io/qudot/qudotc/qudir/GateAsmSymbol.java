@@ -3,6 +3,7 @@ package io.qudot.qudotc.qudir;
 import io.qudot.qudotc.utils.BytecodeUtils;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 
@@ -13,7 +14,7 @@ import java.util.Arrays;
  *
  * @since 0.1.0
  */
-public class GateAsmSymbol {
+public class GateAsmSymbol implements ConstPoolEntry {
     public static final String DEFAULT_CHARSET = "US-ASCII";
     private String name;
     // number of arguments
@@ -69,22 +70,37 @@ public class GateAsmSymbol {
      * @return byte serialization of object
      */
     public byte[] getBytes() {
-        int ip = 0;
-        byte[] nameBytes = name.getBytes(Charset.forName(DEFAULT_CHARSET));
-        byte[] serialization = new byte[nameBytes.length + 20];
-        BytecodeUtils.writeInt(serialization, ip, nameBytes.length);
-        ip += 4;
+        byte[] serialization = new byte[getByteSize()];
+        writeTo(ByteBuffer.wrap(serialization));
+        return serialization;
+    }
 
-        for (int i=0; i < nameBytes.length; i++) {
-            serialization[ip++] = nameBytes[i];
-        }
+    @Override
+    public byte getType() {
+        return ConstPoolType.GATE;
+    }
 
-        ip = BytecodeUtils.writeInt(serialization, ip, args);
-        ip = BytecodeUtils.writeInt(serialization, ip, regs);
-        ip = BytecodeUtils.writeInt(serialization, ip, qubitRegs);
-        ip = BytecodeUtils.writeInt(serialization, ip, address);
+    /**
+     * @return the size in bytes of the serialization returned by getBytes
+     */
+    @Override
+    public int getByteSize() {
+        return name.getBytes(Charset.forName(DEFAULT_CHARSET)).length + 20;
+    }
 
-        return serialization;
+    /**
+     * Write the serialization described in getBytes at the buffer's position
+     * @param buffer big endian buffer with at least getByteSize bytes remaining
+     */
+    @Override
+    public void writeTo(ByteBuffer buffer) {
+        byte[] nameBytes = name.getBytes(Charset.forName(DEFAULT_CHARSET));
+        buffer.putInt(nameBytes.length);
+        buffer.put(nameBytes);
+        buffer.putInt(args);
+        buffer.putInt(regs);
+        buffer.putInt(qubitRegs);
+        buffer.putInt(address);
     }
 
     /**
@@ -115,6 +131,24 @@ public class GateAsmSymbol {
         }
     }
 
+    /**
+     * Deserialize a GateAsmSymbol directly from a buffer without copying the entry out first
+     * @param buffer big endian buffer holding a serialized GateAsmSymbol
+     * @param offset absolute position of the serialization in buffer
+     * @return GateAsmSymbol
+     */
+    public static GateAsmSymbol fromBuffer(ByteBuffer buffer, int offset) {
+        int nameLength = buffer.getInt(offset);
+        byte[] nameBytes = new byte[nameLength];
+        for (int i = 0; i < nameLength; i++) {
+            nameBytes[i] = buffer.get(offset + 4 + i);
+        }
+        int ip = offset + 4 + nameLength;
+        String name = new String(nameBytes, Charset.forName(DEFAULT_CHARSET));
+        return new GateAsmSymbol(name, buffer.getInt(ip), buffer.getInt(ip + 4),
+                buffer.getInt(ip + 8), buffer.getInt(ip + 12));
+    }
+
     public String getName() {
         return name;
     }
@@ -131,7 +165,19 @@ public class GateAsmSymbol {
         return qubitRegs;
     }
 
+    public void setRegs(int regs) {
+        this.regs = regs;
+    }
+
+    public void setQubitRegs(int qubitRegs) {
+        this.qubitRegs = qubitRegs;
+    }
+
     public int getAddress() {
         return address;
     }
+
+    public void setAddress(int address) {
+        this.address = address;
+    }
 }
@@ -0,0 +1,76 @@
+package io.qudot.qudotc.qudir;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A table of ints computed at compile time, e.g. the powers a modpow would otherwise compute on every
+ * run. Two tables with the same values are the same pool entry.
+ *
+ * @since 0.1.0
+ */
+public class IntArrayConstant implements ConstPoolEntry {
+    private final int[] values;
+
+    public IntArrayConstant(int[] values) {
+        this.values = values.clone();
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(values);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof IntArrayConstant && Arrays.equals(values, ((IntArrayConstant) o).values);
+    }
+
+    @Override
+    public String toString() {
+        return "IntArray" + Arrays.toString(values);
+    }
+
+    @Override
+    public byte getType() {
+        return ConstPoolType.INT_ARRAY;
+    }
+
+    /**
+     * The serialization is the number of values followed by the values, 4 bytes each
+     */
+    @Override
+    public int getByteSize() {
+        return 4 + 4 * values.length;
+    }
+
+    @Override
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putInt(values.length);
+        for (int value : values) {
+            buffer.putInt(value);
+        }
+    }
+
+    /**
+     * Deserialize an IntArrayConstant directly from a buffer
+     * @param buffer big endian buffer holding a serialized IntArrayConstant
+     * @param offset absolute position of the serialization in buffer
+     * @return IntArrayConstant
+     */
+    public static IntArrayConstant fromBuffer(ByteBuffer buffer, int offset) {
+        int[] values = new int[buffer.getInt(offset)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = buffer.getInt(offset + 4 + 4 * i);
+        }
+        return new IntArrayConstant(values);
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public int get(int index) {
+        return values[index];
+    }
+}
@@ -2,12 +2,11 @@ package io.qudot.qudotc.qudir;
 
 import io.qudot.qudotc.utils.BytecodeUtils;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * Class for management of Labels in "label:" definitions. We track the name, address of label,
- * if its defined and if it is a forward reference.
+ * if its defined and if it is a forward reference. Labels are scoped to the gate they appear in.
  *
  * @since 0.1.0
  */
@@ -18,8 +17,9 @@ public class LabelSymbol {
     boolean isForwardRef = false;
     // Set when we see actual ID: definition
     boolean isDefined = true;
-    // List of operands in memory we need to update after seeing def
-    List<Integer> forwardReferences = null;
+    // Addresses of operands in memory we need to update after seeing def
+    int[] forwardReferences = null;
+    int numForwardReferences = 0;
 
     public LabelSymbol(String name) {
         this.name = name;
@@ -49,9 +49,11 @@ public class LabelSymbol {
      */
     public void addForwardReference(int address) {
         if ( forwardReferences==null ) {
-            forwardReferences = new ArrayList<>();
+            forwardReferences = new int[4];
+        } else if ( numForwardReferences==forwardReferences.length ) {
+            forwardReferences = Arrays.copyOf(forwardReferences, forwardReferences.length * 2);
         }
-        forwardReferences.add(address);
+        forwardReferences[numForwardReferences++] = address;
     }
 
     /**
@@ -61,16 +63,15 @@ public class LabelSymbol {
      */
     public void resolveForwardReferences(byte[] code) {
         isForwardRef = false;
-        List<Integer> opndsToPatch = forwardReferences;
-        for (int addrToPatch : opndsToPatch) {
-            BytecodeUtils.writeInt(code, addrToPatch, address);
+        for (int i = 0; i < numForwardReferences; i++) {
+            BytecodeUtils.writeInt(code, forwardReferences[i], address);
         }
     }
 
     public String toString() {
         String refs = "";
         if ( forwardReferences!=null ) {
-            refs = "[refs="+forwardReferences.toString()+"]";
+            refs = "[refs="+Arrays.toString(Arrays.copyOf(forwardReferences, numForwardReferences))+"]";
         }
         return name+"@"+address+refs;
     }
@@ -0,0 +1,78 @@
+package io.qudot.qudotc.qudir;
+
+import io.qudot.qudotc.utils.Bytecodes;
+import org.antlr.v4.runtime.CharStreams;
+import org.graalvm.nativeimage.ImageInfo;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Fills the prediction caches ANTLR shares between every QuDotAsmLexer and QuDotAsmParser by assembling the
+ * examples of the README, held as resources under warm-up/. The native image initializes this class at build
+ * time, so the filled caches are written into the image heap with the deserialized ATNs and the first
+ * compile of every run predicts from them instead of simulating the ATN. On the JVM nothing is assembled
+ * when the class is initialized, the caches are only worth filling in a process that stays up, see
+ * QuDotServer.
+ *
+ * @since 0.1.0
+ */
+public final class ParserWarmUp {
+    private static final String CORPUS_DIR = "/warm-up/";
+    private static final String[] CORPUS = {"bell", "ghz", "branching", "shor", "qft"};
+
+    static {
+        if (ImageInfo.inImageBuildtimeCode()) {
+            warmUp();
+        }
+    }
+
+    private ParserWarmUp() {
+    }
+
+    /**
+     * @return the sources of the warm up corpus
+     */
+    public static List<byte[]> getCorpus() {
+        List<byte[]> corpus = new ArrayList<>();
+        for (String name : CORPUS) {
+            String resource = CORPUS_DIR + name + QuDotCompiler.INPUT_FILE_EXT;
+            try (InputStream in = ParserWarmUp.class.getResourceAsStream(resource)) {
+                if (in == null) {
+                    throw new RuntimeException("missing resource " + resource);
+                }
+                corpus.add(in.readAllBytes());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return Collections.unmodifiableList(corpus);
+    }
+
+    /**
+     * Assemble the corpus with the parse tree and the streaming parsers, which share the caches
+     */
+    public static void warmUp() {
+        for (byte[] source : getCorpus()) {
+            try {
+                QuDotAssembler tree = new QuDotAssembler(
+                        new QuDotAsmLexer(CharStreams.fromStream(new ByteArrayInputStream(source))),
+                        Bytecodes.instructions);
+                QuDotAssembler streaming = new QuDotAssembler(() -> new ByteArrayInputStream(source),
+                        Bytecodes.instructions);
+                if (tree.hasErrors() || streaming.hasErrors()) {
+                    throw new RuntimeException("warm up source does not assemble: "
+                            + new String(source, 0, Math.min(source.length, 40), StandardCharsets.UTF_8));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
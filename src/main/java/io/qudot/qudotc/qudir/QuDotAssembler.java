@@ -1,12 +1,26 @@
 package io.qudot.qudotc.qudir;
 
 import io.qudot.qudotc.utils.BytecodeUtils;
+import io.qudot.qudotc.utils.CompactBytecode;
 import io.qudot.qudotc.utils.Bytecodes;
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.CommonTokenFactory;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
 import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.UnbufferedCharStream;
+import org.antlr.v4.runtime.UnbufferedTokenStream;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.antlr.v4.runtime.tree.ParseTree;
-import org.antlr.v4.runtime.tree.TerminalNode;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
@@ -14,41 +28,218 @@ import java.util.*;
  * It serves as a Tree Visitor for a QuDotAsmParser that has parsed a .qudot input file.
  * As we visit nodes on the AST web generate bytecode, detect the number of qubits, ensemble size,
  * the main gate address, the constant pool and maintain the labels.
+ * In streaming mode no tree is built, bytecode is generated from parse listener events as rules are
+ * recognized over unbuffered character and token streams, so memory follows the size of the bytecode
+ * rather than the size of the source.
+ * Both modes parse with SLL prediction first and only fall back to full LL when SLL reports a syntax error.
  *
  * @since 0.1.0
  */
 public class QuDotAssembler extends QuDotAsmBaseVisitor<Void> {
     private static final int INITIAL_CODE_SIZE = 1024;
+    private static final int STREAM_BUFFER_SIZE = 8192;
     private static final String MAIN_GATE_NAME = "main";
 
+    /**
+     * Opens the source of a program, streaming mode may read it twice
+     */
+    @FunctionalInterface
+    public interface Source {
+        InputStream open() throws IOException;
+    }
+
+    // built once for the default instruction set, so a native image holds it in its heap
+    private static final Map<String, Integer> DEFAULT_OPCODE_MAPPING = getOpCodeMapping(Bytecodes.instructions);
+
     private QuDotAsmLexer lexer;
-    private Map<String, Integer> opCodeMapping = new HashMap<>();
+    private Bytecodes.Instruction[] instructions;
+    private Map<String, Integer> opCodeMapping;
+    // labels are scoped to the gate they appear in, the table is checked and cleared at each .gate
     private Map<String, LabelSymbol> labels = new HashMap<>();
+    // syntax and semantic errors, reported by the caller against the source file
+    private List<String> errors = new ArrayList<>();
+    private int syntaxErrors = 0;
+    private final BaseErrorListener errorListener = new BaseErrorListener() {
+        @Override
+        public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line,
+                                int charPositionInLine, String msg, RecognitionException e) {
+            syntaxErrors++;
+            errors.add("line " + line + ":" + charPositionInLine + " " + msg);
+        }
+    };
 
     // Gate Definitions go in here
-    private List<Object> constPool = new ArrayList<>();
+    private ConstantPool constPool = new ConstantPool();
 
     private GateAsmSymbol mainGate;
     private Integer numQubits;
     private Integer ensembleSize;
     private int ip = 0;
     private byte[] code = new byte[INITIAL_CODE_SIZE];
+    // bytecode version of code, generated as version 1 and compacted to version 2 on request
+    private int version = QuDotCompiler.VERSION;
+    // phases are recorded here when compiling with stats, see CompileStats
+    private CompileStats stats;
+    private int instructionCount;
+    private int gateCount;
+    private int labelCount;
+    private int forwardReferenceCount;
+
+    // used by QuDotScanner which drives the generation methods itself
+    QuDotAssembler(Bytecodes.Instruction[] instructions) {
+        initOpCodeMapping(instructions);
+    }
 
     public QuDotAssembler(QuDotAsmLexer lexer, Bytecodes.Instruction[] instructions) {
+        this(lexer, instructions, null);
+    }
+
+    /**
+     * Assemble with a parse tree, recording the lex, parse, visit and resolve phases
+     * @param lexer lexer over the .qudot source
+     * @param instructions the instruction set
+     * @param stats the stats of the compile or null
+     */
+    public QuDotAssembler(QuDotAsmLexer lexer, Bytecodes.Instruction[] instructions, CompileStats stats) {
         this.lexer = lexer;
+        this.stats = stats;
+        initOpCodeMapping(instructions);
+        assemble();
+    }
+
+    /**
+     * Assemble in streaming mode without building a parse tree
+     * @param source opens the .qudot source, called a second time only if the SLL parse fails
+     * @param instructions the instruction set
+     * @throws IOException if the source cannot be read
+     */
+    public QuDotAssembler(Source source, Bytecodes.Instruction[] instructions) throws IOException {
+        this(source, instructions, null);
+    }
+
+    /**
+     * Assemble in streaming mode, recording the parse and resolve phases
+     * @param source opens the .qudot source, called a second time only if the SLL parse fails
+     * @param instructions the instruction set
+     * @param stats the stats of the compile or null
+     * @throws IOException if the source cannot be read
+     */
+    public QuDotAssembler(Source source, Bytecodes.Instruction[] instructions, CompileStats stats)
+            throws IOException {
+        this.stats = stats;
+        initOpCodeMapping(instructions);
+        assembleStreaming(source);
+    }
+
+    private void initOpCodeMapping(Bytecodes.Instruction[] instructions) {
+        this.instructions = instructions;
+        opCodeMapping = instructions == Bytecodes.instructions ? DEFAULT_OPCODE_MAPPING : getOpCodeMapping(instructions);
+    }
+
+    private static Map<String, Integer> getOpCodeMapping(Bytecodes.Instruction[] instructions) {
+        Map<String, Integer> mapping = new HashMap<>();
         for (int i=0; i < instructions.length; i++) {
-            opCodeMapping.put(instructions[i].getName().toLowerCase(), i);
+            mapping.put(instructions[i].getName().toLowerCase(), i);
         }
-        assemble();
+        return Collections.unmodifiableMap(mapping);
     }
 
     private void assemble() {
+        lexer.removeErrorListeners();
+        lexer.addErrorListener(errorListener);
+
         CommonTokenStream tokenStream = new CommonTokenStream(lexer);
+        // the parser buffers every token anyway, lexing them up front times the lexer on its own
+        tokenStream.fill();
+        lap(CompileStats.Phase.LEX);
+        QuDotAsmParser parser = new QuDotAsmParser(tokenStream);
+        parser.removeErrorListeners();
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        parser.setErrorHandler(new BailErrorStrategy());
+
+        ParseTree tree;
+        try {
+            tree = parser.program();
+        } catch (ParseCancellationException e) {
+            // tokens are buffered, rewind and parse again with full LL for correct diagnostics
+            parser.reset();
+            parser.addErrorListener(errorListener);
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            parser.setErrorHandler(new DefaultErrorStrategy());
+            tree = parser.program();
+        }
+        lap(CompileStats.Phase.PARSE);
+
+        if (syntaxErrors == 0) {
+            visit(tree);
+            lap(CompileStats.Phase.VISIT);
+            checkForUnresolvedReferences();
+            lap(CompileStats.Phase.RESOLVE);
+        }
+    }
+
+    private void assembleStreaming(Source source) throws IOException {
+        try (InputStream is = source.open()) {
+            QuDotAsmLexer lexer = createStreamingLexer(is);
+            QuDotAsmParser parser = createStreamingParser(new UnbufferedTokenStream<>(lexer));
+            parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+            parser.setErrorHandler(new BailErrorStrategy());
+            parser.program();
+        } catch (ParseCancellationException e) {
+            // start over with full LL, tokens are buffered this time so errors can be reported in context
+            reset();
+            try (InputStream is = source.open()) {
+                QuDotAsmParser parser = createStreamingParser(new CommonTokenStream(createStreamingLexer(is)));
+                parser.addErrorListener(errorListener);
+                parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+                parser.program();
+            }
+        }
+        lap(CompileStats.Phase.PARSE);
+
+        if (syntaxErrors == 0) {
+            checkForUnresolvedReferences();
+            lap(CompileStats.Phase.RESOLVE);
+        }
+    }
+
+    private void lap(CompileStats.Phase phase) {
+        if (stats != null) {
+            stats.lap(phase);
+        }
+    }
+
+    private QuDotAsmLexer createStreamingLexer(InputStream is) {
+        QuDotAsmLexer lexer = new QuDotAsmLexer(new UnbufferedCharStream(is, STREAM_BUFFER_SIZE, StandardCharsets.UTF_8));
+        // tokens must own their text, the characters behind them are discarded as we go
+        lexer.setTokenFactory(new CommonTokenFactory(true));
+        lexer.removeErrorListeners();
+        lexer.addErrorListener(errorListener);
+        return lexer;
+    }
+
+    private QuDotAsmParser createStreamingParser(TokenStream tokenStream) {
         QuDotAsmParser parser = new QuDotAsmParser(tokenStream);
+        parser.setBuildParseTree(false);
+        parser.removeErrorListeners();
+        parser.addParseListener(new Emitter());
+        return parser;
+    }
 
-        ParseTree tree = parser.program();
-        visit(tree);
-        checkForUnresolvedReferences();
+    // forget everything generated by a failed parse
+    private void reset() {
+        labels.clear();
+        errors.clear();
+        syntaxErrors = 0;
+        constPool.clear();
+        mainGate = null;
+        numQubits = null;
+        ensembleSize = null;
+        ip = 0;
+        instructionCount = 0;
+        gateCount = 0;
+        labelCount = 0;
+        forwardReferenceCount = 0;
     }
 
     public byte[] getBytecode() {
@@ -59,12 +250,72 @@ public class QuDotAssembler extends QuDotAsmBaseVisitor<Void> {
         return ip;
     }
 
+    /**
+     * Replace the generated code, used by the optimizer once it has re-resolved every address
+     * @param code the new bytecode
+     * @param codeSize number of bytes of code in use
+     */
+    public void setBytecode(byte[] code, int codeSize) {
+        this.code = code;
+        this.ip = codeSize;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Re-encode the code as version 2 bytecode, see CompactBytecode, and move the gate addresses to match.
+     * The code can no longer be optimized afterwards.
+     * @param instructions the instruction set the code was generated with
+     */
+    public void compactBytecode(Bytecodes.Instruction[] instructions) {
+        if (version == QuDotCompiler.COMPACT_VERSION) {
+            return;
+        }
+        CompactBytecode compact = new CompactBytecode(code, ip, instructions);
+        Set<GateAsmSymbol> gates = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (mainGate != null) {
+            gates.add(mainGate);
+        }
+        for (ConstPoolEntry entry : constPool.getEntries()) {
+            if (entry instanceof GateAsmSymbol) {
+                gates.add((GateAsmSymbol) entry);
+            }
+        }
+        for (GateAsmSymbol gate : gates) {
+            gate.setAddress(compact.getAddress(gate.getAddress()));
+        }
+        setBytecode(compact.getCode(), compact.getCode().length);
+        version = QuDotCompiler.COMPACT_VERSION;
+    }
+
     public GateAsmSymbol getMainGate() {
         return mainGate;
     }
 
-    public List<Object> getConstPool() {
-        return constPool;
+    public List<ConstPoolEntry> getConstPool() {
+        return constPool.getEntries();
+    }
+
+    /**
+     * Add an entry to the constant pool, used by the optimizer for gates it creates
+     * @param entry the entry to add
+     * @return index of the entry
+     */
+    public int addConstant(ConstPoolEntry entry) {
+        return constPool.add(entry);
+    }
+
+    /**
+     * Replace the constant pool, used by the optimizer when it drops entries. The main gate must be kept.
+     * @param entries the new entries in index order
+     */
+    public void setConstPool(List<ConstPoolEntry> entries) {
+        constPool.clear();
+        for (ConstPoolEntry entry : entries) {
+            constPool.add(entry);
+        }
     }
 
     public Integer getNumQubits() {
@@ -75,83 +326,255 @@ public class QuDotAssembler extends QuDotAsmBaseVisitor<Void> {
         return ensembleSize;
     }
 
-    // After parser is complete, look for unresolved labels
+    /**
+     * Errors found while assembling. A program with errors should not be written out.
+     * @return list of error messages, empty if the program assembled cleanly
+     */
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    public boolean hasErrors() {
+        return !errors.isEmpty();
+    }
+
+    /**
+     * @return number of instructions assembled, the optimizer does not update it
+     */
+    public int getInstructionCount() {
+        return instructionCount;
+    }
+
+    public int getGateCount() {
+        return gateCount;
+    }
+
+    public int getLabelCount() {
+        return labelCount;
+    }
+
+    /**
+     * @return number of label references assembled before the label was defined, each backpatched later
+     */
+    public int getForwardReferenceCount() {
+        return forwardReferenceCount;
+    }
+
+    // At the end of each gate and after parser is complete, look for unresolved labels
     public void checkForUnresolvedReferences() {
         for (String name : labels.keySet()) {
             LabelSymbol sym = labels.get(name);
             if ( !sym.isDefined ) {
-                System.err.println("unresolved reference: "+ name);
+                errors.add("unresolved reference: "+ name);
             }
         }
     }
 
     @Override
     public Void visitQudot(QuDotAsmParser.QudotContext ctx) {
-        numQubits = Integer.parseInt(ctx.q.getText());
-        ensembleSize = Integer.parseInt(ctx.e.getText());
-
+        defineHeader(ctx);
         return super.visitQudot(ctx);
     }
 
     @Override
     public Void visitGateDeclaration(QuDotAsmParser.GateDeclarationContext ctx) {
-        String name = ctx.name.getText();
-        int args = Integer.parseInt(ctx.a.getText());
-        int regs = Integer.parseInt(ctx.rn.getText());
-        int qubitRegs = Integer.parseInt(ctx.qn.getText());
+        declareGate(ctx);
+        return super.visitGateDeclaration(ctx);
+    }
+
+    @Override
+    public Void visitLabel(QuDotAsmParser.LabelContext ctx) {
+        defineLabel(ctx.name);
+        return super.visitLabel(ctx);
+    }
+
+    @Override
+    public Void visitArrayInstr(QuDotAsmParser.ArrayInstrContext ctx) {
+        genArrayInstr(ctx);
+        return super.visitArrayInstr(ctx);
+    }
+
+    @Override
+    public Void visitMaskInstr(QuDotAsmParser.MaskInstrContext ctx) {
+        genMaskInstr(ctx);
+        return super.visitMaskInstr(ctx);
+    }
+
+    @Override
+    public Void visitInstr(QuDotAsmParser.InstrContext ctx) {
+        // qload_array and qload_mask have no op label, they are generated by their own rules
+        if (ctx.op != null) {
+            genInstr(ctx);
+        }
+        return super.visitInstr(ctx);
+    }
+
+    /**
+     * Generates bytecode from parse listener events in streaming mode. Rules are complete on exit and
+     * nothing is emitted once a syntax error has been seen.
+     */
+    private class Emitter extends QuDotAsmBaseListener {
+        @Override
+        public void exitQudot(QuDotAsmParser.QudotContext ctx) {
+            if (syntaxErrors == 0) {
+                defineHeader(ctx);
+            }
+        }
+
+        @Override
+        public void exitGateDeclaration(QuDotAsmParser.GateDeclarationContext ctx) {
+            if (syntaxErrors == 0) {
+                declareGate(ctx);
+            }
+        }
+
+        @Override
+        public void exitLabel(QuDotAsmParser.LabelContext ctx) {
+            if (syntaxErrors == 0) {
+                defineLabel(ctx.name);
+            }
+        }
+
+        @Override
+        public void exitArrayInstr(QuDotAsmParser.ArrayInstrContext ctx) {
+            if (syntaxErrors == 0) {
+                genArrayInstr(ctx);
+            }
+        }
+
+        @Override
+        public void exitMaskInstr(QuDotAsmParser.MaskInstrContext ctx) {
+            if (syntaxErrors == 0) {
+                genMaskInstr(ctx);
+            }
+        }
+
+        @Override
+        public void exitInstr(QuDotAsmParser.InstrContext ctx) {
+            if (syntaxErrors == 0 && ctx.op != null) {
+                genInstr(ctx);
+            }
+        }
+    }
+
+    private void defineHeader(QuDotAsmParser.QudotContext ctx) {
+        defineHeader(Integer.parseInt(ctx.q.getText()), Integer.parseInt(ctx.e.getText()));
+    }
+
+    void defineHeader(int numQubits, int ensembleSize) {
+        this.numQubits = numQubits;
+        this.ensembleSize = ensembleSize;
+    }
+
+    private void declareGate(QuDotAsmParser.GateDeclarationContext ctx) {
+        declareGate(ctx.name.getText(), Integer.parseInt(ctx.a.getText()), Integer.parseInt(ctx.rn.getText()),
+                Integer.parseInt(ctx.qn.getText()));
+    }
+
+    void declareGate(String name, int args, int regs, int qubitRegs) {
         // address is where .gate appears
         int address = ip;
+        gateCount++;
         GateAsmSymbol gateSymbol = new GateAsmSymbol(name, args, regs, qubitRegs, address);
 
         if (name.equals(MAIN_GATE_NAME)) {
             mainGate = gateSymbol;
         }
 
-        if (constPool.contains(gateSymbol)) {
-            constPool.set(constPool.indexOf(gateSymbol), gateSymbol);
+        int index = constPool.indexOf(gateSymbol);
+        if (index >= 0) {
+            constPool.set(index, gateSymbol);
         } else {
-            getConstantPoolIndex(gateSymbol);
+            constPool.add(gateSymbol);
         }
 
-        return super.visitGateDeclaration(ctx);
+        // a new gate starts a new label scope
+        checkForUnresolvedReferences();
+        labels.clear();
     }
 
-    @Override
-    public Void visitLabel(QuDotAsmParser.LabelContext ctx) {
-        Token labelToken = ctx.ID().getSymbol();
-        defineLabel(labelToken);
-        return super.visitLabel(ctx);
+    private void genArrayInstr(QuDotAsmParser.ArrayInstrContext ctx) {
+        Token a = ctx.a.start;
+        Token b = ctx.b.start;
+        if (a.getType() == Bytecodes.QUREG && b.getType() == Bytecodes.INT
+                && Integer.parseInt(b.getText()) == ctx.elems.size()) {
+            genQubitLoad(getRegisterNumber(a), getInts(ctx.elems), false);
+        } else {
+            errors.add("line: " + ctx.op.getLine() + " qload_array needs a qubit register and the number of qubits"
+                    + " it lists");
+        }
     }
 
-    @Override
-    public Void visitArrayInstr(QuDotAsmParser.ArrayInstrContext ctx) {
-        genOpcode(ctx.getStart(), ctx.a.start, ctx.b.start);
-        for (TerminalNode tn : ctx.INT()) {
-            genOperand(tn.getSymbol());
+    private void genMaskInstr(QuDotAsmParser.MaskInstrContext ctx) {
+        int[] qubits = getInts(ctx.elems);
+        if (ctx.a.start.getType() != Bytecodes.QUREG) {
+            errors.add("line: " + ctx.op.getLine() + " qload_mask needs a qubit register");
+        } else if (Arrays.stream(qubits).anyMatch(q -> q < 0)) {
+            errors.add("line: " + ctx.op.getLine() + " negative qubit in qload_mask");
+        } else {
+            genQubitLoad(getRegisterNumber(ctx.a.start), qubits, true);
         }
-        return super.visitArrayInstr(ctx);
     }
 
-    @Override
-    public Void visitInstr(QuDotAsmParser.InstrContext ctx) {
-        if (ctx.arrayInstr() == null) {
-            Token instrToken = ctx.ID().getSymbol();
-
-            if (ctx.a != null && ctx.b != null && ctx.c != null && ctx.d != null && ctx.f != null) {
-                genOpcode(instrToken, ctx.a.start, ctx.b.start, ctx.c.start, ctx.d.start, ctx.f.start);
-            } else if (ctx.a != null && ctx.b != null && ctx.c != null && ctx.d != null) {
-                genOpcode(instrToken, ctx.a.start, ctx.b.start, ctx.c.start, ctx.d.start);
-            } else if (ctx.a != null && ctx.b != null && ctx.c != null) {
-                genOpcode(instrToken, ctx.a.start, ctx.b.start, ctx.c.start);
-            } else if (ctx.a != null && ctx.b != null) {
-                genOpcode(instrToken, ctx.a.start, ctx.b.start);
-            } else if (ctx.a != null) {
-                genOpcode(instrToken, ctx.a.start);
-            } else {
-                genOpcode(instrToken);
-            }
+    private static int[] getInts(List<Token> tokens) {
+        int[] values = new int[tokens.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Integer.parseInt(tokens.get(i).getText());
+        }
+        return values;
+    }
+
+    /**
+     * Generate the smallest instruction that loads a list of qubits into a qubit register, see
+     * BytecodeUtils.getQubitLoad
+     * @param qureg the qubit register
+     * @param qubits the qubits, ordered as written
+     * @param isSet true for the qubits of a qload_mask, which are a set, false for those of a qload_array
+     */
+    void genQubitLoad(int qureg, int[] qubits, boolean isSet) {
+        int[] instr = BytecodeUtils.getQubitLoad(qureg, qubits, isSet);
+        genOpcode(instr[0]);
+        for (int i = 1; i < instr.length; i++) {
+            genOperand(instr[i]);
+        }
+    }
+
+    /**
+     * Check the operands of an instruction against the instruction set, the passes and the VM decode them by
+     * it. Instructions ending in an ARRAY or QUBITSET have their own rules.
+     * @return true if the instruction takes n operands or is unknown, which genOpcode reports
+     */
+    boolean checkOperandCount(int opCode, int n, int line) {
+        Bytecodes.Instruction instruction = instructions[opCode];
+        if (instruction.getN() == n || instruction.isVariableLength()) {
+            return true;
+        }
+        errors.add("line: " + line + " " + instruction.getName() + " takes " + instruction.getN()
+                + (instruction.getN() == 1 ? " operand" : " operands") + ", not " + n);
+        return false;
+    }
+
+    private void genInstr(QuDotAsmParser.InstrContext ctx) {
+        Token instrToken = ctx.op;
+        int n = ctx.f != null ? 5 : ctx.d != null ? 4 : ctx.c != null ? 3 : ctx.b != null ? 2 : ctx.a != null ? 1 : 0;
+        Integer opCode = opCodeMapping.get(instrToken.getText());
+        if (opCode != null && !checkOperandCount(opCode, n, instrToken.getLine())) {
+            return;
+        }
+
+        if (ctx.a != null && ctx.b != null && ctx.c != null && ctx.d != null && ctx.f != null) {
+            genOpcode(instrToken, ctx.a.start, ctx.b.start, ctx.c.start, ctx.d.start, ctx.f.start);
+        } else if (ctx.a != null && ctx.b != null && ctx.c != null && ctx.d != null) {
+            genOpcode(instrToken, ctx.a.start, ctx.b.start, ctx.c.start, ctx.d.start);
+        } else if (ctx.a != null && ctx.b != null && ctx.c != null) {
+            genOpcode(instrToken, ctx.a.start, ctx.b.start, ctx.c.start);
+        } else if (ctx.a != null && ctx.b != null) {
+            genOpcode(instrToken, ctx.a.start, ctx.b.start);
+        } else if (ctx.a != null) {
+            genOpcode(instrToken, ctx.a.start);
+        } else {
+            genOpcode(instrToken);
         }
-        return super.visitInstr(ctx);
     }
 
     private void genOpcode(Token token) {
@@ -160,9 +583,14 @@ public class QuDotAssembler extends QuDotAsmBaseVisitor<Void> {
 
         Integer opCode = opCodeMapping.get(opCodeName);
         if (opCode == null) {
-            System.err.println("line: " + lineNumber + " Invalid instruction (" + opCodeName + ")");
+            errors.add("line: " + lineNumber + " Invalid instruction (" + opCodeName + ")");
             return;
         }
+        genOpcode(opCode);
+    }
+
+    void genOpcode(int opCode) {
+        instructionCount++;
         ensureCapacity(ip+1);
         code[ip++] = (byte)(opCode&0xFF);
     }
@@ -223,19 +651,15 @@ public class QuDotAssembler extends QuDotAsmBaseVisitor<Void> {
                 v = getRegisterNumber(operandToken);
                 break;
         }
+        genOperand(v);
+    }
+
+    void genOperand(int v) {
         ensureCapacity(ip+4);  // expand code array if necessary
         BytecodeUtils.writeInt(code, ip, v); // write operand to code byte array
         ip += 4;               // we've written four bytes
     }
 
-    private int getConstantPoolIndex(Object o) {
-        if ( constPool.contains(o) ) {
-            return constPool.indexOf(o);
-        }
-        constPool.add(o);
-        return constPool.size()-1;
-    }
-
     private void ensureCapacity(int index) {
         if ( index >= code.length ) { // expand
             int newSize = Math.max(index, code.length) * 2;
@@ -252,30 +676,27 @@ public class QuDotAssembler extends QuDotAsmBaseVisitor<Void> {
         return Integer.valueOf(rs);
     }
 
-    private int getGateIndex(String id) {
-        int i = constPool.indexOf(new GateAsmSymbol(id));
-        if ( i>=0 ) {
-            // already in system; return index
-            return i;
-        }
-        // must be a forward function reference
-        // create the constant pool entry; we'll fill in later
-        return getConstantPoolIndex(new GateAsmSymbol(id));
+    int getGateIndex(String id) {
+        // returns the index if already in system, otherwise it must be a forward function reference
+        // and we create the constant pool entry; we'll fill in later
+        return constPool.add(new GateAsmSymbol(id));
     }
 
-    private int getLabelAddress(String id) {
+    int getLabelAddress(String id) {
         LabelSymbol sym = labels.get(id);
         if ( sym==null ) {
             // assume it's a forward code reference; record opnd address
             sym = new LabelSymbol(id, ip, true);
             sym.isDefined = false;
             labels.put(id, sym);
+            forwardReferenceCount++;
         }
         else {
             if ( sym.isForwardRef ) {
                 // address is unknown, must simply add to forward ref list
                 // record where in code memory we should patch later
                 sym.addForwardReference(ip);
+                forwardReferenceCount++;
             }
             else {
                 // all is well; it's defined--just grab address
@@ -287,11 +708,15 @@ public class QuDotAssembler extends QuDotAsmBaseVisitor<Void> {
     }
 
     private void defineLabel(Token idToken) {
-        String id = idToken.getText();
+        defineLabel(idToken.getText(), idToken.getLine());
+    }
+
+    void defineLabel(String id, int line) {
         LabelSymbol sym = labels.get(id);
         if ( sym==null ) {
             LabelSymbol lsym = new LabelSymbol(id, ip, false);
             labels.put(id, lsym);
+            labelCount++;
         }
         else {
             if ( sym.isForwardRef ) {
@@ -299,10 +724,11 @@ public class QuDotAssembler extends QuDotAsmBaseVisitor<Void> {
                 sym.isDefined = true;
                 sym.address = ip;
                 sym.resolveForwardReferences(code);
+                labelCount++;
             }
             else {
                 // redefinition of symbol
-                System.err.println("line " + idToken.getLine() + ": redefinition of symbol "+id);
+                errors.add("line " + line + ": redefinition of symbol "+id);
             }
         }
     }
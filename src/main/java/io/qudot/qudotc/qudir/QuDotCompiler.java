@@ -1,127 +1,665 @@
 package io.qudot.qudotc.qudir;
 
 
-import io.qudot.qudotc.utils.BytecodeUtils;
+import io.qudot.qudotc.opt.CostEstimate;
+import io.qudot.qudotc.opt.CostEstimator;
+import io.qudot.qudotc.opt.Inliner;
+import io.qudot.qudotc.opt.InstructionFuser;
+import io.qudot.qudotc.opt.Linker;
+import io.qudot.qudotc.opt.PartialEvaluator;
+import io.qudot.qudotc.opt.PatternStats;
+import io.qudot.qudotc.opt.Program;
+import io.qudot.qudotc.opt.QuDotOptimizer;
+import io.qudot.qudotc.opt.QubitRelabeler;
 import io.qudot.qudotc.utils.Bytecodes;
 import io.quarkus.picocli.runtime.annotations.TopCommand;
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CharStreams;
 import picocli.CommandLine;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
- * This is the main executable program for the QuDot Intermediate Representation. It takes a .qudot file
+ * This is the main executable program for the QuDot Intermediate Representation. It takes .qudot files
  * and generates a QuDotAssembler object that has all the information necessary to execute on the QuDot VM.
- * The QuDotAssembler is then serialized and written to a byte file with a .qudotc extension
+ * The QuDotAssembler is then streamed by a QuDotFileWriter to a byte file with a .qudotc extension.
+ * Many files, directories or glob patterns may be given, they are compiled in parallel on a fork-join pool
+ * with one QuDotAssembler per file.
  *
  * @since 0.1.0
  */
 @TopCommand
-@CommandLine.Command(name = "qudotc", description = "$ qudotc filename.qudot [-o output dir]")
+@CommandLine.Command(name = "qudotc", subcommands = QuDotServer.class, description = "$ qudotc filename.qudot... [-o output dir] [-j jobs] [-O] [-u] [-i] [-r] [-F] [-l]")
 public class QuDotCompiler implements Runnable {
     public static final byte VERSION = 1;
+    // varint operands and relative branch targets, written with --bytecode-version 2
+    public static final byte COMPACT_VERSION = 2;
     public static final String INPUT_FILE_EXT = ".qudot";
     public static final String OUTPUT_FILE_EXT = ".qudotc";
+    public static final long DEFAULT_CACHE_SIZE = 256L * 1024 * 1024;
 
-    @CommandLine.Parameters(index = "0")
-    private String filename;
+    /**
+     * Formats --stats and --estimate print in, an enum so picocli does not take a file name following the
+     * option as its value
+     */
+    public enum StatsFormat {
+        text, json
+    }
+
+    // not required by picocli so serve can be given without files, run checks there is one
+    @CommandLine.Parameters(arity = "0..*", paramLabel = "<filename>",
+            description = ".qudot files, directories or glob patterns")
+    private List<String> filenames;
     @CommandLine.Option(names = {"-o", "--output-directory"}, defaultValue = ".")
     private String outputDir;
+    @CommandLine.Option(names = {"-j", "--jobs"}, defaultValue = "0",
+            description = "number of files compiled in parallel, 0 uses all available processors")
+    private int jobs;
+    @CommandLine.Option(names = {"-s", "--streaming"},
+            description = "assemble without building a parse tree, memory follows the size of the bytecode")
+    private boolean streaming;
+    @CommandLine.Option(names = {"-f", "--fast"},
+            description = "assemble with the hand written scanner, falling back to ANTLR for diagnostics")
+    private boolean fast;
+    @CommandLine.Option(names = {"-O", "--optimize"},
+            description = "fold constants, propagate copies, thread jumps, remove dead code, cancel quantum gates and compact registers")
+    private boolean optimize;
+    @CommandLine.Option(names = {"-u", "--unroll"},
+            description = "evaluate classical loops at compile time and emit straight line gates")
+    private boolean unroll;
+    @CommandLine.Option(names = {"--unroll-budget"}, paramLabel = "<bytes>",
+            defaultValue = "" + PartialEvaluator.DEFAULT_BUDGET,
+            description = "maximum bytes of code emitted by -u, default ${DEFAULT-VALUE}")
+    private int unrollBudget;
+    @CommandLine.Option(names = {"-i", "--inline"},
+            description = "copy the bodies of small and single caller gates into their call sites")
+    private boolean inline;
+    @CommandLine.Option(names = {"--inline-size"}, paramLabel = "<instrs>",
+            defaultValue = "" + Inliner.DEFAULT_MAX_SIZE,
+            description = "largest gate inlined by -i at every call site, default ${DEFAULT-VALUE}")
+    private int inlineSize;
+    @CommandLine.Option(names = {"--inline-single-caller-size"}, paramLabel = "<instrs>",
+            defaultValue = "" + Inliner.DEFAULT_MAX_SINGLE_CALLER_SIZE,
+            description = "largest gate inlined by -i into its only call site, default ${DEFAULT-VALUE}")
+    private int inlineSingleCallerSize;
+    @CommandLine.Option(names = {"-r", "--relabel-qubits"},
+            description = "renumber qubits so the qubits that interact most take the lowest numbers")
+    private boolean relabel;
+    @CommandLine.Option(names = {"-F", "--fuse"},
+            description = "rewrite common instruction sequences into superinstructions")
+    private boolean fuse;
+    @CommandLine.Option(names = {"-l", "--link"},
+            description = "drop the gates main cannot reach and lay gates out next to their callers")
+    private boolean link;
+    @CommandLine.Option(names = {"--bytecode-version"}, paramLabel = "<version>", defaultValue = "" + VERSION,
+            description = "1 for 4 byte operands, 2 for varint operands and relative branches, default ${DEFAULT-VALUE}")
+    private int bytecodeVersion;
+    @CommandLine.Option(names = {"--container"},
+            description = "write a sectioned container with a CRC32C per section")
+    private boolean container;
+    @CommandLine.Option(names = {"-z", "--deflate"},
+            description = "write a sectioned container and deflate the sections that get smaller")
+    private boolean deflate;
+    @CommandLine.Option(names = {"--cache-dir"}, paramLabel = "<dir>",
+            description = "reuse files compiled from the same source, compiler and options from this directory")
+    private String cacheDir;
+    @CommandLine.Option(names = {"--cache-size"}, paramLabel = "<bytes>", defaultValue = "" + DEFAULT_CACHE_SIZE,
+            description = "size the least recently used entries of --cache-dir are dropped down to, default ${DEFAULT-VALUE}")
+    private long cacheSize;
+    @CommandLine.Option(names = {"--pattern-stats"}, paramLabel = "<n>", arity = "0..1", defaultValue = "0",
+            fallbackValue = "20",
+            description = "print the n most frequent opcode sequences of the compiled files, 20 if n is not given")
+    private int patternStatsCount;
+    @CommandLine.Option(names = {"--stats"}, paramLabel = "<format>", arity = "0..1", fallbackValue = "text",
+            description = "print the time and memory of each compile phase and the size of each program, as ${COMPLETION-CANDIDATES}")
+    private StatsFormat statsFormat;
+    @CommandLine.Option(names = {"--estimate"}, paramLabel = "<format>", arity = "0..1", fallbackValue = "text",
+            description = "print the instructions, qubit operations, paths and measurements a run of each program costs, as ${COMPLETION-CANDIDATES}")
+    private StatsFormat estimateFormat;
+
+    @CommandLine.Spec
+    private CommandLine.Model.CommandSpec spec;
+
+    private PatternStats patternStats;
+    private CompileCache cache;
 
     /**
-     * Assemble is what does all the work after this call all the fields of the object are set and we are able
-     * to run on a QuDot VM
+     * Result of compiling a single source file
      */
-    public void compile() {
+    public static class CompileResult {
+        private final Path source;
+        private long bytesRead;
+        private long bytesWritten;
+        // the compiled file when compiled to memory
+        private byte[] bytes;
+        private final List<String> errors = new ArrayList<>();
+        private final CompileStats stats;
+        private CostEstimate estimate;
+
+        /**
+         * @param source the source compiled, its stats start timing here
+         */
+        public CompileResult(Path source) {
+            this.source = source;
+            this.stats = new CompileStats(String.valueOf(source));
+        }
+
+        public Path getSource() {
+            return source;
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return the .qudotc file contents of a successful compileToBytes, null otherwise
+         */
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        public boolean isSuccess() {
+            return errors.isEmpty();
+        }
+
+        public CompileStats getStats() {
+            return stats;
+        }
+
+        /**
+         * @return the cost of running the compiled program with --estimate, null otherwise
+         */
+        public CostEstimate getEstimate() {
+            return estimate;
+        }
+    }
+
+    /**
+     * Compile every input file, in parallel when there is more than one, and report errors per file
+     * @return the results in input order
+     */
+    public List<CompileResult> compile() {
+        checkOptions();
+        List<CompileResult> unresolved = new ArrayList<>();
+        List<Path> sources = expandInputs(filenames, unresolved);
+        unresolved.forEach(this::reportErrors);
+        patternStats = patternStatsCount > 0 ? new PatternStats() : null;
+        // pattern statistics and estimates need every file assembled
+        cache = cacheDir != null && patternStats == null && estimateFormat == null
+                ? new CompileCache(Paths.get(cacheDir), cacheSize) : null;
+        if (sources.isEmpty() && unresolved.isEmpty()) {
+            throw new RuntimeException("no " + INPUT_FILE_EXT + " files found");
+        }
+        if (sources.size() <= 1) {
+            List<CompileResult> results = new ArrayList<>(unresolved);
+            if (!sources.isEmpty()) {
+                results.add(compile(sources.get(0)));
+            }
+            evictCache();
+            return results;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(getParallelism());
         try {
-            CharStream charStream = CharStreams.fromFileName(filename);
-            compileToFile(charStream);
-        } catch (IOException e) {
-            throw new RuntimeException(e.getMessage());
+            List<Callable<CompileResult>> tasks = new ArrayList<>();
+            for (Path source : sources) {
+                tasks.add(() -> compile(source));
+            }
+
+            List<CompileResult> results = new ArrayList<>(unresolved);
+            for (Future<CompileResult> future : pool.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+            evictCache();
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("compilation interrupted");
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause().getMessage());
+        } finally {
+            pool.shutdown();
         }
     }
 
-    public void compile(InputStream is) {
+    /**
+     * Compile a single .qudot file into the output directory. Nothing is written if the file has errors.
+     * @param source path of the .qudot file
+     * @return the compile result with any errors found
+     */
+    public CompileResult compile(Path source) {
+        CompileResult result = new CompileResult(source);
+        CompileStats stats = result.stats;
         try {
-            CharStream charStream = CharStreams.fromStream(is);
-            compileToFile(charStream);
-        } catch (IOException e) {
-            throw new RuntimeException(e.getMessage());
+            result.bytesRead = Files.size(source);
+            Path out = Paths.get(outputDir, getOutFileName(source));
+            String key = cache != null ? cache.getKey(source, getOptionsKey()) : null;
+            if (key != null && cache.restore(key, out)) {
+                result.bytesWritten = Files.size(out);
+                stats.lap(CompileStats.Phase.CACHE);
+                return finish(result);
+            }
+            if (key != null) {
+                stats.lap(CompileStats.Phase.CACHE);
+            }
+            compileToFile(assemble(source, null, stats), getOutFileName(source), result);
+            if (key != null && result.isSuccess()) {
+                cache.store(key, out);
+                stats.lap(CompileStats.Phase.CACHE);
+            }
+        } catch (NoSuchFileException e) {
+            // the message is only the path
+            result.errors.add(source.equals(Paths.get(e.getFile())) ? "no such file" : "no such file " + e.getFile());
+        } catch (IOException | RuntimeException e) {
+            result.errors.add(String.valueOf(e.getMessage()));
         }
+        reportErrors(result);
+        return finish(result);
     }
 
-    private void compileToFile(CharStream charStream) {
+    public CompileResult compile(InputStream is, Path source) {
+        CompileResult result = new CompileResult(source);
         try {
-            QuDotAsmLexer lexer = new QuDotAsmLexer(charStream);
-            QuDotAssembler quDotAssembler = new QuDotAssembler(lexer, Bytecodes.instructions);
+            compileToFile(assemble(null, read(is, result), result.stats), getOutFileName(source), result);
+        } catch (IOException | RuntimeException e) {
+            result.errors.add(String.valueOf(e.getMessage()));
+        }
+        reportErrors(result);
+        return finish(result);
+    }
 
-            Files.write(Paths.get(outputDir, getOutFileName()), getQuDotByteCodeFile(quDotAssembler));
+    /**
+     * Check the options that are not checked by picocli
+     */
+    public void checkOptions() {
+        if (bytecodeVersion != VERSION && bytecodeVersion != COMPACT_VERSION) {
+            throw new RuntimeException("unsupported bytecode version " + bytecodeVersion);
+        }
+    }
+
+    // every option that changes the compiled file
+    private String getOptionsKey() {
+        return "O=" + optimize + " u=" + unroll + " unroll-budget=" + unrollBudget + " i=" + inline
+                + " inline-size=" + inlineSize + " inline-single-caller-size=" + inlineSingleCallerSize
+                + " r=" + relabel + " F=" + fuse + " l=" + link + " bytecode-version=" + bytecodeVersion
+                + " container=" + (container || deflate) + " deflate=" + deflate;
+    }
+
+    private void evictCache() {
+        if (cache == null) {
+            return;
+        }
+        try {
+            cache.evict();
         } catch (IOException e) {
-            throw new RuntimeException(e.getMessage());
+            System.err.println("warning: unable to evict from " + cacheDir + ": " + e.getMessage());
         }
     }
 
-    public byte[] getQuDotByteCodeFile(QuDotAssembler assembler) {
+    /**
+     * Assemble a source with the assembler -f and -s select
+     * @param file the .qudot file or null if the source is held in bytes
+     * @param bytes the source read into memory, used when file is null
+     * @param stats the stats of the compile
+     * @return the assembled program, with its errors
+     * @throws IOException if the file cannot be read
+     */
+    private QuDotAssembler assemble(Path file, byte[] bytes, CompileStats stats) throws IOException {
+        if (fast) {
+            QuDotAssembler quDotAssembler = file != null ? QuDotScanner.assemble(file, Bytecodes.instructions)
+                    : QuDotScanner.assemble(ByteBuffer.wrap(bytes), Bytecodes.instructions);
+            stats.lap(CompileStats.Phase.PARSE);
+            if (quDotAssembler != null) {
+                return quDotAssembler;
+            }
+        }
+        if (streaming) {
+            QuDotAssembler.Source source = file != null ? () -> Files.newInputStream(file)
+                    : () -> new ByteArrayInputStream(bytes);
+            return new QuDotAssembler(source, Bytecodes.instructions, stats);
+        }
+        CharStream charStream = file != null ? CharStreams.fromPath(file)
+                : CharStreams.fromStream(new ByteArrayInputStream(bytes));
+        if (file != null) {
+            stats.lap(CompileStats.Phase.READ);
+        }
+        return new QuDotAssembler(new QuDotAsmLexer(charStream), Bytecodes.instructions, stats);
+    }
+
+    private static byte[] read(InputStream is, CompileResult result) throws IOException {
+        byte[] bytes = is.readAllBytes();
+        result.bytesRead = bytes.length;
+        result.stats.lap(CompileStats.Phase.READ);
+        return bytes;
+    }
+
+    // count the program and run the selected passes, false if it has errors
+    private boolean prepare(QuDotAssembler quDotAssembler, CompileResult result) {
+        result.stats.count(quDotAssembler);
+        if (quDotAssembler.hasErrors()) {
+            result.errors.addAll(quDotAssembler.getErrors());
+            return false;
+        }
+        runPasses(quDotAssembler, result);
+        return true;
+    }
+
+    private void compileToFile(QuDotAssembler quDotAssembler, String outFileName, CompileResult result)
+            throws IOException {
+        if (!prepare(quDotAssembler, result)) {
+            return;
+        }
+
+        QuDotFileWriter writer = new QuDotFileWriter(quDotAssembler, container || deflate, deflate);
+        writer.write(Paths.get(outputDir, outFileName));
+        result.bytesWritten = writer.getFileSize();
+        result.stats.lap(CompileStats.Phase.WRITE);
+    }
+
+    /**
+     * Compile a source held in memory without writing anything, used by qudotc serve. The source is assembled
+     * and optimized as the options select, like a file on the command line.
+     * @param is the .qudot source
+     * @param source name of the source
+     * @return the result, holding the .qudotc file contents if there were no errors
+     */
+    public CompileResult compileToBytes(InputStream is, Path source) {
+        CompileResult result = new CompileResult(source);
         try {
-            ByteArrayOutputStream outBytes = new ByteArrayOutputStream();
-            BytecodeUtils.writeInt(outBytes, VERSION);
-            BytecodeUtils.writeInt(outBytes, assembler.getNumQubits());
-            BytecodeUtils.writeInt(outBytes, assembler.getEnsembleSize());
+            QuDotAssembler quDotAssembler = assemble(null, read(is, result), result.stats);
+            if (!prepare(quDotAssembler, result)) {
+                return finish(result);
+            }
+            result.bytes = getQuDotByteCodeFile(quDotAssembler);
+            result.bytesWritten = result.bytes.length;
+            result.stats.lap(CompileStats.Phase.WRITE);
+        } catch (IOException | RuntimeException e) {
+            result.errors.add(String.valueOf(e.getMessage()));
+        }
+        return finish(result);
+    }
+
+    private static CompileResult finish(CompileResult result) {
+        result.stats.finish(result.isSuccess(), result.bytesRead, result.bytesWritten);
+        return result;
+    }
+
+    // run the selected passes and re-encode in the selected bytecode version
+    private void runPasses(QuDotAssembler quDotAssembler, CompileResult result) {
+        CompileStats stats = result.stats;
+        if (optimize || unroll || inline || relabel || fuse || link) {
+            QuDotOptimizer optimizer = new QuDotOptimizer(Bytecodes.instructions);
+            if (inline) {
+                optimizer.addPass(new Inliner(inlineSize, inlineSingleCallerSize));
+            }
+            if (unroll) {
+                optimizer.addPass(new PartialEvaluator(unrollBudget));
+            }
+            if (optimize) {
+                optimizer.addDefaultPasses();
+            }
+            // linked first, so the gates -u and -i leave without callers do not keep -r from relabeling
+            if (link) {
+                optimizer.addFinalPass(new Linker());
+            }
+            if (relabel) {
+                optimizer.addFinalPass(new QubitRelabeler());
+            }
+            if (fuse) {
+                optimizer.addFinalPass(new InstructionFuser());
+            }
+            optimizer.optimize(quDotAssembler);
+        }
+        if (patternStats != null) {
+            patternStats.add(Program.decode(quDotAssembler, Bytecodes.instructions));
+        }
+        stats.lap(CompileStats.Phase.OPTIMIZE);
+        if (estimateFormat != null) {
+            result.estimate = new CostEstimator(CostEstimator.DEFAULT_STEP_BUDGET)
+                    .estimate(Program.decode(quDotAssembler, Bytecodes.instructions));
+            stats.lap(CompileStats.Phase.ESTIMATE);
+        }
+        if (bytecodeVersion == COMPACT_VERSION) {
+            quDotAssembler.compactBytecode(Bytecodes.instructions);
+            stats.lap(CompileStats.Phase.COMPACT);
+        }
+    }
+
+    /**
+     * Serialize an assembled program into an exactly sized byte array holding the .qudotc file
+     * @param assembler the assembled program
+     * @return the .qudotc file contents
+     */
+    public byte[] getQuDotByteCodeFile(QuDotAssembler assembler) {
+        QuDotFileWriter writer = new QuDotFileWriter(assembler, container || deflate, deflate);
+        byte[] bytes = new byte[Math.toIntExact(writer.getFileSize())];
+        writer.write(ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    /**
+     * Expand the command line inputs into .qudot files. Directories are searched recursively and
+     * arguments containing glob characters are matched against the files under their fixed prefix.
+     * Every source is written to the output directory by its file name, so sources that would write the
+     * same file are not compiled, they would race for it.
+     * @param inputs files, directories or glob patterns
+     * @param unresolved gets a failed result for each file that does not exist, each pattern matching no files
+     *                   and each source sharing its output file with another
+     * @return the distinct source files in the order they were found
+     */
+    public static List<Path> expandInputs(List<String> inputs, List<CompileResult> unresolved) {
+        // keyed by the absolute path, so a file named twice in different ways is compiled once
+        Map<Path, Path> sources = new LinkedHashMap<>();
+        for (String input : inputs) {
+            Path path = Paths.get(input);
+            List<Path> found;
+            if (Files.isDirectory(path)) {
+                found = walk(path, p -> p.getFileName().toString().endsWith(INPUT_FILE_EXT));
+            } else if (isGlob(input)) {
+                Path base = getGlobBase(input);
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + input);
+                found = walk(base, matcher::matches);
+                if (found.isEmpty()) {
+                    unresolved.add(getUnresolved(path, "pattern matched no files"));
+                }
+            } else if (!Files.exists(path)) {
+                unresolved.add(getUnresolved(path, "no such file"));
+                found = List.of();
+            } else {
+                found = List.of(path);
+            }
+            for (Path source : found) {
+                sources.putIfAbsent(source.toAbsolutePath().normalize(), source);
+            }
+        }
+
+        Map<String, List<Path>> byOutFile = new HashMap<>();
+        for (Path source : sources.values()) {
+            byOutFile.computeIfAbsent(getOutFileName(source), k -> new ArrayList<>()).add(source);
+        }
+        List<Path> distinct = new ArrayList<>();
+        for (Path source : sources.values()) {
+            String outFile = getOutFileName(source);
+            List<Path> sharing = byOutFile.get(outFile);
+            if (sharing.size() == 1) {
+                distinct.add(source);
+            } else {
+                unresolved.add(getUnresolved(source, outFile + " would also be written for " + sharing.stream()
+                        .filter(other -> other != source).map(String::valueOf).collect(Collectors.joining(", "))));
+            }
+        }
+        return distinct;
+    }
 
-            writeConstPoolObj(outBytes, assembler.getMainGate());
+    private static CompileResult getUnresolved(Path input, String error) {
+        CompileResult result = new CompileResult(input);
+        result.errors.add(error);
+        return finish(result);
+    }
 
-            List<Object> constPool = assembler.getConstPool();
-            BytecodeUtils.writeInt(outBytes, constPool.size());
+    private static boolean isGlob(String input) {
+        return input.chars().anyMatch(c -> c == '*' || c == '?' || c == '[' || c == '{');
+    }
 
-            for (Object obj : constPool) {
-                writeConstPoolObj(outBytes, obj);
+    // the leading directories of a glob pattern that contain no glob characters
+    private static Path getGlobBase(String glob) {
+        String[] parts = glob.split("/");
+        StringBuilder base = new StringBuilder(glob.startsWith("/") ? "/" : "");
+        for (int i = 0; i < parts.length - 1 && !isGlob(parts[i]); i++) {
+            if (!parts[i].isEmpty()) {
+                base.append(parts[i]).append('/');
             }
+        }
+        return base.length() == 0 ? Paths.get(".") : Paths.get(base.toString());
+    }
 
-            outBytes.write(assembler.getBytecode(), 0, assembler.getCodeSize());
-            return outBytes.toByteArray();
-        } catch (IOException ioe) {
-            throw new RuntimeException("unable to write bytes");
+    private static List<Path> walk(Path base, PathMatcher matcher) {
+        if (!Files.isDirectory(base)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.walk(base)) {
+            return files.filter(Files::isRegularFile)
+                    .map(p -> base.equals(Paths.get(".")) ? base.relativize(p) : p)
+                    .filter(matcher::matches)
+                    .sorted()
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new RuntimeException("unable to read directory " + base + ": " + e.getMessage());
         }
     }
 
-    private void writeConstPoolObj(ByteArrayOutputStream byteArrayOutputStream, Object obj) throws IOException {
-        if (obj instanceof GateAsmSymbol) {
-            GateAsmSymbol gateAsmSymbol = (GateAsmSymbol) obj;
-            byteArrayOutputStream.write(ConstPoolType.GATE);
+    private void reportErrors(CompileResult result) {
+        if (result.isSuccess()) {
+            return;
+        }
+        synchronized (System.err) {
+            for (String error : result.getErrors()) {
+                System.err.println(result.getSource() + ": error:" + error);
+            }
+        }
+    }
+
+    private void printSummary(List<CompileResult> results, long elapsedNanos) {
+        long failed = results.stream().filter(r -> !r.isSuccess()).count();
+        long bytesRead = results.stream().mapToLong(CompileResult::getBytesRead).sum();
+        long bytesWritten = results.stream().mapToLong(CompileResult::getBytesWritten).sum();
+        double seconds = Math.max(elapsedNanos, 1) / 1e9;
+        int parallelism = getParallelism();
+
+        System.out.printf("compiled %d files (%d failed) in %.3fs with %d jobs: %.1f files/s, %.1f KB/s read, %.1f KB/s written%n",
+                results.size(), failed, seconds, parallelism, results.size() / seconds,
+                bytesRead / seconds / 1024, bytesWritten / seconds / 1024);
+    }
+
+    private void printStats(List<CompileResult> results, boolean json) {
+        List<CompileStats> stats = results.stream().map(CompileResult::getStats).collect(Collectors.toList());
+        CompileStats total = CompileStats.sum("total", stats);
+        if (json) {
+            System.out.println(stats.stream().map(CompileStats::toJson)
+                    .collect(Collectors.joining(",", "{\"files\":[", "],\"total\":" + total.toJson() + "}")));
+            return;
+        }
+        for (CompileStats s : stats) {
+            s.printText(System.out);
+        }
+        if (stats.size() > 1) {
+            total.printText(System.out);
+        }
+    }
 
-            byte[] gateBytes = gateAsmSymbol.getBytes();
-            BytecodeUtils.writeInt(byteArrayOutputStream, gateBytes.length);
-            byteArrayOutputStream.write(gateBytes);
+    private void printEstimates(List<CompileResult> results, boolean json) {
+        List<CompileResult> estimated = results.stream().filter(r -> r.getEstimate() != null)
+                .collect(Collectors.toList());
+        if (json) {
+            System.out.println(estimated.stream()
+                    .map(r -> r.getEstimate().toJson(String.valueOf(r.getSource())))
+                    .collect(Collectors.joining(",", "{\"files\":[", "]}")));
+            return;
+        }
+        for (CompileResult result : estimated) {
+            result.getEstimate().printText(System.out, String.valueOf(result.getSource()));
         }
     }
 
-    public String getOutFileName() {
-        String outFile = Paths.get(filename).getFileName().toString();
+    public static String getOutFileName(Path source) {
+        String outFile = source.getFileName().toString();
         outFile = outFile.split("\\.")[0];
         return outFile + OUTPUT_FILE_EXT;
     }
 
-    public String getFilename() {
-        return filename;
+    public List<String> getFilenames() {
+        return filenames;
     }
 
     public String getOutputDir() {
         return outputDir;
     }
 
+    /**
+     * @return number of files compiled at once, -j or all available processors
+     */
+    public int getParallelism() {
+        return jobs > 0 ? jobs : Runtime.getRuntime().availableProcessors();
+    }
+
     @Override
     public void run() {
-        boolean disassemble = false;
-        boolean debug = false;
-
+        if (filenames == null || filenames.isEmpty()) {
+            throw new CommandLine.ParameterException(spec.commandLine(), "Missing required parameter: '<filename>'");
+        }
         try {
-            compile();
+            long start = System.nanoTime();
+            List<CompileResult> results = compile();
+            // the JSON stats hold the totals of the summary, and JSON output is kept parseable
+            boolean json = statsFormat == StatsFormat.json || estimateFormat == StatsFormat.json;
+            if (results.size() > 1 && !json) {
+                printSummary(results, System.nanoTime() - start);
+            }
+            if (statsFormat != null) {
+                printStats(results, statsFormat == StatsFormat.json);
+            }
+            if (estimateFormat != null) {
+                printEstimates(results, estimateFormat == StatsFormat.json);
+            }
+            if (patternStats != null) {
+                patternStats.print(System.out, patternStatsCount);
+            }
+            if (cache != null) {
+                System.out.printf("cache: %d hits, %d misses, %d evicted%n", cache.getHits(), cache.getMisses(),
+                        cache.getEvicted());
+            }
+            if (results.stream().anyMatch(r -> !r.isSuccess())) {
+                System.exit(1);
+            }
         } catch (RuntimeException e) {
             System.err.println("error:" + e.getMessage());
             System.exit(1);
@@ -0,0 +1,202 @@
+package io.qudot.qudotc.qudir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The sectioned .qudotc container. The plain layout is split into sections that are stored one after the
+ * other behind a directory, each optionally deflated and checked with a CRC32C, so a reader can verify and
+ * inflate only the sections it needs:
+ * <pre>
+ * container {
+ *     b4 MAGIC
+ *     b4 VERSION
+ *     b4 sectionCount
+ *     sectionInfo[] directory
+ *     b[] sections
+ * }
+ *
+ * sectionInfo {
+ *     b1 type (1 header, 2 constant pool, 3 code)
+ *     b1 flags (1 if deflated)
+ *     b4 offset (from the start of the file)
+ *     b4 length (bytes stored)
+ *     b4 size (bytes once inflated)
+ *     b4 crc (CRC32C of the bytes stored)
+ * }
+ * </pre>
+ * The header section holds VERSION, numQubits, ensembleSize and the main gate of the plain layout, the
+ * constant pool section constPoolSize and the entries and the code section the code. Readers skip
+ * sections of types they do not know.
+ *
+ * @since 0.1.0
+ */
+public class QuDotContainer {
+    // "QDOC", never a valid VERSION of the plain layout
+    public static final int MAGIC = 0x51444F43;
+    public static final int VERSION = 1;
+
+    public static final byte HEADER = 1;
+    public static final byte CONST_POOL = 2;
+    public static final byte CODE = 3;
+
+    public static final byte DEFLATED = 1;
+
+    // MAGIC, VERSION and sectionCount
+    static final int PREFIX_SIZE = 12;
+    static final int SECTION_INFO_SIZE = 18;
+
+    /**
+     * A section as stored, the bytes are those after deflating
+     */
+    public static class Section {
+        private final byte type;
+        private final byte flags;
+        private final int size;
+        private final int crc;
+        private final ByteBuffer data;
+
+        Section(byte type, byte flags, int size, int crc, ByteBuffer data) {
+            this.type = type;
+            this.flags = flags;
+            this.size = size;
+            this.crc = crc;
+            this.data = data;
+        }
+
+        /**
+         * Store section bytes, deflated if asked for and smaller that way. The bytes are not copied when
+         * they are stored as they are.
+         * @param type section type
+         * @param bytes array holding the section
+         * @param offset position of the section in bytes
+         * @param length size of the section
+         * @param deflate true to try deflating the section
+         * @return the section to write
+         */
+        public static Section of(byte type, byte[] bytes, int offset, int length, boolean deflate) {
+            ByteBuffer data = ByteBuffer.wrap(bytes, offset, length).slice();
+            byte flags = 0;
+            if (deflate && length > 0) {
+                Deflater deflater = new Deflater();
+                deflater.setInput(bytes, offset, length);
+                deflater.finish();
+                byte[] out = new byte[length];
+                int n = 0;
+                while (!deflater.finished() && n < out.length) {
+                    n += deflater.deflate(out, n, out.length - n);
+                }
+                if (deflater.finished() && n < length) {
+                    data = ByteBuffer.wrap(out, 0, n).slice();
+                    flags = DEFLATED;
+                }
+                deflater.end();
+            }
+            return new Section(type, flags, length, getCrc(data), data);
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public boolean isDeflated() {
+            return (flags & DEFLATED) != 0;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * @return number of bytes stored
+         */
+        public int getLength() {
+            return data.remaining();
+        }
+
+        /**
+         * @return a read-only view of the bytes stored
+         */
+        public ByteBuffer getData() {
+            return data.asReadOnlyBuffer();
+        }
+
+        void writeInfo(ByteBuffer buffer, int offset) {
+            buffer.put(type);
+            buffer.put(flags);
+            buffer.putInt(offset);
+            buffer.putInt(getLength());
+            buffer.putInt(size);
+            buffer.putInt(crc);
+        }
+
+        /**
+         * Read a sectionInfo, the bytes of the section are a view of the file and are checked by load
+         * @param file the container
+         * @param offset position of the sectionInfo
+         * @return the section
+         * @throws IOException if the section does not lie within the file
+         */
+        static Section readInfo(ByteBuffer file, int offset) throws IOException {
+            byte type = file.get(offset);
+            byte flags = file.get(offset + 1);
+            int start = file.getInt(offset + 2);
+            int length = file.getInt(offset + 6);
+            int size = file.getInt(offset + 10);
+            if (start < 0 || length < 0 || size < 0 || start > file.capacity() - length
+                    || (flags & DEFLATED) == 0 && length != size) {
+                throw new IOException("invalid section " + type + " at " + offset);
+            }
+            ByteBuffer data = file.duplicate();
+            data.position(start);
+            data.limit(start + length);
+            return new Section(type, flags, size, file.getInt(offset + 14), data.slice());
+        }
+
+        /**
+         * Check the CRC and inflate the section if it is deflated
+         * @return the section bytes, a view of the file if they are stored as they are
+         * @throws IOException if the CRC does not match or the section does not inflate to its size
+         */
+        ByteBuffer load() throws IOException {
+            if (getCrc(data) != crc) {
+                throw new IOException("checksum mismatch in section " + type);
+            }
+            if (!isDeflated()) {
+                return data.asReadOnlyBuffer();
+            }
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(data.duplicate());
+                // one byte of room past the size to see a section that inflates to more
+                byte[] out = new byte[size + 1];
+                int n = 0;
+                while (n < out.length && !inflater.finished()) {
+                    int inflated = inflater.inflate(out, n, out.length - n);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    n += inflated;
+                }
+                if (n != size || !inflater.finished()) {
+                    throw new IOException("section " + type + " does not inflate to " + size + " bytes");
+                }
+                return ByteBuffer.wrap(out, 0, size).slice().asReadOnlyBuffer();
+            } catch (DataFormatException e) {
+                throw new IOException("section " + type + " is not deflated data");
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    private static int getCrc(ByteBuffer data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data.duplicate());
+        return (int) crc.getValue();
+    }
+}
@@ -1,13 +1,17 @@
 package io.qudot.qudotc.qudir;
 
+import io.qudot.qudotc.utils.BytecodeReader;
 import io.qudot.qudotc.utils.BytecodeUtils;
 import io.qudot.qudotc.utils.Bytecodes;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.stream.Collectors;
 
 /**
- * Disassembles QuDot Bytecode into instruction. Instruction are print to the console
+ * Disassembles QuDot Bytecode into instruction. Instruction are print to the console.
+ * Both bytecode versions are read, branch targets are shown as absolute addresses.
  *
  * @since 0.1.0
  */
@@ -15,11 +19,23 @@ public class QuDotDisassembler {
     private byte[] code;
     private int codeSize;
     private Object[] constPool;
+    private BytecodeReader reader;
 
     public QuDotDisassembler(byte[] code, int codeSize, Object[] constPool) {
+        this(code, codeSize, constPool, QuDotCompiler.VERSION);
+    }
+
+    /**
+     * @param code the code region
+     * @param codeSize number of bytes of code
+     * @param constPool the decoded constant pool
+     * @param version the bytecode version of the code, see QuDotFileReader.getVersion
+     */
+    public QuDotDisassembler(byte[] code, int codeSize, Object[] constPool, int version) {
         this.code = code;
         this.codeSize = codeSize;
         this.constPool = constPool;
+        this.reader = new BytecodeReader(code, version);
     }
 
     public void disassemble() {
@@ -33,20 +49,20 @@ public class QuDotDisassembler {
     }
 
     public int disassembleInstruction(int ip) {
-        int opcode = code[ip];
+        reader.setPosition(ip);
+        int opcode = reader.readOpcode();
         Bytecodes.Instruction instr = Bytecodes.instructions[opcode];
         String instrName = instr.getName();
-        System.out.printf("%04d:\t%-11s", ip, instrName);
-        ip++;
+        System.out.printf("%04d:\t%-12s", ip, instrName);
         if (instr.getN() == 0) {
             System.out.print("  ");
-            return ip;
+            return reader.getPosition();
         }
 
+        int[] opnds = reader.readOperands(instr);
         List<String> operands = new ArrayList<>();
         for (int i=0; i < instr.getN(); i++) {
-            int opnd = BytecodeUtils.getInt(code, ip);
-            ip += 4;
+            int opnd = opnds[i];
             switch ( instr.getType()[i] ) {
                 case Bytecodes.REG:
                     operands.add("r" + opnd);
@@ -55,23 +71,28 @@ public class QuDotDisassembler {
                     operands.add("q" + opnd);
                     break;
                 case Bytecodes.GATE :
+                case Bytecodes.POOL :
                     operands.add(showConstPoolOperand(opnd));
                     break;
                 case Bytecodes.INT :
+                case Bytecodes.ID :
                     operands.add(String.valueOf(opnd));
                     break;
                 case Bytecodes.ARRAY:
-                    // the previous int in an array gives us the size
-                    ip -= 4;
-                    int size = BytecodeUtils.getInt(code, ip);
-                    ip +=4;
-
-                    for (int j=0; j < size; j++) {
-                        opnd = BytecodeUtils.getInt(code, ip);
-                        operands.add(String.valueOf(opnd));
-                        ip += 4;
+                    // the elements follow the size, the operand before them
+                    for (int j = i; j < opnds.length; j++) {
+                        operands.add(String.valueOf(opnds[j]));
                     }
-
+                    break;
+                case Bytecodes.QUBITSET: {
+                    // shown as the set it encodes in place of the first word and word count operands
+                    operands.remove(operands.size() - 1);
+                    operands.remove(operands.size() - 1);
+                    operands.add(Arrays.stream(BytecodeUtils.getQubitSet(opnds[i - 2], opnds, i, opnds[i - 1]))
+                            .mapToObj(String::valueOf)
+                            .collect(Collectors.joining(", ", "{", "}")));
+                    break;
+                }
             }
         }
 
@@ -80,7 +101,7 @@ public class QuDotDisassembler {
             if ( i > 0 ) System.out.print(", ");
             System.out.print(s);
         }
-        return ip;
+        return reader.getPosition();
     }
 
     private String showConstPoolOperand(int poolIndex) {
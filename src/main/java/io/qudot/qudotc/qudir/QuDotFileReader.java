@@ -0,0 +1,361 @@
+package io.qudot.qudotc.qudir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a .qudotc file by memory mapping it. Opening a file validates the header and records where every
+ * constant pool entry and the code region start, nothing else is read. Constant pool entries are decoded
+ * the first time they are requested and the code region is handed out as a read-only view of the mapping,
+ * so checking a few gate addresses in a large binary never reads or copies the whole file.
+ * A sectioned container, see QuDotContainer, is read the same way: the header and constant pool sections
+ * are checked and inflated when the file is opened, the code section only when the code is first requested.
+ * Instances are not thread safe.
+ *
+ * @since 0.1.0
+ */
+public class QuDotFileReader {
+    // VERSION, numQubits, ensembleSize and constPoolSize
+    private static final int MIN_FILE_SIZE = 16;
+    // type byte and length of a constPoolInfo
+    private static final int CONST_POOL_INFO_SIZE = 5;
+
+    private final Path path;
+    // the header and constant pool, followed by the code in the plain layout
+    private final ByteBuffer buffer;
+    // the code section of a container or null for the plain layout
+    private final QuDotContainer.Section codeSection;
+    private ByteBuffer code;
+    private final int version;
+    private final int numQubits;
+    private final int ensembleSize;
+    // offset of the main gate constPoolInfo or -1 if the program has no main gate
+    private final int mainGateOffset;
+    // offset of the type byte of each constPoolInfo
+    private final int[] constPoolOffsets;
+    private final Object[] constPool;
+    private final int codeOffset;
+    private GateAsmSymbol mainGate;
+
+    private QuDotFileReader(Path path, MappedByteBuffer file) throws IOException {
+        this.path = path;
+        if (file.capacity() >= QuDotContainer.PREFIX_SIZE && file.getInt(0) == QuDotContainer.MAGIC) {
+            QuDotContainer.Section[] sections = readDirectory(file);
+            ByteBuffer header = load(sections[QuDotContainer.HEADER]);
+            ByteBuffer constPool = load(sections[QuDotContainer.CONST_POOL]);
+            buffer = ByteBuffer.allocate(header.remaining() + constPool.remaining());
+            buffer.put(header).put(constPool).clear();
+            codeSection = sections[QuDotContainer.CODE];
+        } else {
+            buffer = file;
+            codeSection = null;
+        }
+        if (buffer.capacity() < MIN_FILE_SIZE) {
+            throw invalid("file is too small to be a qudot file");
+        }
+
+        version = buffer.getInt(0);
+        if (version != QuDotCompiler.VERSION && version != QuDotCompiler.COMPACT_VERSION) {
+            throw invalid("unsupported version " + version);
+        }
+        numQubits = buffer.getInt(4);
+        ensembleSize = buffer.getInt(8);
+        if (numQubits < 0 || ensembleSize < 0) {
+            throw invalid("negative qubits or ensemble size");
+        }
+
+        // the main gate is optional, when present it starts with a GATE type byte where the
+        // most significant byte of constPoolSize would otherwise be
+        int offset = 12;
+        if (buffer.get(offset) == ConstPoolType.GATE) {
+            mainGateOffset = offset;
+            offset = skipConstPoolInfo(offset);
+        } else {
+            mainGateOffset = -1;
+        }
+
+        int constPoolSize = getInt(offset);
+        offset += 4;
+        if (constPoolSize < 0 || constPoolSize > (buffer.capacity() - offset) / CONST_POOL_INFO_SIZE) {
+            throw invalid("invalid constant pool size " + constPoolSize);
+        }
+        constPoolOffsets = new int[constPoolSize];
+        constPool = new Object[constPoolSize];
+        for (int i = 0; i < constPoolSize; i++) {
+            constPoolOffsets[i] = offset;
+            offset = skipConstPoolInfo(offset);
+        }
+        codeOffset = offset;
+        if (codeSection != null && codeOffset != buffer.capacity()) {
+            throw invalid("trailing bytes in the constant pool section");
+        }
+    }
+
+    // the header, constant pool and code sections by type, other types are skipped
+    private QuDotContainer.Section[] readDirectory(ByteBuffer file) throws IOException {
+        if (file.getInt(4) != QuDotContainer.VERSION) {
+            throw invalid("unsupported container version " + file.getInt(4));
+        }
+        int count = file.getInt(8);
+        if (count < 0 || count > (file.capacity() - QuDotContainer.PREFIX_SIZE) / QuDotContainer.SECTION_INFO_SIZE) {
+            throw invalid("invalid section count " + count);
+        }
+        QuDotContainer.Section[] sections = new QuDotContainer.Section[QuDotContainer.CODE + 1];
+        for (int i = 0; i < count; i++) {
+            int offset = QuDotContainer.PREFIX_SIZE + i * QuDotContainer.SECTION_INFO_SIZE;
+            QuDotContainer.Section section;
+            try {
+                section = QuDotContainer.Section.readInfo(file, offset);
+            } catch (IOException e) {
+                throw invalid(e.getMessage());
+            }
+            if (section.getType() >= QuDotContainer.HEADER && section.getType() <= QuDotContainer.CODE) {
+                if (sections[section.getType()] != null) {
+                    throw invalid("duplicate section " + section.getType());
+                }
+                sections[section.getType()] = section;
+            }
+        }
+        for (byte type = QuDotContainer.HEADER; type <= QuDotContainer.CODE; type++) {
+            if (sections[type] == null) {
+                throw invalid("missing section " + type);
+            }
+        }
+        return sections;
+    }
+
+    private ByteBuffer load(QuDotContainer.Section section) throws IOException {
+        try {
+            return section.load();
+        } catch (IOException e) {
+            throw invalid(e.getMessage());
+        }
+    }
+
+    /**
+     * Map a .qudotc file and validate its header
+     * @param path the .qudotc file
+     * @return a reader over the mapped file
+     * @throws IOException if the file cannot be mapped or is not a valid qudot file
+     */
+    public static QuDotFileReader open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(path + ": file is too large to be a qudot file");
+            }
+            return new QuDotFileReader(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @return the bytecode version of the code region, QuDotCompiler.VERSION or COMPACT_VERSION, a
+     * BytecodeReader of the same version reads it
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    public int getNumQubits() {
+        return numQubits;
+    }
+
+    public int getEnsembleSize() {
+        return ensembleSize;
+    }
+
+    /**
+     * @return the main gate or null if the program has none
+     */
+    public GateAsmSymbol getMainGate() {
+        if (mainGate == null && mainGateOffset >= 0) {
+            mainGate = (GateAsmSymbol) decode(mainGateOffset);
+        }
+        return mainGate;
+    }
+
+    public int getConstPoolSize() {
+        return constPool.length;
+    }
+
+    /**
+     * Get a constant pool entry, decoding it on first access. Entries of a type this reader does not
+     * know are returned as a read-only view of their info bytes.
+     * @param index constant pool index
+     * @return GateAsmSymbol for gate entries, IntArrayConstant for int tables, DoublePairConstant for
+     * double pairs, QubitMapConstant for qubit maps or ByteBuffer for unknown types
+     */
+    public Object getConstPoolEntry(int index) {
+        if (constPool[index] == null) {
+            constPool[index] = decode(constPoolOffsets[index]);
+        }
+        return constPool[index];
+    }
+
+    /**
+     * @return the qubit labels of a program the compiler renumbered the qubits of, null if the qubits
+     * have their source labels
+     */
+    public QubitMapConstant getQubitMap() {
+        for (int i = 0; i < constPoolOffsets.length; i++) {
+            if (buffer.get(constPoolOffsets[i]) == ConstPoolType.QUBIT_MAP) {
+                return (QubitMapConstant) getConstPoolEntry(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decode every constant pool entry, the form QuDotDisassembler expects
+     * @return the constant pool
+     */
+    public Object[] getConstPool() {
+        for (int i = 0; i < constPool.length; i++) {
+            getConstPoolEntry(i);
+        }
+        return constPool.clone();
+    }
+
+    /**
+     * Find a gate by name comparing the name bytes in place, only the matching entry is decoded
+     * @param name gate name
+     * @return the constant pool index of the gate or -1 if there is no such gate
+     */
+    public int findGate(String name) {
+        byte[] nameBytes = name.getBytes(Charset.forName(GateAsmSymbol.DEFAULT_CHARSET));
+        for (int i = 0; i < constPoolOffsets.length; i++) {
+            int offset = constPoolOffsets[i];
+            if (buffer.get(offset) == ConstPoolType.GATE && nameEquals(offset + CONST_POOL_INFO_SIZE, nameBytes)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return a read-only view of the code region, position 0 is code address 0
+     * @throws UncheckedIOException if the code section of a container is corrupt
+     */
+    public ByteBuffer getCode() {
+        if (codeSection == null) {
+            ByteBuffer code = buffer.asReadOnlyBuffer();
+            code.position(codeOffset);
+            return code.slice();
+        }
+        if (code == null) {
+            try {
+                code = load(codeSection);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return code.duplicate();
+    }
+
+    public int getCodeSize() {
+        return codeSection == null ? buffer.capacity() - codeOffset : codeSection.getSize();
+    }
+
+    /**
+     * @return true if the file is a sectioned container
+     */
+    public boolean isContainer() {
+        return codeSection != null;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    private Object decode(int offset) {
+        byte type = buffer.get(offset);
+        int length = buffer.getInt(offset + 1);
+        int infoOffset = offset + CONST_POOL_INFO_SIZE;
+        if (type == ConstPoolType.GATE) {
+            return GateAsmSymbol.fromBuffer(buffer, infoOffset);
+        }
+        if (type == ConstPoolType.INT_ARRAY) {
+            return IntArrayConstant.fromBuffer(buffer, infoOffset);
+        }
+        if (type == ConstPoolType.DOUBLE_PAIR) {
+            return DoublePairConstant.fromBuffer(buffer, infoOffset);
+        }
+        if (type == ConstPoolType.QUBIT_MAP) {
+            return QubitMapConstant.fromBuffer(buffer, infoOffset);
+        }
+        ByteBuffer info = buffer.asReadOnlyBuffer();
+        info.position(infoOffset);
+        info.limit(infoOffset + length);
+        return info.slice();
+    }
+
+    private boolean nameEquals(int offset, byte[] nameBytes) {
+        if (buffer.getInt(offset) != nameBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < nameBytes.length; i++) {
+            if (buffer.get(offset + 4 + i) != nameBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // validate a constPoolInfo and return the offset just past it
+    private int skipConstPoolInfo(int offset) throws IOException {
+        if (offset + CONST_POOL_INFO_SIZE > buffer.capacity()) {
+            throw invalid("truncated constant pool entry at " + offset);
+        }
+        int length = buffer.getInt(offset + 1);
+        if (length < 0 || length > buffer.capacity() - offset - CONST_POOL_INFO_SIZE) {
+            throw invalid("invalid constant pool entry length " + length + " at " + offset);
+        }
+        if (buffer.get(offset) == ConstPoolType.GATE) {
+            int nameLength = buffer.getInt(offset + CONST_POOL_INFO_SIZE);
+            if (nameLength < 0 || nameLength + 20 != length) {
+                throw invalid("invalid gate entry at " + offset);
+            }
+        } else if (buffer.get(offset) == ConstPoolType.INT_ARRAY) {
+            if (length < 4 || 4 + 4L * buffer.getInt(offset + CONST_POOL_INFO_SIZE) != length) {
+                throw invalid("invalid int array entry at " + offset);
+            }
+        } else if (buffer.get(offset) == ConstPoolType.DOUBLE_PAIR && length != 16) {
+            throw invalid("invalid double pair entry at " + offset);
+        } else if (buffer.get(offset) == ConstPoolType.QUBIT_MAP) {
+            if (length < 4 || 4 + 4L * buffer.getInt(offset + CONST_POOL_INFO_SIZE) != length
+                    || !isPermutation(offset + CONST_POOL_INFO_SIZE + 4, (length - 4) / 4)) {
+                throw invalid("invalid qubit map entry at " + offset);
+            }
+        }
+        return offset + CONST_POOL_INFO_SIZE + length;
+    }
+
+    // true if the n ints at offset hold each of 0 to n - 1 once
+    private boolean isPermutation(int offset, int n) {
+        boolean[] seen = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            int label = buffer.getInt(offset + 4 * i);
+            if (label < 0 || label >= n || seen[label]) {
+                return false;
+            }
+            seen[label] = true;
+        }
+        return true;
+    }
+
+    private int getInt(int offset) throws IOException {
+        if (offset + 4 > buffer.capacity()) {
+            throw invalid("truncated header");
+        }
+        return buffer.getInt(offset);
+    }
+
+    private IOException invalid(String message) {
+        return new IOException(path + ": invalid qudot file, " + message);
+    }
+}
@@ -0,0 +1,226 @@
+package io.qudot.qudotc.qudir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Writes a QuDotAssembler as a .qudotc file. The size of every section is worked out up front so the
+ * header and constant pool go into a single exactly sized direct buffer, and the code region is streamed
+ * from the assembler's code array through a small reusable direct buffer with gathering writes.
+ * No full copy of the file is ever held in memory.
+ * A sectioned container, see QuDotContainer, is written when asked for. Its sections are built before
+ * writing, deflated sections are held compressed and stored ones as views of the assembler's arrays.
+ *
+ * @since 0.1.0
+ */
+public class QuDotFileWriter {
+    // size of the direct buffer the code region is streamed through
+    private static final int CODE_CHUNK_SIZE = 256 * 1024;
+
+    private final QuDotAssembler assembler;
+    private final boolean container;
+    private final boolean deflate;
+    // the sections of a container, built on first use
+    private List<QuDotContainer.Section> sections;
+
+    public QuDotFileWriter(QuDotAssembler assembler) {
+        this(assembler, false, false);
+    }
+
+    /**
+     * @param assembler the assembled program
+     * @param container true to write a sectioned container
+     * @param deflate true to deflate the sections of a container that get smaller
+     */
+    public QuDotFileWriter(QuDotAssembler assembler, boolean container, boolean deflate) {
+        this.assembler = assembler;
+        this.container = container;
+        this.deflate = deflate;
+    }
+
+    /**
+     * @return size in bytes of the header, main gate and constant pool
+     */
+    public int getHeaderSize() {
+        return getMainHeaderSize() + getConstPoolSize();
+    }
+
+    // VERSION, numQubits, ensembleSize and the main gate
+    private int getMainHeaderSize() {
+        return 12 + getConstPoolObjSize(assembler.getMainGate());
+    }
+
+    // constPoolSize and the entries
+    private int getConstPoolSize() {
+        int size = 4;
+        for (ConstPoolEntry entry : assembler.getConstPool()) {
+            size += getConstPoolObjSize(entry);
+        }
+        return size;
+    }
+
+    /**
+     * @return size in bytes of the whole .qudotc file
+     */
+    public long getFileSize() {
+        if (!container) {
+            return (long) getHeaderSize() + assembler.getCodeSize();
+        }
+        long size = getDirectorySize();
+        for (QuDotContainer.Section section : getSections()) {
+            size += section.getLength();
+        }
+        return size;
+    }
+
+    /**
+     * Write the .qudotc file to path, replacing any existing file
+     * @param path file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void write(Path path) throws IOException {
+        if (container) {
+            writeContainer(path);
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocateDirect(getHeaderSize());
+        writeHeader(header);
+        header.flip();
+
+        byte[] code = assembler.getBytecode();
+        int codeSize = assembler.getCodeSize();
+        ByteBuffer chunk = ByteBuffer.allocateDirect(Math.min(CODE_CHUNK_SIZE, codeSize));
+        ByteBuffer[] buffers = new ByteBuffer[] {header, chunk};
+
+        try (FileChannel channel = openNew(path)) {
+            int offset = 0;
+            do {
+                int length = Math.min(chunk.capacity(), codeSize - offset);
+                chunk.clear();
+                chunk.put(code, offset, length);
+                chunk.flip();
+                offset += length;
+
+                while (header.hasRemaining() || chunk.hasRemaining()) {
+                    channel.write(buffers);
+                }
+            } while (offset < codeSize);
+        }
+    }
+
+    /**
+     * Write the whole .qudotc file at the buffer's position
+     * @param buffer big endian buffer with at least getFileSize bytes remaining
+     */
+    public void write(ByteBuffer buffer) {
+        if (container) {
+            buffer.put(getDirectory());
+            for (QuDotContainer.Section section : getSections()) {
+                buffer.put(section.getData());
+            }
+            return;
+        }
+        writeHeader(buffer);
+        buffer.put(assembler.getBytecode(), 0, assembler.getCodeSize());
+    }
+
+    private void writeContainer(Path path) throws IOException {
+        List<QuDotContainer.Section> sections = getSections();
+        ByteBuffer[] buffers = new ByteBuffer[1 + sections.size()];
+        buffers[0] = getDirectory();
+        for (int i = 0; i < sections.size(); i++) {
+            buffers[i + 1] = sections.get(i).getData();
+        }
+        try (FileChannel channel = openNew(path)) {
+            long remaining = getFileSize();
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+        }
+    }
+
+    // an existing file is unlinked rather than truncated, it may be a hard link into a CompileCache
+    private static FileChannel openNew(Path path) throws IOException {
+        Files.deleteIfExists(path);
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private List<QuDotContainer.Section> getSections() {
+        if (sections == null) {
+            ByteBuffer header = ByteBuffer.allocate(getMainHeaderSize());
+            writeMainHeader(header);
+            ByteBuffer constPool = ByteBuffer.allocate(getConstPoolSize());
+            writeConstPool(constPool);
+            sections = List.of(
+                    QuDotContainer.Section.of(QuDotContainer.HEADER, header.array(), 0, header.capacity(), deflate),
+                    QuDotContainer.Section.of(QuDotContainer.CONST_POOL, constPool.array(), 0,
+                            constPool.capacity(), deflate),
+                    QuDotContainer.Section.of(QuDotContainer.CODE, assembler.getBytecode(), 0,
+                            assembler.getCodeSize(), deflate));
+        }
+        return sections;
+    }
+
+    private int getDirectorySize() {
+        return QuDotContainer.PREFIX_SIZE + QuDotContainer.SECTION_INFO_SIZE * getSections().size();
+    }
+
+    // MAGIC, VERSION, the section count and the directory, ready to write
+    private ByteBuffer getDirectory() {
+        ByteBuffer directory = ByteBuffer.allocate(getDirectorySize());
+        directory.putInt(QuDotContainer.MAGIC);
+        directory.putInt(QuDotContainer.VERSION);
+        directory.putInt(getSections().size());
+        int offset = directory.capacity();
+        for (QuDotContainer.Section section : getSections()) {
+            section.writeInfo(directory, offset);
+            offset += section.getLength();
+        }
+        directory.flip();
+        return directory;
+    }
+
+    private void writeHeader(ByteBuffer buffer) {
+        writeMainHeader(buffer);
+        writeConstPool(buffer);
+    }
+
+    private void writeMainHeader(ByteBuffer buffer) {
+        buffer.putInt(assembler.getVersion());
+        buffer.putInt(assembler.getNumQubits());
+        buffer.putInt(assembler.getEnsembleSize());
+
+        writeConstPoolObj(buffer, assembler.getMainGate());
+    }
+
+    private void writeConstPool(ByteBuffer buffer) {
+        List<ConstPoolEntry> constPool = assembler.getConstPool();
+        buffer.putInt(constPool.size());
+        for (ConstPoolEntry entry : constPool) {
+            writeConstPoolObj(buffer, entry);
+        }
+    }
+
+    // the main gate is optional
+    private int getConstPoolObjSize(ConstPoolEntry entry) {
+        if (entry == null) {
+            return 0;
+        }
+        // type byte and length followed by the info
+        return 5 + entry.getByteSize();
+    }
+
+    private void writeConstPoolObj(ByteBuffer buffer, ConstPoolEntry entry) {
+        if (entry != null) {
+            buffer.put(entry.getType());
+            buffer.putInt(entry.getByteSize());
+            entry.writeTo(buffer);
+        }
+    }
+}
@@ -0,0 +1,682 @@
+package io.qudot.qudotc.qudir;
+
+import io.qudot.qudotc.utils.Bytecodes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Hand written scanner and recursive descent assembler for the QuDotAsm language. It reads the source bytes
+ * directly, parses integers and register numbers in place and finds opcodes with a perfect hash over the
+ * instruction names, so no token objects or strings are created per instruction. Label and gate names are
+ * interned the first time they are seen. Bytecode is generated through the same QuDotAssembler methods the
+ * ANTLR path uses, so the output is byte for byte identical.
+ * The scanner only accepts well-formed programs. On anything else, a syntax error, an unknown instruction,
+ * operands other than the instruction takes or a token it does not handle, it gives up and the caller
+ * assembles the file with the ANTLR path, which produces the diagnostics.
+ *
+ * @since 0.1.0
+ */
+public class QuDotScanner {
+    // token kinds
+    private static final int EOF = 0;
+    private static final int NEWLINE = 1;
+    private static final int COMMA = 2;
+    private static final int COLON = 3;
+    private static final int EQUALS = 4;
+    private static final int ID = 5;
+    private static final int REG = 6;
+    private static final int QUREG = 7;
+    private static final int GATE = 8;
+    private static final int INT = 9;
+    private static final int DOT_QUDOT = 10;
+    private static final int DOT_GATE = 11;
+    private static final int QUBITS = 12;
+    private static final int ENSEMBLE = 13;
+    private static final int ARGS = 14;
+    private static final int REGS = 15;
+    private static final int QUBIT_REGS = 16;
+    private static final int QLOAD_ARRAY = 17;
+    private static final int QLOAD_MASK = 18;
+    private static final int LBRACE = 19;
+    private static final int RBRACE = 20;
+
+    // keywords of the grammar, indexed by token kind - QUBITS
+    private static final byte[][] KEYWORDS = {
+            ascii("qubits"), ascii("ensemble"), ascii("args"), ascii("regs"), ascii("qubit_regs"), ascii("qload_array"),
+            ascii("qload_mask")
+    };
+    private static final byte[] KEYWORD_DOT_QUDOT = ascii(".qudot");
+    private static final byte[] KEYWORD_DOT_GATE = ascii(".gate");
+
+    /**
+     * Thrown to abandon the fast path, allocated once and without a stack trace
+     */
+    private static final class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+    private static final Unsupported UNSUPPORTED = new Unsupported();
+
+    // built for the default instruction set when the class is initialized, at image build time in a native image
+    private static volatile OpcodeTable opcodeTable = new OpcodeTable(Bytecodes.instructions);
+
+    private final ByteBuffer source;
+    private final int limit;
+    private final QuDotAssembler assembler;
+    private final OpcodeTable opcodes;
+    private final NameTable names = new NameTable();
+    private int pos;
+    private int line = 1;
+
+    // current token
+    private int kind;
+    private int start;
+    private int end;
+    private int value;
+    private int tokenLine;
+
+    private QuDotScanner(ByteBuffer source, Bytecodes.Instruction[] instructions) {
+        this.source = source;
+        this.pos = source.position();
+        this.limit = source.limit();
+        this.assembler = new QuDotAssembler(instructions);
+        this.opcodes = getOpcodeTable(instructions);
+    }
+
+    /**
+     * Map a .qudot file and assemble it
+     * @param path the .qudot file
+     * @param instructions the instruction set
+     * @return the assembled program or null if the ANTLR path has to assemble this file
+     * @throws IOException if the file cannot be read
+     */
+    public static QuDotAssembler assemble(Path path, Bytecodes.Instruction[] instructions) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            return assemble(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), instructions);
+        }
+    }
+
+    /**
+     * Assemble the source between the buffer's position and limit
+     * @param source US-ASCII or UTF-8 source text
+     * @param instructions the instruction set
+     * @return the assembled program or null if the ANTLR path has to assemble this source
+     */
+    public static QuDotAssembler assemble(ByteBuffer source, Bytecodes.Instruction[] instructions) {
+        try {
+            QuDotScanner scanner = new QuDotScanner(source, instructions);
+            scanner.program();
+            return scanner.assembler;
+        } catch (Unsupported e) {
+            return null;
+        }
+    }
+
+    private static OpcodeTable getOpcodeTable(Bytecodes.Instruction[] instructions) {
+        OpcodeTable table = opcodeTable;
+        if (table == null || table.instructions != instructions) {
+            table = new OpcodeTable(instructions);
+            opcodeTable = table;
+        }
+        return table;
+    }
+
+    // program: qudot? ( gateDeclaration | instr | label | NEWLINE )+
+    private void program() {
+        int items = 0;
+        next();
+        while (kind == NEWLINE) {
+            items++;
+            next();
+        }
+        if (kind == DOT_QUDOT) {
+            items = 0;
+            qudot();
+        }
+
+        while (kind != EOF) {
+            switch (kind) {
+                case NEWLINE:
+                    next();
+                    break;
+                case DOT_GATE:
+                    gateDeclaration();
+                    break;
+                case QLOAD_ARRAY:
+                    arrayInstr();
+                    break;
+                case QLOAD_MASK:
+                    maskInstr();
+                    break;
+                case ID: {
+                    int idStart = start;
+                    int idEnd = end;
+                    int idLine = tokenLine;
+                    next();
+                    if (kind == COLON) {
+                        assembler.defineLabel(names.get(source, idStart, idEnd), idLine);
+                        next();
+                    } else {
+                        instr(idStart, idEnd);
+                    }
+                    break;
+                }
+                default:
+                    throw UNSUPPORTED;
+            }
+            items++;
+        }
+
+        if (items == 0) {
+            throw UNSUPPORTED;
+        }
+        assembler.checkForUnresolvedReferences();
+    }
+
+    // qudot : NEWLINE* '.qudot' 'qubits' '=' q=INT ',' 'ensemble' '=' e=INT NEWLINE
+    private void qudot() {
+        match(DOT_QUDOT);
+        match(QUBITS);
+        match(EQUALS);
+        int q = matchInt();
+        match(COMMA);
+        match(ENSEMBLE);
+        match(EQUALS);
+        int e = matchInt();
+        match(NEWLINE);
+        assembler.defineHeader(q, e);
+    }
+
+    // '.gate' name=ID ':' 'args' '=' a=INT ',' 'regs' '=' rn=INT ',' 'qubit_regs' '=' qn=INT NEWLINE
+    private void gateDeclaration() {
+        match(DOT_GATE);
+        expect(ID);
+        String name = names.get(source, start, end);
+        next();
+        match(COLON);
+        match(ARGS);
+        match(EQUALS);
+        int args = matchInt();
+        match(COMMA);
+        match(REGS);
+        match(EQUALS);
+        int regs = matchInt();
+        match(COMMA);
+        match(QUBIT_REGS);
+        match(EQUALS);
+        int qubitRegs = matchInt();
+        match(NEWLINE);
+        assembler.declareGate(name, args, regs, qubitRegs);
+    }
+
+    // op=ID (operand (',' operand)*)? NEWLINE with at most five operands, as many as the instruction takes
+    private void instr(int opStart, int opEnd) {
+        int opCode = opcodes.lookup(source, opStart, opEnd);
+        if (opCode < 0) {
+            throw UNSUPPORTED;
+        }
+        int operands = opcodes.instructions[opCode].getN();
+        assembler.genOpcode(opCode);
+        int n = 0;
+        while (kind != NEWLINE) {
+            if (n > 0) {
+                match(COMMA);
+            }
+            if (n == operands) {
+                throw UNSUPPORTED;
+            }
+            operand();
+            n++;
+        }
+        if (n != operands) {
+            throw UNSUPPORTED;
+        }
+        next();
+    }
+
+    // 'qload_array' a=operand ',' b=operand ',' (INT (',' INT)*) NEWLINE
+    private void arrayInstr() {
+        if (opcodes.lookup(source, start, end) < 0) {
+            throw UNSUPPORTED;
+        }
+        next();
+        expect(QUREG);
+        int qureg = value;
+        next();
+        match(COMMA);
+        int count = matchInt();
+        match(COMMA);
+        int[] elems = ints();
+        match(NEWLINE);
+        if (elems.length != count) {
+            throw UNSUPPORTED;
+        }
+        assembler.genQubitLoad(qureg, elems, false);
+    }
+
+    // 'qload_mask' a=operand ',' '{' INT (',' INT)* '}' NEWLINE
+    private void maskInstr() {
+        next();
+        expect(QUREG);
+        int qureg = value;
+        next();
+        match(COMMA);
+        match(LBRACE);
+        int[] elems = ints();
+        match(RBRACE);
+        match(NEWLINE);
+        for (int elem : elems) {
+            if (elem < 0) {
+                throw UNSUPPORTED;
+            }
+        }
+        assembler.genQubitLoad(qureg, elems, true);
+    }
+
+    // INT (',' INT)*
+    private int[] ints() {
+        int[] elems = new int[8];
+        int n = 0;
+        do {
+            if (n > 0) {
+                next();
+            }
+            if (n == elems.length) {
+                elems = Arrays.copyOf(elems, n * 2);
+            }
+            elems[n++] = matchInt();
+        } while (kind == COMMA);
+        return Arrays.copyOf(elems, n);
+    }
+
+    private void operand() {
+        switch (kind) {
+            case INT:
+            case REG:
+            case QUREG:
+                assembler.genOperand(value);
+                break;
+            case ID:
+                assembler.genOperand(assembler.getLabelAddress(names.get(source, start, end)));
+                break;
+            case GATE:
+                // drop the trailing ()
+                assembler.genOperand(assembler.getGateIndex(names.get(source, start, end - 2)));
+                break;
+            default:
+                throw UNSUPPORTED;
+        }
+        next();
+    }
+
+    private void expect(int expected) {
+        if (kind != expected) {
+            throw UNSUPPORTED;
+        }
+    }
+
+    private void match(int expected) {
+        expect(expected);
+        next();
+    }
+
+    private int matchInt() {
+        expect(INT);
+        int v = value;
+        next();
+        return v;
+    }
+
+    /**
+     * Scan the next token following the lexer rules of QuDotAsm.g4
+     */
+    private void next() {
+        skipWhitespaceAndComments();
+        tokenLine = line;
+        start = pos;
+        if (pos >= limit) {
+            kind = EOF;
+            end = pos;
+            return;
+        }
+
+        int c = source.get(pos);
+        switch (c) {
+            case '\n':
+                pos++;
+                line++;
+                kind = NEWLINE;
+                break;
+            case '\r':
+                if (pos + 1 >= limit || source.get(pos + 1) != '\n') {
+                    throw UNSUPPORTED;
+                }
+                pos += 2;
+                line++;
+                kind = NEWLINE;
+                break;
+            case ',':
+                pos++;
+                kind = COMMA;
+                break;
+            case ':':
+                pos++;
+                kind = COLON;
+                break;
+            case '=':
+                pos++;
+                kind = EQUALS;
+                break;
+            case '{':
+                pos++;
+                kind = LBRACE;
+                break;
+            case '}':
+                pos++;
+                kind = RBRACE;
+                break;
+            case '.':
+                if (matchesAt(pos, KEYWORD_DOT_QUDOT)) {
+                    pos += KEYWORD_DOT_QUDOT.length;
+                    kind = DOT_QUDOT;
+                } else if (matchesAt(pos, KEYWORD_DOT_GATE)) {
+                    pos += KEYWORD_DOT_GATE.length;
+                    kind = DOT_GATE;
+                } else {
+                    throw UNSUPPORTED;
+                }
+                break;
+            default:
+                if (c == '-' || isDigit(c)) {
+                    value = scanInt(pos);
+                    kind = INT;
+                } else if (isLetter(c)) {
+                    scanWord();
+                } else {
+                    throw UNSUPPORTED;
+                }
+        }
+        end = pos;
+    }
+
+    private void skipWhitespaceAndComments() {
+        while (pos < limit) {
+            int c = source.get(pos);
+            if (c == ' ' || c == '\t') {
+                pos++;
+            } else if (c == '/' && pos + 1 < limit && source.get(pos + 1) == '/') {
+                // LINE_COMMENT, the newline is still a token
+                while (pos < limit && source.get(pos) != '\n' && source.get(pos) != '\r') {
+                    pos++;
+                }
+            } else {
+                return;
+            }
+        }
+    }
+
+    // ID, GATE, REG, QUREG or a keyword
+    private void scanWord() {
+        int wordStart = pos;
+        while (pos < limit && isWordChar(source.get(pos))) {
+            pos++;
+        }
+        int length = pos - wordStart;
+
+        if (pos + 1 < limit && source.get(pos) == '(' && source.get(pos + 1) == ')') {
+            pos += 2;
+            kind = GATE;
+            return;
+        }
+
+        for (int k = 0; k < KEYWORDS.length; k++) {
+            if (KEYWORDS[k].length == length && matchesAt(wordStart, KEYWORDS[k])) {
+                kind = QUBITS + k;
+                return;
+            }
+        }
+
+        int first = source.get(wordStart);
+        if (first == 'r' || first == 'q') {
+            if (length == 1 && pos < limit && source.get(pos) == '-') {
+                // negative register numbers are left to the ANTLR path
+                throw UNSUPPORTED;
+            }
+            if (length > 1 && allDigits(wordStart + 1, pos)) {
+                int endOfWord = pos;
+                value = scanInt(wordStart + 1);
+                if (pos != endOfWord) {
+                    throw UNSUPPORTED;
+                }
+                kind = first == 'r' ? REG : QUREG;
+                return;
+            }
+        }
+        kind = ID;
+    }
+
+    // parse '-'? [0-9]+ at index in place, leaving pos after it
+    private int scanInt(int index) {
+        pos = index;
+        boolean negative = false;
+        if (source.get(pos) == '-') {
+            negative = true;
+            pos++;
+        }
+        long v = 0;
+        int digits = 0;
+        while (pos < limit && isDigit(source.get(pos))) {
+            v = v * 10 + (source.get(pos) - '0');
+            pos++;
+            if (++digits > 10) {
+                throw UNSUPPORTED;
+            }
+        }
+        if (digits == 0) {
+            throw UNSUPPORTED;
+        }
+        v = negative ? -v : v;
+        if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) {
+            throw UNSUPPORTED;
+        }
+        return (int) v;
+    }
+
+    private boolean allDigits(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (!isDigit(source.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matchesAt(int index, byte[] text) {
+        if (index + text.length > limit) {
+            return false;
+        }
+        for (int i = 0; i < text.length; i++) {
+            if (source.get(index + i) != text[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetter(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+    }
+
+    private static boolean isWordChar(int c) {
+        return isLetter(c) || isDigit(c);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static int hash(ByteBuffer buffer, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + buffer.get(i);
+        }
+        return h;
+    }
+
+    /**
+     * Perfect hash from instruction name to opcode. The table size and multiplier are searched for
+     * once per instruction set so every name has a slot of its own and a lookup is one hash, one
+     * multiply and one name comparison.
+     */
+    private static final class OpcodeTable {
+        // spreads the small hashes of one letter names over the high bits
+        private static final int GOLDEN_RATIO = 0x9E3779B9;
+        private static final int ATTEMPTS_PER_SIZE = 1 << 16;
+
+        private final Bytecodes.Instruction[] instructions;
+        private final byte[][] names;
+        private final int[] opcodes;
+        private final int multiplier;
+        private final int shift;
+
+        OpcodeTable(Bytecodes.Instruction[] instructions) {
+            this.instructions = instructions;
+            byte[][] instructionNames = new byte[instructions.length][];
+            int[] hashes = new int[instructions.length];
+            for (int i = 0; i < instructions.length; i++) {
+                instructionNames[i] = ascii(instructions[i].getName().toLowerCase());
+                hashes[i] = hash(ByteBuffer.wrap(instructionNames[i]), 0, instructionNames[i].length);
+            }
+
+            // start with about four slots per name, collisions are rare enough to find a multiplier quickly
+            int bits = 34 - Integer.numberOfLeadingZeros(Math.max(instructions.length, 2) - 1);
+            int m = 0;
+            for (int attempt = 1; ; attempt++) {
+                if (attempt == ATTEMPTS_PER_SIZE) {
+                    bits++;
+                    attempt = 1;
+                }
+                m = (attempt * GOLDEN_RATIO) | 1;
+                if (isPerfect(hashes, bits, m)) {
+                    break;
+                }
+            }
+
+            multiplier = m;
+            shift = 32 - bits;
+            names = new byte[1 << bits][];
+            opcodes = new int[1 << bits];
+            for (int i = 0; i < hashes.length; i++) {
+                int slot = (hashes[i] * multiplier) >>> shift;
+                names[slot] = instructionNames[i];
+                opcodes[slot] = i;
+            }
+        }
+
+        private static boolean isPerfect(int[] hashes, int bits, int m) {
+            boolean[] used = new boolean[1 << bits];
+            for (int h : hashes) {
+                int slot = (h * m) >>> (32 - bits);
+                if (used[slot]) {
+                    return false;
+                }
+                used[slot] = true;
+            }
+            return true;
+        }
+
+        int lookup(ByteBuffer buffer, int start, int end) {
+            int slot = (hash(buffer, start, end) * multiplier) >>> shift;
+            byte[] name = names[slot];
+            if (name == null || name.length != end - start) {
+                return -1;
+            }
+            for (int i = 0; i < name.length; i++) {
+                if (buffer.get(start + i) != name[i]) {
+                    return -1;
+                }
+            }
+            return opcodes[slot];
+        }
+    }
+
+    /**
+     * Interns label and gate names so a name only becomes a String the first time it is seen
+     */
+    private static final class NameTable {
+        private String[] strings = new String[64];
+        private int[] hashes = new int[64];
+        private int size;
+
+        String get(ByteBuffer buffer, int start, int end) {
+            // for ASCII this is String.hashCode
+            int h = hash(buffer, start, end);
+            int mask = strings.length - 1;
+            int slot = h & mask;
+            while (strings[slot] != null) {
+                if (hashes[slot] == h && equals(strings[slot], buffer, start, end)) {
+                    return strings[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            byte[] bytes = new byte[end - start];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(start + i);
+            }
+            String s = new String(bytes, StandardCharsets.US_ASCII);
+            strings[slot] = s;
+            hashes[slot] = h;
+            if (++size * 2 > strings.length) {
+                grow();
+            }
+            return s;
+        }
+
+        private static boolean equals(String s, ByteBuffer buffer, int start, int end) {
+            if (s.length() != end - start) {
+                return false;
+            }
+            for (int i = 0; i < s.length(); i++) {
+                if (s.charAt(i) != buffer.get(start + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void grow() {
+            String[] oldStrings = strings;
+            int[] oldHashes = hashes;
+            strings = new String[oldStrings.length * 2];
+            hashes = new int[oldStrings.length * 2];
+            int mask = strings.length - 1;
+            for (int i = 0; i < oldStrings.length; i++) {
+                if (oldStrings[i] != null) {
+                    int slot = oldHashes[i] & mask;
+                    while (strings[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    strings[slot] = oldStrings[i];
+                    hashes[slot] = oldHashes[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package io.qudot.qudotc.qudir;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import picocli.CommandLine;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the compiler resident and compiles sources posted to a local HTTP server, so repeated compiles skip
+ * the start of the JVM and find the ANTLR prediction caches and the JIT already warm. A request is
+ * <pre>
+ * POST /compile?name=bell.qudot[&amp;out=bell.qudotc]
+ * </pre>
+ * with the source as the body. The response holds the .qudotc file qudotc would write with the options given
+ * before serve, or with out the file is written under the output directory instead, out must be a relative path
+ * staying in it. A source with errors gets 400 and the errors. Only requests naming the loopback address as
+ * their Host and without an Origin are served, others get 403 so web pages cannot reach the server. At most -j
+ * sources are compiled at once and at most --max-queue more wait for their turn, further requests get 503
+ * straight away. The time each request waited and compiled is returned in the
+ * X-Queue-Time and X-Compile-Time headers, in milliseconds, and printed.
+ *
+ * @since 0.1.0
+ */
+@CommandLine.Command(name = "serve", description = "$ qudotc [options] serve [--port port] [--max-queue n]")
+public class QuDotServer implements Runnable {
+    public static final String COMPILE_PATH = "/compile";
+    public static final int DEFAULT_PORT = 7700;
+    public static final int DEFAULT_MAX_QUEUE = 64;
+    public static final int DEFAULT_MAX_SOURCE_SIZE = 16 * 1024 * 1024;
+    // times the warm up corpus is compiled at start up
+    private static final int WARM_UP_ROUNDS = 20;
+    private static final Pattern LOCAL_HOST = Pattern.compile("(127\\.0\\.0\\.1|localhost|\\[::1])(:\\d+)?",
+            Pattern.CASE_INSENSITIVE);
+
+    @CommandLine.ParentCommand
+    private QuDotCompiler compiler;
+    @CommandLine.Option(names = {"-p", "--port"}, defaultValue = "" + DEFAULT_PORT,
+            description = "port listened on at 127.0.0.1, default ${DEFAULT-VALUE}")
+    private int port;
+    @CommandLine.Option(names = {"--max-queue"}, paramLabel = "<requests>", defaultValue = "" + DEFAULT_MAX_QUEUE,
+            description = "requests waiting for a compile before new ones get 503, default ${DEFAULT-VALUE}")
+    private int maxQueue;
+    @CommandLine.Option(names = {"--max-source-size"}, paramLabel = "<bytes>",
+            defaultValue = "" + DEFAULT_MAX_SOURCE_SIZE,
+            description = "largest source accepted, default ${DEFAULT-VALUE}")
+    private int maxSourceSize;
+
+    // compiling or waiting to compile
+    private Semaphore admitted;
+    private Semaphore compiling;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Compile one request
+     * @param exchange the request
+     * @throws IOException if the response cannot be sent
+     */
+    void handle(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        requests.incrementAndGet();
+        try {
+            if (!isLocal(exchange)) {
+                send(exchange, 403, "only local requests without an Origin are served\n");
+                log(exchange, "-", 403, 0, 0, 0);
+                return;
+            }
+            if (!COMPILE_PATH.equals(exchange.getRequestURI().getPath())) {
+                send(exchange, 404, "not found: " + exchange.getRequestURI().getPath() + "\n");
+                return;
+            }
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                send(exchange, 405, "use POST\n");
+                return;
+            }
+            if (!admitted.tryAcquire()) {
+                rejected.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                send(exchange, 503, "busy\n");
+                log(exchange, "-", 503, 0, 0, 0);
+                return;
+            }
+            try {
+                compile(exchange, start);
+            } finally {
+                admitted.release();
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // a web page can post to the loopback address, directly or through a name of its own it rebinds to it, but
+    // its browser then sends an Origin or a Host other than the loopback address
+    private static boolean isLocal(HttpExchange exchange) {
+        String host = exchange.getRequestHeaders().getFirst("Host");
+        return host != null && LOCAL_HOST.matcher(host).matches()
+                && !exchange.getRequestHeaders().containsKey("Origin");
+    }
+
+    /**
+     * @return the path out names under the output directory, null if it is absolute or leaves the directory
+     */
+    private Path getOutPath(String out) {
+        Path path;
+        try {
+            path = Paths.get(out);
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        if (out.isEmpty() || path.getRoot() != null) {
+            return null;
+        }
+        for (Path element : path) {
+            if ("..".equals(element.toString())) {
+                return null;
+            }
+        }
+        Path outputDir = Paths.get(compiler.getOutputDir());
+        Path resolved = outputDir.resolve(path).normalize();
+        Path base = outputDir.toAbsolutePath().normalize();
+        Path absolute = resolved.toAbsolutePath().normalize();
+        return absolute.startsWith(base) && !absolute.equals(base) ? resolved : null;
+    }
+
+    private void compile(HttpExchange exchange, long start) throws IOException {
+        Map<String, String> query = getQuery(exchange.getRequestURI().getRawQuery());
+        String name = query.getOrDefault("name", "stdin" + QuDotCompiler.INPUT_FILE_EXT);
+        String out = query.get("out");
+        Path outPath = out != null ? getOutPath(out) : null;
+        if (out != null && outPath == null) {
+            send(exchange, 400, "out must be a relative path within the output directory: " + out + "\n");
+            log(exchange, name, 400, 0, 0, 0);
+            return;
+        }
+        byte[] source;
+        try (InputStream in = exchange.getRequestBody()) {
+            source = in.readNBytes(maxSourceSize + 1);
+        }
+        if (source.length > maxSourceSize) {
+            send(exchange, 413, "source larger than " + maxSourceSize + " bytes\n");
+            log(exchange, name, 413, 0, 0, 0);
+            return;
+        }
+
+        long queued;
+        long compiled;
+        QuDotCompiler.CompileResult result;
+        try {
+            compiling.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            send(exchange, 503, "shutting down\n");
+            return;
+        }
+        try {
+            queued = System.nanoTime();
+            result = compiler.compileToBytes(new ByteArrayInputStream(source), Paths.get(name).getFileName());
+            compiled = System.nanoTime();
+        } finally {
+            compiling.release();
+        }
+        exchange.getResponseHeaders().set("X-Queue-Time", formatMillis(queued - start));
+        exchange.getResponseHeaders().set("X-Compile-Time", formatMillis(compiled - queued));
+
+        if (!result.isSuccess()) {
+            StringBuilder errors = new StringBuilder();
+            for (String error : result.getErrors()) {
+                errors.append(name).append(": error:").append(error).append('\n');
+            }
+            send(exchange, 400, errors.toString());
+            log(exchange, name, 400, 0, queued - start, compiled - queued);
+            return;
+        }
+        if (outPath == null) {
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            send(exchange, 200, result.getBytes());
+        } else {
+            try {
+                // a previous output may be a hard link into a compile cache
+                Files.deleteIfExists(outPath);
+                Files.write(outPath, result.getBytes());
+            } catch (IOException e) {
+                send(exchange, 500, "unable to write " + outPath + ": " + e.getMessage() + "\n");
+                log(exchange, name, 500, 0, queued - start, compiled - queued);
+                return;
+            }
+            send(exchange, 200, "wrote " + result.getBytes().length + " bytes to " + outPath + "\n");
+        }
+        log(exchange, name, 200, result.getBytes().length, queued - start, compiled - queued);
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        send(exchange, status, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void log(HttpExchange exchange, String name, int status, int bytes, long queuedNanos,
+                            long compileNanos) {
+        System.out.printf("%s %s %d %d bytes, queued %sms, compiled %sms%n",
+                exchange.getRemoteAddress().getAddress().getHostAddress(), name, status, bytes,
+                formatMillis(queuedNanos), formatMillis(compileNanos));
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+
+    private static Map<String, String> getQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String param : rawQuery.split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0) {
+                query.put(URLDecoder.decode(param.substring(0, eq), StandardCharsets.UTF_8),
+                        URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return query;
+    }
+
+    // the ANTLR prediction caches are shared by every parser, compiling the README examples fills them and
+    // warms up the JIT for the passes as well, see ParserWarmUp
+    private void warmUp() {
+        List<byte[]> corpus = ParserWarmUp.getCorpus();
+        for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+            for (byte[] source : corpus) {
+                QuDotCompiler.CompileResult result = compiler.compileToBytes(new ByteArrayInputStream(source),
+                        Paths.get("warm-up" + QuDotCompiler.INPUT_FILE_EXT));
+                if (!result.isSuccess()) {
+                    throw new RuntimeException("warm up failed: " + result.getErrors());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            compiler.checkOptions();
+            if (maxQueue < 0 || maxSourceSize < 0) {
+                throw new RuntimeException("--max-queue and --max-source-size must not be negative");
+            }
+            int jobs = compiler.getParallelism();
+            compiling = new Semaphore(jobs, true);
+            admitted = new Semaphore(jobs + maxQueue);
+            long start = System.nanoTime();
+            warmUp();
+            long warm = System.nanoTime();
+
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                    0);
+            // requests over the admitted ones are answered with 503 at once, so the threads stay few
+            ExecutorService executor = Executors.newCachedThreadPool();
+            server.setExecutor(executor);
+            server.createContext("/", this::handle);
+            CountDownLatch stopped = new CountDownLatch(1);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.stop(1);
+                executor.shutdown();
+                System.out.printf("served %d requests (%d rejected)%n", requests.get(), rejected.get());
+                stopped.countDown();
+            }));
+            server.start();
+            System.out.printf("qudotc serving on http://%s:%d%s with %d jobs, warmed up in %sms%n",
+                    server.getAddress().getHostString(), server.getAddress().getPort(), COMPILE_PATH, jobs,
+                    formatMillis(warm - start));
+            stopped.await();
+        } catch (IOException e) {
+            System.err.println("error:unable to listen on port " + port + ": " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            System.err.println("error:" + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package io.qudot.qudotc.qudir;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The qubit labels of a program whose qubits were renumbered by the compiler: entry q is the label qubit q
+ * had in the source. A VM maps the qubits of measurements and paths back through it, so output reads as
+ * if the program had not been renumbered. A program has at most one such entry and no instruction refers
+ * to it.
+ *
+ * @since 0.1.0
+ */
+public class QubitMapConstant implements ConstPoolEntry {
+    private final int[] labels;
+
+    public QubitMapConstant(int[] labels) {
+        this.labels = labels.clone();
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(labels);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof QubitMapConstant && Arrays.equals(labels, ((QubitMapConstant) o).labels);
+    }
+
+    @Override
+    public String toString() {
+        return "QubitMap" + Arrays.toString(labels);
+    }
+
+    @Override
+    public byte getType() {
+        return ConstPoolType.QUBIT_MAP;
+    }
+
+    /**
+     * The serialization is the number of qubits mapped followed by their labels, 4 bytes each
+     */
+    @Override
+    public int getByteSize() {
+        return 4 + 4 * labels.length;
+    }
+
+    @Override
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putInt(labels.length);
+        for (int label : labels) {
+            buffer.putInt(label);
+        }
+    }
+
+    /**
+     * Deserialize a QubitMapConstant directly from a buffer
+     * @param buffer big endian buffer holding a serialized QubitMapConstant
+     * @param offset absolute position of the serialization in buffer
+     * @return QubitMapConstant
+     */
+    public static QubitMapConstant fromBuffer(ByteBuffer buffer, int offset) {
+        int[] labels = new int[buffer.getInt(offset)];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = buffer.getInt(offset + 4 + 4 * i);
+        }
+        return new QubitMapConstant(labels);
+    }
+
+    /**
+     * @return the number of qubits mapped, qubits from this number up keep their label
+     */
+    public int size() {
+        return labels.length;
+    }
+
+    /**
+     * @param qubit a qubit of the compiled program
+     * @return the label of the qubit in the source
+     */
+    public int getLabel(int qubit) {
+        return qubit < labels.length ? labels[qubit] : qubit;
+    }
+
+    /**
+     * Map a state index, bit q standing for qubit q, back to the source labels
+     * @param state a basis state of the compiled program, of at most 63 qubits
+     * @return the same basis state with bit getLabel(q) standing for qubit q
+     */
+    public long getSourceState(long state) {
+        long source = state & (-1L << Math.min(labels.length, 63));
+        for (int q = 0; q < Math.min(labels.length, 63); q++) {
+            if ((state & (1L << q)) != 0) {
+                source |= 1L << labels[q];
+            }
+        }
+        return source;
+    }
+}
@@ -0,0 +1,106 @@
+package io.qudot.qudotc.utils;
+
+/**
+ * Reads instructions from a code region of either bytecode version. Version 1 stores every operand as a
+ * 4 byte big endian int and branch targets as absolute addresses, version 2 stores operands as varints and
+ * branch targets relative to the branch instruction, see CompactBytecode. Branch targets are returned as
+ * absolute addresses for both.
+ *
+ * @since 0.1.0
+ */
+public class BytecodeReader {
+    private final byte[] code;
+    private final int version;
+    private int position;
+    // address of the opcode last read, version 2 branch targets are relative to it
+    private int start;
+
+    /**
+     * @param code the code region
+     * @param version the bytecode version of the code, 1 or 2
+     */
+    public BytecodeReader(byte[] code, int version) {
+        if (version != 1 && version != 2) {
+            throw new RuntimeException("unsupported bytecode version " + version);
+        }
+        this.code = code;
+        this.version = version;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public void setPosition(int position) {
+        this.position = position;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Read the opcode at the position, the start of an instruction
+     * @return the opcode
+     */
+    public int readOpcode() {
+        start = position;
+        return code[position++] & 0xFF;
+    }
+
+    /**
+     * Read one operand of the instruction whose opcode was read last
+     * @param type the operand type
+     * @return the operand, an absolute address for a branch target
+     */
+    public int readOperand(int type) {
+        if (version == 1) {
+            int operand = BytecodeUtils.getInt(code, position);
+            position += 4;
+            return operand;
+        }
+        int encoded = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = code[position++];
+            if (shift < 32) {
+                encoded |= (b & 0x7F) << shift;
+            }
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        int operand = CompactBytecode.decode(type, encoded);
+        return type == Bytecodes.ID ? start + operand : operand;
+    }
+
+    /**
+     * Read the operands of the instruction whose opcode was read last, a variable length last operand is
+     * read as the number of elements the operand before it gives
+     * @param instruction the instruction of the opcode
+     * @return the operands as they are encoded in version 1
+     */
+    public int[] readOperands(Bytecodes.Instruction instruction) {
+        int n = instruction.getN();
+        if (!instruction.isVariableLength()) {
+            int[] operands = new int[n];
+            for (int i = 0; i < n; i++) {
+                operands[i] = readOperand(instruction.getType()[i]);
+            }
+            return operands;
+        }
+        int[] fixed = new int[n - 1];
+        for (int i = 0; i < n - 1; i++) {
+            fixed[i] = readOperand(instruction.getType()[i]);
+        }
+        int count = fixed[n - 2];
+        if (count < 0 || count > code.length - position) {
+            throw new RuntimeException("invalid operand count " + count + " at " + start);
+        }
+        int[] operands = new int[n - 1 + count];
+        System.arraycopy(fixed, 0, operands, 0, n - 1);
+        for (int i = n - 1; i < operands.length; i++) {
+            operands[i] = readOperand(instruction.getType()[n - 1]);
+        }
+        return operands;
+    }
+}
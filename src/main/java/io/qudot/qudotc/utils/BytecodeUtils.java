@@ -1,6 +1,7 @@
 package io.qudot.qudotc.utils;
 
 import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
 
 /**
  * Utility classes for reading and writing from bytecode arrays.
@@ -45,4 +46,82 @@ public class BytecodeUtils {
         outputStream.write((value>>(8*1))&0xFF);
         outputStream.write(value&0xFF);
     }
-}
\ No newline at end of file
+
+    /**
+     * Expand a qubit set, bit i of word j stands for qubit 32 * (firstWord + j) + i.
+     * @param firstWord number of the first 32 qubit word the set covers
+     * @param words the words of the set
+     * @param from index of the first word in words
+     * @param count number of words
+     * @return the qubits in the set in ascending order
+     */
+    public static int[] getQubitSet(int firstWord, int[] words, int from, int count) {
+        int size = 0;
+        for (int j = 0; j < count; j++) {
+            size += Integer.bitCount(words[from + j]);
+        }
+        int[] qubits = new int[size];
+        int k = 0;
+        for (int j = 0; j < count; j++) {
+            for (int bits = words[from + j]; bits != 0; bits &= bits - 1) {
+                qubits[k++] = 32 * (firstWord + j) + Integer.numberOfTrailingZeros(bits);
+            }
+        }
+        return qubits;
+    }
+
+    /**
+     * Encode the smallest instruction that loads a list of qubits into a qubit register: qload_seq for
+     * consecutive qubits, qload_mask for a set packed into 32 qubit words or qload_array. A list is only
+     * re-encoded when it is ascending without repeats, since qload_seq and qload_mask do not keep order or
+     * duplicates, and the form the list came from is kept when two are the same size.
+     * @param qureg the qubit register
+     * @param qubits the qubits in load order
+     * @param isSet true for the qubits of a qload_mask, which are a set, false for those of a qload_array
+     * @return the opcode followed by the operands
+     */
+    public static int[] getQubitLoad(int qureg, int[] qubits, boolean isSet) {
+        int[] sorted = isSet ? Arrays.stream(qubits).sorted().distinct().toArray() : qubits;
+        boolean ascending = sorted.length == 0 || sorted[0] >= 0;
+        for (int i = 1; i < sorted.length && ascending; i++) {
+            ascending = sorted[i - 1] < sorted[i];
+        }
+        int n = sorted.length;
+        // operand counts of each encoding
+        int array = 2 + n;
+        int sequence = ascending && n > 0 && sorted[n - 1] - sorted[0] == n - 1 ? 3 : Integer.MAX_VALUE;
+        int firstWord = n > 0 ? sorted[0] >>> 5 : 0;
+        int words = n > 0 ? (sorted[n - 1] >>> 5) - firstWord + 1 : 0;
+        int mask = ascending ? 3 + words : Integer.MAX_VALUE;
+
+        int best = Math.min(array, Math.min(sequence, mask));
+        if ((isSet ? mask : array) == best) {
+            sequence = Integer.MAX_VALUE;
+            if (isSet) {
+                array = Integer.MAX_VALUE;
+            } else {
+                mask = Integer.MAX_VALUE;
+            }
+        }
+        if (sequence == best) {
+            return new int[] {Bytecodes.QLOAD_SEQUENCE, qureg, sorted[0], sorted[n - 1]};
+        }
+        if (mask == best) {
+            int[] instr = new int[4 + words];
+            instr[0] = Bytecodes.QLOAD_MASK;
+            instr[1] = qureg;
+            instr[2] = firstWord;
+            instr[3] = words;
+            for (int qubit : sorted) {
+                instr[4 + (qubit >>> 5) - firstWord] |= 1 << (qubit & 31);
+            }
+            return instr;
+        }
+        int[] instr = new int[3 + n];
+        instr[0] = Bytecodes.QLOAD_ARRAY;
+        instr[1] = qureg;
+        instr[2] = n;
+        System.arraycopy(sorted, 0, instr, 3, n);
+        return instr;
+    }
+}
@@ -5,7 +5,10 @@ import io.qudot.qudotc.qudir.QuDotAsmParser;
 /**
  * Class to define all our Bytecodes supported by QuDot VM and the Instruction class. The Instruction class
  * tells us the number of arguments an instruction supports and the type of the argument. This helps the
- * VM read the correct number of bytes from a bytecode array.
+ * VM read the correct number of bytes from a bytecode array. Branch targets are typed ID, they are
+ * code addresses resolved from labels. A QUBITSET holds a set of qubits as a bitmask so a VM can apply a
+ * gate to the whole set with word wide operations: qload_mask q, firstWord, words, bits... puts qubit
+ * 32 * (firstWord + j) + i in q for every bit i set in word j.
  *
  * @since 0.1.0
  */
@@ -16,6 +19,10 @@ public class Bytecodes {
     public static final int INT = QuDotAsmParser.INT;
     public static final int ID = QuDotAsmParser.ID;
     public static final int ARRAY = 69;
+    // packed qubit bitmask, like ARRAY the operand before it gives the number of 32 bit words
+    public static final int QUBITSET = 70;
+    // index of a constant pool entry other than a gate, e.g. an INT_ARRAY table
+    public static final int POOL = 71;
 
     public static class Instruction {
         String name; // E.g., "iadd", "call"
@@ -76,6 +83,13 @@ public class Bytecodes {
             return type;
         }
 
+        /**
+         * @return true if the last operand is an ARRAY or QUBITSET whose length is the operand before it
+         */
+        public boolean isVariableLength() {
+            return n > 0 && (type[n - 1] == ARRAY || type[n - 1] == QUBITSET);
+        }
+
     }
 
     public static final short HALT = 0;
@@ -145,6 +159,24 @@ public class Bytecodes {
     public static final short SDAGON = 64;
     public static final short TDAG = 65;
     public static final short TDAGON = 66;
+    // superinstructions, each does the work of the sequence in its comment
+    public static final short XONR = 67;        // qloadr q, r; xon q
+    public static final short YONR = 68;        // qloadr q, r; yon q
+    public static final short ZONR = 69;        // qloadr q, r; zon q
+    public static final short SONR = 70;        // qloadr q, r; son q
+    public static final short TONR = 71;        // qloadr q, r; ton q
+    public static final short HONR = 72;        // qloadr q, r; hon q
+    public static final short SDAGONR = 73;     // qloadr q, r; sdagon q
+    public static final short TDAGONR = 74;     // qloadr q, r; tdagon q
+    public static final short CNOTR = 75;       // qloadr qa, ra; qloadr qb, rb; cnot qa, qb
+    public static final short INCR_BREQ = 76;   // incr rx; breq rx, ry, label
+    public static final short IADD_BREQ = 77;   // iadd rx, rx, rc; breq rx, ry, label
+    public static final short QLOAD_MASK = 78;
+    public static final short TLOAD = 79;       // rd = table #p at index ri
+    // phi, phion and semi_crot with the phase factor read from a DOUBLE_PAIR constant #p
+    public static final short PHI_T = 80;
+    public static final short PHION_T = 81;
+    public static final short SEMI_CROT_T = 82;
 
     public static Instruction[] instructions = new Instruction[] {
             new Instruction("halt"),
@@ -180,22 +212,22 @@ public class Bytecodes {
             new Instruction("ilt", REG, REG, REG),
             new Instruction("ieq", REG, REG, REG),
             new Instruction("incr", REG),
-            new Instruction("br", INT),
-            new Instruction("brt", REG, INT),
-            new Instruction("brf", REG, INT),
+            new Instruction("br", ID),
+            new Instruction("brt", REG, ID),
+            new Instruction("brf", REG, ID),
             new Instruction("iload", REG, INT),
             new Instruction("ret"),
             new Instruction("move", REG, REG),
             new Instruction("null", REG),
-            new Instruction("call", GATE),
+            new Instruction("call", GATE, REG),
             new Instruction("printr", REG),
             new Instruction("qload_seq", QUREG, INT, INT),
-            new Instruction("breq", REG, REG, INT),
-            new Instruction("brgez", REG, INT),
-            new Instruction("brgtz", REG, INT),
-            new Instruction("brlez", REG, INT),
-            new Instruction("brltz", REG, INT),
-            new Instruction("brneq", REG, REG, INT),
+            new Instruction("breq", REG, REG, ID),
+            new Instruction("brgez", REG, ID),
+            new Instruction("brgtz", REG, ID),
+            new Instruction("brlez", REG, ID),
+            new Instruction("brltz", REG, ID),
+            new Instruction("brneq", REG, REG, ID),
             new Instruction("qloadr", QUREG, REG),
             new Instruction("idiv", REG, REG, REG),
             new Instruction("decr", REG),
@@ -213,6 +245,22 @@ public class Bytecodes {
             new Instruction("sdag"),
             new Instruction("sdagon", QUREG),
             new Instruction("tdag"),
-            new Instruction("tdagon", QUREG)
+            new Instruction("tdagon", QUREG),
+            new Instruction("xonr", QUREG, REG),
+            new Instruction("yonr", QUREG, REG),
+            new Instruction("zonr", QUREG, REG),
+            new Instruction("sonr", QUREG, REG),
+            new Instruction("tonr", QUREG, REG),
+            new Instruction("honr", QUREG, REG),
+            new Instruction("sdagonr", QUREG, REG),
+            new Instruction("tdagonr", QUREG, REG),
+            new Instruction("cnotr", QUREG, REG, QUREG, REG),
+            new Instruction("incr_breq", REG, REG, ID),
+            new Instruction("iadd_breq", REG, REG, REG, ID),
+            new Instruction("qload_mask", QUREG, INT, INT, QUBITSET),
+            new Instruction("tload", REG, POOL, REG),
+            new Instruction("phi_t", POOL),
+            new Instruction("phion_t", POOL, QUREG),
+            new Instruction("semi_crot_t", POOL, QUREG, QUREG)
     };
 }
\ No newline at end of file
@@ -0,0 +1,203 @@
+package io.qudot.qudotc.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Re-encodes version 1 bytecode, where every operand is a 4 byte big endian int, into the compact version 2
+ * bytecode. Opcodes stay one byte and every operand becomes a varint: 7 bits per byte, low bits first, the
+ * high bit set on every byte but the last. Registers, qubit registers, constant pool indices and qubit set
+ * words are stored unsigned, ints and array elements zigzag encoded so small negative values stay short, and
+ * branch targets as the zigzag encoded distance from the start of the branch instruction. Most operands are
+ * then a single byte.
+ * <p>
+ * Branch distances depend on the size of the code in between, so sizes are worked out by growing them until
+ * no distance needs more bytes than it was given. A distance that ends up shorter than its room is padded
+ * with continuation bytes, which decode to the same value.
+ *
+ * @since 0.1.0
+ */
+public class CompactBytecode {
+    private final byte[] code;
+    // by version 1 address, the version 2 address of the instruction starting there or -1
+    private final int[] addresses;
+
+    /**
+     * Re-encode a version 1 code region
+     * @param code version 1 bytecode
+     * @param codeSize number of bytes of code
+     * @param instructions the instruction set the code was generated with
+     */
+    public CompactBytecode(byte[] code, int codeSize, Bytecodes.Instruction[] instructions) {
+        BytecodeReader reader = new BytecodeReader(code, 1);
+        int[] starts = new int[16];
+        int[] opcodes = new int[16];
+        int[][] operands = new int[16][];
+        int n = 0;
+        while (reader.getPosition() < codeSize) {
+            if (n == starts.length) {
+                starts = Arrays.copyOf(starts, 2 * n);
+                opcodes = Arrays.copyOf(opcodes, 2 * n);
+                operands = Arrays.copyOf(operands, 2 * n);
+            }
+            starts[n] = reader.getPosition();
+            opcodes[n] = reader.readOpcode();
+            if (opcodes[n] >= instructions.length) {
+                throw new RuntimeException("invalid opcode " + opcodes[n] + " at " + starts[n]);
+            }
+            operands[n] = reader.readOperands(instructions[opcodes[n]]);
+            n++;
+        }
+        if (reader.getPosition() != codeSize) {
+            throw new RuntimeException("truncated instruction at " + starts[n - 1]);
+        }
+
+        // by version 1 address, the number of the instruction starting there, n for the end of the code
+        int[] index = new int[codeSize + 1];
+        Arrays.fill(index, -1);
+        for (int k = 0; k < n; k++) {
+            index[starts[k]] = k;
+        }
+        index[codeSize] = n;
+
+        // sizes without the branch distances, which start at one byte each and only grow
+        int[] sizes = new int[n];
+        for (int k = 0; k < n; k++) {
+            Bytecodes.Instruction instruction = instructions[opcodes[k]];
+            sizes[k] = 1;
+            for (int i = 0; i < operands[k].length; i++) {
+                int type = getType(instruction, i);
+                if (type == Bytecodes.ID) {
+                    int target = operands[k][i];
+                    if (target < 0 || target > codeSize || index[target] < 0) {
+                        throw new RuntimeException("branch at " + starts[k] + " to " + target
+                                + " is not an instruction");
+                    }
+                    sizes[k]++;
+                } else {
+                    sizes[k] += getVarintSize(encode(type, operands[k][i]));
+                }
+            }
+        }
+        int[] newStarts = new int[n + 1];
+        boolean grown = true;
+        while (grown) {
+            for (int k = 0; k < n; k++) {
+                newStarts[k + 1] = newStarts[k] + sizes[k];
+            }
+            grown = false;
+            for (int k = 0; k < n; k++) {
+                int size = getSize(instructions[opcodes[k]], operands[k], k, index, newStarts);
+                if (size > sizes[k]) {
+                    sizes[k] = size;
+                    grown = true;
+                }
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(newStarts[n]);
+        for (int k = 0; k < n; k++) {
+            Bytecodes.Instruction instruction = instructions[opcodes[k]];
+            // room left over by the distances growing in earlier rounds goes to the last branch target
+            int padding = sizes[k] - getSize(instruction, operands[k], k, index, newStarts);
+            int last = -1;
+            for (int i = 0; i < operands[k].length; i++) {
+                last = getType(instruction, i) == Bytecodes.ID ? i : last;
+            }
+            out.write(opcodes[k]);
+            for (int i = 0; i < operands[k].length; i++) {
+                int type = getType(instruction, i);
+                int value = type == Bytecodes.ID
+                        ? newStarts[index[operands[k][i]]] - newStarts[k]
+                        : operands[k][i];
+                int encoded = encode(type, value);
+                writeVarint(out, encoded, getVarintSize(encoded) + (i == last ? padding : 0));
+            }
+        }
+        this.code = out.toByteArray();
+
+        addresses = new int[codeSize + 1];
+        for (int address = 0; address <= codeSize; address++) {
+            addresses[address] = index[address] < 0 ? -1 : newStarts[index[address]];
+        }
+    }
+
+    /**
+     * @return the version 2 code, exactly sized
+     */
+    public byte[] getCode() {
+        return code;
+    }
+
+    /**
+     * @param address a version 1 code address
+     * @return the version 2 address of the same instruction, the size of the code for the end of the code
+     */
+    public int getAddress(int address) {
+        if (address < 0 || address >= addresses.length || addresses[address] < 0) {
+            throw new RuntimeException("address " + address + " is not an instruction");
+        }
+        return addresses[address];
+    }
+
+    private static int getSize(Bytecodes.Instruction instruction, int[] operands, int k, int[] index,
+                               int[] newStarts) {
+        int size = 1;
+        for (int i = 0; i < operands.length; i++) {
+            int type = getType(instruction, i);
+            int value = type == Bytecodes.ID ? newStarts[index[operands[i]]] - newStarts[k] : operands[i];
+            size += getVarintSize(encode(type, value));
+        }
+        return size;
+    }
+
+    // the elements of a variable length operand all have its type
+    static int getType(Bytecodes.Instruction instruction, int i) {
+        return instruction.getType()[Math.min(i, instruction.getN() - 1)];
+    }
+
+    /**
+     * @return the operand as the unsigned int its varint holds
+     */
+    static int encode(int type, int value) {
+        switch (type) {
+            case Bytecodes.INT:
+            case Bytecodes.ID:
+            case Bytecodes.ARRAY:
+                return (value << 1) ^ (value >> 31);
+            default:
+                return value;
+        }
+    }
+
+    static int decode(int type, int encoded) {
+        switch (type) {
+            case Bytecodes.INT:
+            case Bytecodes.ID:
+            case Bytecodes.ARRAY:
+                return (encoded >>> 1) ^ -(encoded & 1);
+            default:
+                return encoded;
+        }
+    }
+
+    /**
+     * @param value an int taken as unsigned
+     * @return number of bytes of the shortest varint holding value, 1 to 5
+     */
+    static int getVarintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value, int size) {
+        for (int i = 1; i < size; i++) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value & 0x7F);
+    }
+}
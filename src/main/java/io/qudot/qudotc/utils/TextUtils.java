@@ -0,0 +1,47 @@
+package io.qudot.qudotc.utils;
+
+import java.util.Locale;
+
+/**
+ * Utility methods for the text and JSON reports the compiler prints.
+ *
+ * @since 0.1.0
+ */
+public class TextUtils {
+    private static final String[] BYTE_UNITS = {"B", "KB", "MB", "GB", "TB", "PB", "EB"};
+
+    /**
+     * Format a size in the largest binary unit it reaches, as 512 B or 1.5 MB.
+     * @param bytes the size in bytes
+     * @return the size with its unit
+     */
+    public static String formatBytes(double bytes) {
+        int unit = 0;
+        while (bytes >= 1024 && unit < BYTE_UNITS.length - 1) {
+            bytes /= 1024;
+            unit++;
+        }
+        return unit == 0 && bytes == Math.rint(bytes)
+                ? (long) bytes + " B" : String.format(Locale.ROOT, "%.1f %s", bytes, BYTE_UNITS[unit]);
+    }
+
+    /**
+     * Append s as a quoted JSON string, escaping quotes, backslashes and control characters.
+     * @param json the JSON being built
+     * @param s the string to append
+     */
+    public static void appendJsonString(StringBuilder json, String s) {
+        json.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
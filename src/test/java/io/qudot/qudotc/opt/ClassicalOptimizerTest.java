@@ -0,0 +1,94 @@
+package io.qudot.qudotc.opt;
+
+import io.qudot.qudotc.qudir.QuDotAsmLexer;
+import io.qudot.qudotc.qudir.QuDotAssembler;
+import io.qudot.qudotc.utils.Bytecodes;
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClassicalOptimizerTest {
+
+    // modpow 69^(2^r3) mod 77 for r3 from 0 while r3 < limit
+    private static String getCountingLoop(int limit) {
+        return ".qudot qubits=2, ensemble=1\n"
+                + ".gate main: args=0, regs=6, qubit_regs=0\n"
+                + "    iload r1, 69\n"
+                + "    iload r2, 77\n"
+                + "    iload r3, 0\n"
+                + "    iload r5, " + limit + "\n"
+                + "    Loop:\n"
+                + "        modpow r4, r1, r3, r2\n"
+                + "        printr r4\n"
+                + "        incr r3\n"
+                + "        ilt r6, r3, r5\n"
+                + "        brt r6, Loop\n"
+                + "    halt\n";
+    }
+
+    private static List<Integer> optimize(String source) {
+        QuDotAssembler assembler = new QuDotAssembler(new QuDotAsmLexer(CharStreams.fromString(source)),
+                Bytecodes.instructions);
+        assertFalse(assembler.hasErrors(), () -> String.valueOf(assembler.getErrors()));
+        QuDotOptimizer.createDefault(Bytecodes.instructions).optimize(assembler);
+        return Program.decode(assembler, Bytecodes.instructions).getCode().stream()
+                .map(Instr::getOpcode).collect(Collectors.toList());
+    }
+
+    @Test
+    void modPowInBoundedLoopBecomesTableLoad() {
+        List<Integer> opcodes = optimize(getCountingLoop(20));
+        assertTrue(opcodes.contains((int) Bytecodes.TLOAD));
+        assertFalse(opcodes.contains((int) Bytecodes.MODPOW));
+    }
+
+    @Test
+    void modPowWithExponentPastTableStaysModPow() {
+        List<Integer> opcodes = optimize(getCountingLoop(40));
+        assertTrue(opcodes.contains((int) Bytecodes.MODPOW));
+        assertFalse(opcodes.contains((int) Bytecodes.TLOAD));
+    }
+
+    @Test
+    void modPowWithUnboundedExponentStaysModPow() {
+        List<Integer> opcodes = optimize(".qudot qubits=2, ensemble=1\n"
+                + ".gate main: args=0, regs=4, qubit_regs=0\n"
+                + "    iload r1, 69\n"
+                + "    iload r2, 77\n"
+                + "    Loop:\n"
+                + "        modpow r4, r1, r3, r2\n"
+                + "        printr r4\n"
+                + "        incr r3\n"
+                + "        br Loop\n");
+        assertTrue(opcodes.contains((int) Bytecodes.MODPOW));
+        assertFalse(opcodes.contains((int) Bytecodes.TLOAD));
+    }
+
+    @Test
+    void modPowInShorLoopBecomesTableLoad() {
+        // the ModExp loop of the shor example counts r7 down from 13 while r9 counts up from 0
+        List<Integer> opcodes = optimize(".qudot qubits=20, ensemble=1\n"
+                + ".gate main: args=0, regs=9, qubit_regs=0\n"
+                + "    iload r2, 13\n"
+                + "    iload r5, 77\n"
+                + "    iload r6, 69\n"
+                + "    move r7, r2\n"
+                + "    iload r9, 0\n"
+                + "    ModExp:\n"
+                + "        brlez r7, doneModExp\n"
+                + "        modpow r8, r6, r9, r5\n"
+                + "        printr r8\n"
+                + "        decr r7\n"
+                + "        incr r9\n"
+                + "        br ModExp\n"
+                + "    doneModExp:\n"
+                + "        halt\n");
+        assertTrue(opcodes.contains((int) Bytecodes.TLOAD));
+        assertFalse(opcodes.contains((int) Bytecodes.MODPOW));
+    }
+}
@@ -0,0 +1,80 @@
+package io.qudot.qudotc.opt;
+
+import io.qudot.qudotc.qudir.QuDotAsmLexer;
+import io.qudot.qudotc.qudir.QuDotAssembler;
+import io.qudot.qudotc.utils.Bytecodes;
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UncalledGateTest {
+    // helper is called once with a constant, so -i inlines it and -u unrolls it into helper$1
+    private static final String SOURCE = ".qudot qubits=2, ensemble=1\n"
+            + ".gate helper: args=1, regs=2, qubit_regs=1\n"
+            + "    iload r2, 0\n"
+            + "    Loop:\n"
+            + "        qloadr q0, r2\n"
+            + "        hon q0\n"
+            + "        incr r2\n"
+            + "        breq r2, r1, Done\n"
+            + "        br Loop\n"
+            + "    Done:\n"
+            + "        ret\n"
+            + ".gate after: args=0, regs=0, qubit_regs=1\n"
+            + "    qload q0, 1\n"
+            + "    hon q0\n"
+            + "    ret\n"
+            + ".gate main: args=0, regs=2, qubit_regs=0\n"
+            + "    iload r1, 2\n"
+            + "    call helper(), r1\n"
+            + "    call after(), r0\n"
+            + "    halt\n";
+
+    private static QuDotAssembler assemble() {
+        QuDotAssembler assembler = new QuDotAssembler(new QuDotAsmLexer(CharStreams.fromString(SOURCE)),
+                Bytecodes.instructions);
+        assertFalse(assembler.hasErrors(), () -> String.valueOf(assembler.getErrors()));
+        return assembler;
+    }
+
+    // every gate keeps its own code, so looking a gate up by name still finds its body
+    private static List<String> getGateNames(QuDotAssembler assembler) {
+        List<String> names = new ArrayList<>();
+        for (Gate gate : Program.decode(assembler, Bytecodes.instructions).getGates()) {
+            if (gate.getSymbol() != null) {
+                assertFalse(gate.getCode().isEmpty(), gate.getSymbol().getName() + " has no code");
+                names.add(gate.getSymbol().getName());
+            }
+        }
+        return names;
+    }
+
+    @Test
+    void inlinedGateIsKept() {
+        QuDotAssembler assembler = assemble();
+        assertTrue(new QuDotOptimizer(Bytecodes.instructions).addPass(new Inliner(32, 1024)).optimize(assembler));
+        assertEquals(List.of("helper", "after", "main"), getGateNames(assembler));
+    }
+
+    @Test
+    void specializedGateIsKept() {
+        QuDotAssembler assembler = assemble();
+        assertTrue(new QuDotOptimizer(Bytecodes.instructions)
+                .addPass(new PartialEvaluator(PartialEvaluator.DEFAULT_BUDGET)).optimize(assembler));
+        assertTrue(getGateNames(assembler).containsAll(List.of("helper", "after", "main")));
+    }
+
+    @Test
+    void linkDropsUncalledGate() {
+        QuDotAssembler assembler = assemble();
+        new QuDotOptimizer(Bytecodes.instructions).addPass(new Inliner(32, 1024)).addFinalPass(new Linker())
+                .optimize(assembler);
+        assertFalse(getGateNames(assembler).contains("helper"));
+    }
+}
@@ -0,0 +1,64 @@
+package io.qudot.qudotc.qudir;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class ExpandInputsTest {
+
+    private static Path touch(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        return Files.writeString(file, "");
+    }
+
+    private static List<Path> getSources(List<QuDotCompiler.CompileResult> results) {
+        return results.stream().map(QuDotCompiler.CompileResult::getSource).collect(Collectors.toList());
+    }
+
+    @Test
+    void sourcesWritingTheSameFileAreRejected(@TempDir Path dir) throws IOException {
+        Path ax = touch(dir.resolve("a/x.qudot"));
+        Path bx = touch(dir.resolve("b/x.qudot"));
+        Path v1 = touch(dir.resolve("a/foo.v1.qudot"));
+        Path v2 = touch(dir.resolve("b/foo.v2.qudot"));
+        Path ok = touch(dir.resolve("b/ok.qudot"));
+
+        List<QuDotCompiler.CompileResult> unresolved = new ArrayList<>();
+        List<Path> sources = QuDotCompiler.expandInputs(List.of(dir.toString()), unresolved);
+        assertEquals(List.of(ok), sources);
+        assertEquals(List.of(v1, ax, v2, bx), getSources(unresolved));
+        for (QuDotCompiler.CompileResult result : unresolved) {
+            assertFalse(result.isSuccess());
+        }
+        assertEquals(List.of("x.qudotc would also be written for " + bx), unresolved.get(1).getErrors());
+    }
+
+    @Test
+    void fileNamedTwiceIsCompiledOnce(@TempDir Path dir) throws IOException {
+        Path x = touch(dir.resolve("a/x.qudot"));
+        List<QuDotCompiler.CompileResult> unresolved = new ArrayList<>();
+        List<Path> sources = QuDotCompiler.expandInputs(
+                List.of(x.toString(), dir.resolve("a/../a/x.qudot").toString()), unresolved);
+        assertEquals(List.of(x), sources);
+        assertEquals(List.of(), unresolved);
+    }
+
+    @Test
+    void missingFileAndEmptyPatternFail(@TempDir Path dir) {
+        List<QuDotCompiler.CompileResult> unresolved = new ArrayList<>();
+        String missing = dir.resolve("missing.qudot").toString();
+        String pattern = dir.resolve("nowhere/*.qudot").toString();
+        assertEquals(List.of(), QuDotCompiler.expandInputs(List.of(missing, pattern), unresolved));
+        assertEquals(List.of("no such file"), unresolved.get(0).getErrors());
+        assertEquals(List.of("pattern matched no files"), unresolved.get(1).getErrors());
+    }
+}
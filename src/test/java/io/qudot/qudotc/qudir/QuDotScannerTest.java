@@ -0,0 +1,156 @@
+package io.qudot.qudotc.qudir;
+
+import io.qudot.qudotc.utils.Bytecodes;
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QuDotScannerTest {
+    private static final String HEADER = ".qudot qubits=4, ensemble=1\n";
+
+    private static byte[] getFile(QuDotAssembler assembler) {
+        QuDotFileWriter writer = new QuDotFileWriter(assembler);
+        byte[] bytes = new byte[Math.toIntExact(writer.getFileSize())];
+        writer.write(ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    private static QuDotAssembler assembleTree(byte[] source) throws IOException {
+        return new QuDotAssembler(new QuDotAsmLexer(CharStreams.fromStream(new ByteArrayInputStream(source))),
+                Bytecodes.instructions);
+    }
+
+    private static QuDotAssembler assembleStreaming(byte[] source) throws IOException {
+        return new QuDotAssembler(() -> new ByteArrayInputStream(source), Bytecodes.instructions);
+    }
+
+    private static QuDotAssembler assembleFast(byte[] source) {
+        return QuDotScanner.assemble(ByteBuffer.wrap(source), Bytecodes.instructions);
+    }
+
+    // the scanner must take the source and write the same file, with the same errors, as both ANTLR paths
+    private static void assertSameAsAntlr(String source) throws IOException {
+        assertSameAsAntlr(source.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertSameAsAntlr(byte[] source) throws IOException {
+        QuDotAssembler fast = assembleFast(source);
+        assertNotNull(fast, "the scanner gave up on a source it handles");
+        for (QuDotAssembler antlr : new QuDotAssembler[] {assembleTree(source), assembleStreaming(source)}) {
+            assertEquals(antlr.getErrors(), fast.getErrors());
+            assertEquals(antlr.getInstructionCount(), fast.getInstructionCount());
+            assertEquals(antlr.getCodeSize(), fast.getCodeSize());
+            assertArrayEquals(getFile(antlr), getFile(fast));
+        }
+    }
+
+    // the scanner must leave the source to the ANTLR path, which reports the errors
+    private static void assertFallsBack(String source) throws IOException {
+        byte[] bytes = source.getBytes(StandardCharsets.UTF_8);
+        assertNull(assembleFast(bytes));
+        assertTrue(assembleTree(bytes).hasErrors());
+        assertTrue(assembleStreaming(bytes).hasErrors());
+    }
+
+    @Test
+    void warmUpCorpusMatchesAntlr() throws IOException {
+        for (byte[] source : ParserWarmUp.getCorpus()) {
+            assertSameAsAntlr(source);
+        }
+    }
+
+    @Test
+    void crlfMatchesAntlr() throws IOException {
+        for (byte[] source : ParserWarmUp.getCorpus()) {
+            assertSameAsAntlr(new String(source, StandardCharsets.UTF_8).replace("\n", "\r\n"));
+        }
+    }
+
+    @Test
+    void commentsMatchAntlr() throws IOException {
+        assertSameAsAntlr("// a program\n" + HEADER
+                + "// the only gate\n"
+                + ".gate main: args=0, regs=1, qubit_regs=1 // declared\n"
+                + "    qload q0, 1 // the first qubit\n"
+                + "    // on its own line\n"
+                + "    hon q0//no space\n"
+                + "    halt\n");
+    }
+
+    @Test
+    void labelsMatchAntlr() throws IOException {
+        assertSameAsAntlr(HEADER
+                + ".gate main: args=0, regs=2, qubit_regs=0\n"
+                + "    iload r1, 3\n"
+                + "    br Check\n"
+                + "    Loop:\n"
+                + "        decr r1\n"
+                + "    Check: brgtz r1, Loop\n"
+                + "    halt\n");
+    }
+
+    @Test
+    void unresolvedLabelMatchesAntlr() throws IOException {
+        assertSameAsAntlr(HEADER
+                + ".gate main: args=0, regs=1, qubit_regs=0\n"
+                + "    br Nowhere\n"
+                + "    halt\n");
+    }
+
+    @Test
+    void qubitListsMatchAntlr() throws IOException {
+        assertSameAsAntlr(HEADER
+                + ".gate main: args=0, regs=0, qubit_regs=3\n"
+                + "    qload_array q0, 3, 0, 2, 3\n"
+                + "    qload_mask q1, {1, 2, 3}\n"
+                + "    qload_mask q2, {0, 3}\n"
+                + "    qload_mask q0, {2}\n"
+                + "    halt\n");
+    }
+
+    @Test
+    void syntaxErrorFallsBack() throws IOException {
+        assertFallsBack(HEADER
+                + ".gate main: args=0, regs=0, qubit_regs=1\n"
+                + "    qload q0,, 1\n"
+                + "    halt\n");
+    }
+
+    @Test
+    void unknownInstructionFallsBack() throws IOException {
+        assertFallsBack(HEADER
+                + ".gate main: args=0, regs=0, qubit_regs=1\n"
+                + "    qlaod q0, 1\n"
+                + "    halt\n");
+    }
+
+    @Test
+    void operandCountMismatchFallsBack() throws IOException {
+        assertFallsBack(HEADER
+                + ".gate main: args=0, regs=0, qubit_regs=1\n"
+                + "    hon q0, q0\n"
+                + "    halt\n");
+        assertFallsBack(HEADER
+                + ".gate main: args=0, regs=0, qubit_regs=1\n"
+                + "    qload_array q0, 3, 0, 2\n"
+                + "    halt\n");
+    }
+
+    @Test
+    void emptyMaskFallsBack() throws IOException {
+        assertFallsBack(HEADER
+                + ".gate main: args=0, regs=0, qubit_regs=1\n"
+                + "    qload_mask q0, {}\n"
+                + "    halt\n");
+    }
+}